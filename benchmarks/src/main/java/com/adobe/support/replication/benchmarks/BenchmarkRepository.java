@@ -0,0 +1,170 @@
+package com.adobe.support.replication.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+import javax.jcr.security.AccessControlManager;
+import javax.jcr.security.Privilege;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.testing.resourceresolver.MockResourceResolverFactory;
+
+import com.day.cq.commons.jcr.JcrConstants;
+import com.day.cq.replication.ReplicationStatus;
+import com.day.cq.wcm.api.NameConstants;
+
+/**
+ * An in-memory content tree with a synthetic site: pages below
+ * {@value #PAGE_ROOT} based on the editable template {@value #TEMPLATE} and
+ * assets below {@value #ASSET_ROOT}. Every
+ * <code>denyEvery</code>-th asset is named <code>...-denied</code> and may not
+ * be replicated by the {@link #getSession() session}. Every second asset is
+ * already activated.
+ */
+public class BenchmarkRepository {
+
+    public static final String PAGE_ROOT = "/content/bench";
+
+    public static final String ASSET_ROOT = "/content/dam/bench";
+
+    public static final String TEMPLATE = "/conf/bench/settings/wcm/templates/page";
+
+    public static final String USER_ID = "bench-user";
+
+    private static final String DENIED_SUFFIX = "-denied";
+
+    private final ResourceResolver resolver;
+
+    private final Session session;
+
+    private final List<String> pages = new ArrayList<String>();
+
+    private final List<String> assets = new ArrayList<String>();
+
+    public BenchmarkRepository(int pageCount, int assetCount, int denyEvery)
+            throws LoginException, PersistenceException {
+        resolver = new MockResourceResolverFactory().getResourceResolver(null);
+        session = createSession();
+
+        Calendar modified = Calendar.getInstance();
+        Resource template = createPath(TEMPLATE);
+        resolver.create(template, JcrConstants.JCR_CONTENT, props(JcrConstants.JCR_PRIMARYTYPE, "cq:PageContent",
+                NameConstants.PN_PAGE_LAST_MOD, modified));
+        resolver.create(template, "structure", props(JcrConstants.JCR_PRIMARYTYPE, NameConstants.NT_PAGE));
+
+        Resource pageRoot = createPath(PAGE_ROOT);
+        for (int i = 0; i < pageCount; i++) {
+            Resource page = resolver.create(pageRoot, "page-" + i,
+                    props(JcrConstants.JCR_PRIMARYTYPE, NameConstants.NT_PAGE));
+            resolver.create(page, JcrConstants.JCR_CONTENT, props(JcrConstants.JCR_PRIMARYTYPE, "cq:PageContent",
+                    NameConstants.PN_PAGE_LAST_MOD, modified, NameConstants.PN_TITLE, "Page " + i,
+                    NameConstants.PN_TEMPLATE, TEMPLATE));
+            pages.add(page.getPath());
+        }
+
+        Resource assetRoot = createPath(ASSET_ROOT);
+        for (int i = 0; i < assetCount; i++) {
+            String name = "asset-" + i + (denyEvery > 0 && i % denyEvery == denyEvery - 1 ? DENIED_SUFFIX : "");
+            Resource asset = resolver.create(assetRoot, name, props(JcrConstants.JCR_PRIMARYTYPE, "dam:Asset"));
+            Resource content = resolver.create(asset, JcrConstants.JCR_CONTENT,
+                    props(JcrConstants.JCR_PRIMARYTYPE, "dam:AssetContent", JcrConstants.JCR_LASTMODIFIED, modified));
+            if (i % 2 == 0) {
+                // every second asset is already activated, the denied ones are not
+                content.adaptTo(ModifiableValueMap.class).putAll(props(ReplicationStatus.NODE_PROPERTY_LAST_REPLICATED,
+                        modified, ReplicationStatus.NODE_PROPERTY_LAST_REPLICATION_ACTION, "Activate"));
+            }
+            resolver.create(content, "metadata", props("dam:size", Long.valueOf(1024L * (1 + i % 512))));
+            assets.add(asset.getPath());
+        }
+        resolver.commit();
+    }
+
+    public List<String> getPages() {
+        return Collections.unmodifiableList(pages);
+    }
+
+    public List<String> getAssets() {
+        return Collections.unmodifiableList(assets);
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    /**
+     * @return a resolver on the content tree which adapts to the
+     *         {@link #getSession() session}, clones to another such resolver and
+     *         ignores {@link ResourceResolver#close()}
+     */
+    public ResourceResolver newResolver() {
+        return Stubs.of(ResourceResolver.class).on("adaptTo", new Stubs.Answer() {
+            public Object answer(Object[] args) {
+                return args[0] == Session.class ? session : resolver.adaptTo((Class<?>) args[0]);
+            }
+        }).on("clone", new Stubs.Answer() {
+            public Object answer(Object[] args) {
+                return newResolver();
+            }
+        }).returns("close", null).returns("getUserID", USER_ID).delegateTo(resolver).build();
+    }
+
+    /**
+     * @return a factory handing out {@link #newResolver() resolvers} for every login
+     */
+    public ResourceResolverFactory newResolverFactory() {
+        Stubs.Answer login = new Stubs.Answer() {
+            public Object answer(Object[] args) {
+                return newResolver();
+            }
+        };
+        return Stubs.of(ResourceResolverFactory.class).on("getServiceResourceResolver", login)
+                .on("getResourceResolver", login).build();
+    }
+
+    private Session createSession() {
+        final Privilege replicate = Stubs.of(Privilege.class).returns("getName", "crx:replicate").build();
+        final AccessControlManager acMgr = Stubs.of(AccessControlManager.class)
+                .returns("privilegeFromName", replicate)
+                .on("hasPrivileges", new Stubs.Answer() {
+                    public Object answer(Object[] args) {
+                        return !((String) args[0]).endsWith(DENIED_SUFFIX);
+                    }
+                }).build();
+        Stubs.Answer node = new Stubs.Answer() {
+            public Object answer(Object[] args) {
+                return Stubs.of(Node.class).returns("getPath", args[0]).build();
+            }
+        };
+        return Stubs.of(Session.class).returns("getUserID", USER_ID).returns("getAccessControlManager", acMgr)
+                .returns("itemExists", Boolean.TRUE).returns("nodeExists", Boolean.TRUE).returns("isLive", Boolean.TRUE)
+                .on("getItem", node).on("getNode", node).build();
+    }
+
+    private Resource createPath(String path) throws PersistenceException {
+        Resource resource = resolver.getResource("/");
+        for (String name : path.substring(1).split("/")) {
+            Resource child = resource.getChild(name);
+            resource = child != null ? child : resolver.create(resource, name, props(JcrConstants.JCR_PRIMARYTYPE, "sling:Folder"));
+        }
+        return resource;
+    }
+
+    private static Map<String, Object> props(Object... keysAndValues) {
+        Map<String, Object> props = new HashMap<String, Object>();
+        for (int i = 0; i + 1 < keysAndValues.length; i += 2) {
+            props.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return props;
+    }
+}
@@ -0,0 +1,69 @@
+package com.adobe.support.replication.benchmarks;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Wires components outside of an OSGi container the same way the SCR runtime
+ * does: references are set on the annotated fields, the bind and activate
+ * methods are called by reflection.
+ */
+public final class Components {
+
+    private Components() {
+    }
+
+    public static void inject(Object component, String field, Object value) {
+        try {
+            Field f = findField(component.getClass(), field);
+            f.setAccessible(true);
+            f.set(component, value);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Cannot set " + field, e);
+        }
+    }
+
+    public static void activate(Object component, Map<String, Object> properties) {
+        invoke(component, "activate", properties);
+    }
+
+    public static Map<String, Object> properties(Object... keysAndValues) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        for (int i = 0; i + 1 < keysAndValues.length; i += 2) {
+            properties.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return properties;
+    }
+
+    public static Object invoke(Object component, String name, Object... args) {
+        for (Class<?> c = component.getClass(); c != null; c = c.getSuperclass()) {
+            for (Method method : c.getDeclaredMethods()) {
+                if (method.getName().equals(name) && method.getParameterTypes().length == args.length) {
+                    try {
+                        method.setAccessible(true);
+                        return method.invoke(component, args);
+                    } catch (IllegalAccessException e) {
+                        throw new IllegalStateException("Cannot call " + name, e);
+                    } catch (InvocationTargetException e) {
+                        throw new IllegalStateException("Call of " + name + " failed", e.getCause());
+                    }
+                }
+            }
+        }
+        throw new IllegalArgumentException("No method " + name + " on " + component.getClass());
+    }
+
+    private static Field findField(Class<?> type, String name) {
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            try {
+                return c.getDeclaredField(name);
+            } catch (NoSuchFieldException e) {
+                // try the super class
+            }
+        }
+        throw new IllegalArgumentException("No field " + name + " on " + type);
+    }
+}
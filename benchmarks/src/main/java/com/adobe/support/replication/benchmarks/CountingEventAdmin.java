@@ -0,0 +1,32 @@
+package com.adobe.support.replication.benchmarks;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+
+/**
+ * An {@link EventAdmin} which only counts the sent and posted events.
+ */
+public class CountingEventAdmin implements EventAdmin {
+
+    private final AtomicLong sent = new AtomicLong();
+
+    private final AtomicLong posted = new AtomicLong();
+
+    public void postEvent(Event event) {
+        posted.incrementAndGet();
+    }
+
+    public void sendEvent(Event event) {
+        sent.incrementAndGet();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getPosted() {
+        return posted.get();
+    }
+}
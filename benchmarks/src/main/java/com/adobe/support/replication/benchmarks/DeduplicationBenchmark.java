@@ -0,0 +1,67 @@
+package com.adobe.support.replication.benchmarks;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the de-duplication of the collected paths. Half of the paths are
+ * duplicates, as if every reference was also listed by a resource collection.
+ * The lookups in a filled set, as done for every found reference, should not
+ * allocate at all, see <code>-prof gc</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeduplicationBenchmark {
+
+    @Param({ "100", "10000", "100000" })
+    public int paths;
+
+    private List<String> input;
+
+    private Set<String> linkedHashSet;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        input = new ArrayList<String>(paths);
+        for (int i = 0; i < paths; i++) {
+            input.add(BenchmarkRepository.ASSET_ROOT + "/folder-" + (i % 100) + "/asset-" + (i % (paths / 2 + 1)));
+        }
+        linkedHashSet = new LinkedHashSet<String>(input);
+    }
+
+    @Benchmark
+    public Set<String> linkedHashSet() {
+        return new LinkedHashSet<String>(input);
+    }
+
+    @Benchmark
+    public int linkedHashSetContains() {
+        int contained = 0;
+        for (String path : input) {
+            if (linkedHashSet.contains(path)) {
+                contained++;
+            }
+        }
+        return contained;
+    }
+}
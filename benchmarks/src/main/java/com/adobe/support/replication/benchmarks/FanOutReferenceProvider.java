@@ -0,0 +1,62 @@
+package com.adobe.support.replication.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+
+import com.day.cq.commons.jcr.JcrConstants;
+import com.day.cq.wcm.api.reference.Reference;
+import com.day.cq.wcm.api.reference.ReferenceProvider;
+
+/**
+ * A {@link ReferenceProvider} with its own references per page. Page
+ * <code>i</code> references <code>fanOut</code> consecutive assets starting at
+ * asset <code>i * stride</code>, wrapping around at the last asset, so
+ * neighbouring pages share <code>fanOut - stride</code> assets.
+ */
+public class FanOutReferenceProvider implements ReferenceProvider {
+
+    private final Map<String, List<String>> references = new HashMap<String, List<String>>();
+
+    /**
+     * @param pages the pages
+     * @param assets the assets shared by the pages
+     * @param fanOut the number of assets referenced by every page
+     * @param stride the offset of the first asset of a page to the one of the
+     *            previous page
+     */
+    public FanOutReferenceProvider(List<String> pages, List<String> assets, int fanOut, int stride) {
+        for (int i = 0; i < pages.size(); i++) {
+            List<String> paths = new ArrayList<String>(fanOut);
+            for (int k = 0; k < fanOut && !assets.isEmpty(); k++) {
+                paths.add(assets.get((int) (((long) i * stride + k) % assets.size())));
+            }
+            references.put(pages.get(i), paths);
+        }
+    }
+
+    public List<Reference> findReferences(Resource resource) {
+        String path = resource.getPath();
+        if (JcrConstants.JCR_CONTENT.equals(resource.getName())) {
+            path = path.substring(0, path.length() - JcrConstants.JCR_CONTENT.length() - 1);
+        }
+        List<String> paths = references.get(path);
+        if (paths == null) {
+            return Collections.emptyList();
+        }
+        ResourceResolver resolver = resource.getResourceResolver();
+        List<Reference> found = new ArrayList<Reference>(paths.size());
+        for (String p : paths) {
+            Resource r = resolver.getResource(p);
+            if (r != null) {
+                found.add(new Reference("asset", r.getName(), r, 0));
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,217 @@
+package com.adobe.support.replication.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Session;
+
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.settings.SlingSettingsService;
+import org.osgi.service.event.EventAdmin;
+
+import com.adobe.granite.workflow.collection.ResourceCollection;
+import com.adobe.granite.workflow.collection.ResourceCollectionManager;
+import com.adobe.support.replication.ActivatePageProcess;
+import com.adobe.support.replication.impl.ActivationReferenceSearchImpl;
+import com.adobe.support.replication.impl.ReferenceCache;
+import com.adobe.support.replication.impl.ReferenceGraph;
+import com.adobe.support.replication.impl.ReplicatePageProcess;
+import com.adobe.support.replication.impl.ReplicatePrivilegeEvaluator;
+import com.adobe.support.replication.impl.ReplicationCoalescer;
+import com.adobe.support.replication.impl.ReplicationLanes;
+import com.adobe.support.replication.impl.ReplicationMetrics;
+import com.adobe.support.replication.impl.ReplicationSessionPool;
+import com.adobe.support.replication.impl.ReplicationThrottle;
+import com.adobe.support.replication.impl.TemplateCache;
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.AgentConfig;
+import com.day.cq.replication.AgentManager;
+import com.day.cq.replication.Replicator;
+import com.day.cq.wcm.api.reference.ReferenceProvider;
+import com.day.cq.workflow.WorkflowSession;
+import com.day.cq.workflow.exec.HistoryItem;
+import com.day.cq.workflow.exec.WorkItem;
+import com.day.cq.workflow.exec.Workflow;
+import com.day.cq.workflow.exec.WorkflowData;
+import com.day.cq.workflow.metadata.MetaDataMap;
+import com.day.cq.workflow.metadata.SimpleMetaDataMap;
+import com.day.cq.workflow.model.WorkflowNode;
+
+/**
+ * Creates the components under test wired to the in-memory
+ * {@link BenchmarkRepository} and the recording stubs.
+ */
+public final class Fixtures {
+
+    /** The metrics shared by all components, like the OSGi service. */
+    public static final ReplicationMetrics METRICS = new ReplicationMetrics();
+
+    private Fixtures() {
+    }
+
+    /**
+     * Splits the given reference paths evenly over the given number of providers.
+     */
+    public static List<ReferenceProvider> providers(List<String> paths, int providerCount) {
+        List<ReferenceProvider> providers = new ArrayList<ReferenceProvider>(providerCount);
+        for (int i = 0; i < providerCount; i++) {
+            int from = (int) ((long) paths.size() * i / providerCount);
+            int to = (int) ((long) paths.size() * (i + 1) / providerCount);
+            providers.add(new StubReferenceProvider("type" + i, new ArrayList<String>(paths.subList(from, to))));
+        }
+        return providers;
+    }
+
+    public static ReferenceCache newReferenceCache(int size) {
+        ReferenceCache cache = new ReferenceCache();
+        Components.activate(cache, Components.properties(ReferenceCache.PROP_SIZE, size));
+        return cache;
+    }
+
+    /**
+     * @param size the number of cached templates, <code>0</code> disables the cache
+     */
+    public static TemplateCache newTemplateCache(int size) {
+        TemplateCache cache = new TemplateCache();
+        Components.activate(cache, Components.properties(TemplateCache.PROP_SIZE, size));
+        return cache;
+    }
+
+    /**
+     * @param enabled whether the graph indexes the searched resources, it is never persisted
+     */
+    public static ReferenceGraph newReferenceGraph(boolean enabled) {
+        ReferenceGraph graph = new ReferenceGraph();
+        Components.invoke(graph, "activate", null, Components.properties(ReferenceGraph.PROP_ENABLED, enabled));
+        return graph;
+    }
+
+    public static ActivationReferenceSearchImpl newSearch(List<ReferenceProvider> providers, ReferenceCache cache,
+            boolean concurrent) {
+        return newSearch(providers, cache, newReferenceGraph(false), concurrent);
+    }
+
+    public static ActivationReferenceSearchImpl newSearch(List<ReferenceProvider> providers, ReferenceCache cache,
+            ReferenceGraph graph, boolean concurrent) {
+        ActivationReferenceSearchImpl search = new ActivationReferenceSearchImpl();
+        Components.inject(search, "referenceCache", cache);
+        Components.inject(search, "referenceGraph", graph);
+        Components.inject(search, "templateCache", newTemplateCache(100));
+        Components.inject(search, "metrics", METRICS);
+        for (ReferenceProvider provider : providers) {
+            Components.invoke(search, "bindReferenceProviders", provider);
+        }
+        Components.activate(search, Components.properties(ActivationReferenceSearchImpl.PROP_CONCURRENT, concurrent));
+        return search;
+    }
+
+    public static ReplicatePrivilegeEvaluator newPrivilegeEvaluator(long ttl) {
+        ReplicatePrivilegeEvaluator evaluator = new ReplicatePrivilegeEvaluator();
+        Components.activate(evaluator, Components.properties(ReplicatePrivilegeEvaluator.PROP_TTL, ttl));
+        return evaluator;
+    }
+
+    /**
+     * @param highWatermark the queue depth at which the throttle pauses, <code>0</code> disables it
+     */
+    public static ReplicationThrottle newThrottle(int highWatermark) {
+        ReplicationThrottle throttle = new ReplicationThrottle();
+        Components.activate(throttle, Components.properties(ReplicationThrottle.PROP_HIGH_WATERMARK, highWatermark));
+        return throttle;
+    }
+
+    /**
+     * @param enabled whether concurrent replications of the same paths are coalesced, in memory only
+     */
+    public static ReplicationCoalescer newCoalescer(boolean enabled) {
+        ReplicationCoalescer coalescer = new ReplicationCoalescer();
+        Components.inject(coalescer, "slingSettings",
+                Stubs.of(SlingSettingsService.class).returns("getSlingId", "benchmark").build());
+        Components.activate(coalescer, Components.properties(ReplicationCoalescer.PROP_ENABLED, enabled));
+        return coalescer;
+    }
+
+    /**
+     * @param agentIds the ids of the valid default agents
+     */
+    public static ReplicationLanes newLanes(String... agentIds) {
+        final Map<String, Agent> agents = new LinkedHashMap<String, Agent>();
+        AgentConfig config = Stubs.of(AgentConfig.class).returns("isSpecific", false).build();
+        for (String agentId : agentIds) {
+            agents.put(agentId, Stubs.of(Agent.class).returns("getId", agentId).returns("isValid", true)
+                    .returns("getConfiguration", config).build());
+        }
+        ReplicationLanes lanes = new ReplicationLanes();
+        Components.inject(lanes, "agentManager", Stubs.of(AgentManager.class).returns("getAgents", agents).build());
+        Components.activate(lanes, Components.properties());
+        return lanes;
+    }
+
+    public static ReplicationSessionPool newSessionPool(BenchmarkRepository repository) {
+        ReplicationSessionPool pool = new ReplicationSessionPool();
+        Components.inject(pool, "resolverFactory", repository.newResolverFactory());
+        Components.inject(pool, "repository", Stubs.of(SlingRepository.class).build());
+        Components.activate(pool, Components.properties());
+        return pool;
+    }
+
+    public static ReplicatePageProcess newProcess(BenchmarkRepository repository, ActivationReferenceSearchImpl search,
+            ReplicatePrivilegeEvaluator evaluator, Replicator replicator, EventAdmin eventAdmin) {
+        return newProcess(repository, search, evaluator, replicator, eventAdmin, Stubs.of(ResourceCollectionManager.class)
+                .returns("getCollectionsForNode", Collections.<ResourceCollection> emptyList()).build());
+    }
+
+    public static ReplicatePageProcess newProcess(BenchmarkRepository repository, ActivationReferenceSearchImpl search,
+            ReplicatePrivilegeEvaluator evaluator, Replicator replicator, EventAdmin eventAdmin,
+            ResourceCollectionManager rcManager) {
+        ReplicatePageProcess process = new ActivatePageProcess();
+        Components.inject(process, "replicator", replicator);
+        Components.inject(process, "eventAdmin", eventAdmin);
+        Components.inject(process, "rcManager", rcManager);
+        Components.inject(process, "sessionPool", newSessionPool(repository));
+        Components.inject(process, "activationReferenceSearch", search);
+        Components.inject(process, "privilegeEvaluator", evaluator);
+        Components.inject(process, "metrics", METRICS);
+        Components.inject(process, "throttle", newThrottle(0));
+        Components.inject(process, "coalescer", newCoalescer(false));
+        Components.inject(process, "lanes", newLanes());
+        return process;
+    }
+
+    public static WorkflowSession newWorkflowSession(Session session) {
+        return Stubs.of(WorkflowSession.class).returns("getSession", session)
+                .returns("getHistory", Collections.<HistoryItem> emptyList()).build();
+    }
+
+    /**
+     * @param path the payload path
+     * @return a work item of a running workflow with the given payload
+     */
+    public static WorkItem newWorkItem(String path) {
+        WorkflowData data = Stubs.of(WorkflowData.class).returns("getPayload", path)
+                .returns("getPayloadType", ReplicatePageProcess.TYPE_JCR_PATH)
+                .returns("getMetaDataMap", new SimpleMetaDataMap()).build();
+        Workflow workflow = Stubs.of(Workflow.class).returns("getId", "/var/workflow/instances/bench")
+                .returns("getWorkflowData", data).returns("isActive", Boolean.TRUE).build();
+        WorkflowNode node = Stubs.of(WorkflowNode.class).returns("getId", "node1")
+                .returns("getType", WorkflowNode.TYPE_PROCESS).build();
+        return Stubs.of(WorkItem.class).returns("getId", workflow.getId() + "/workItems/node1")
+                .returns("getWorkflow", workflow).returns("getWorkflowData", data).returns("getNode", node)
+                .returns("getMetaDataMap", new SimpleMetaDataMap()).build();
+    }
+
+    /**
+     * @param processArgs the PROCESS_ARGS of the step, e.g. <code>batchSize=100</code>
+     * @return the step's arguments
+     */
+    public static MetaDataMap newArguments(String processArgs) {
+        MetaDataMap args = new SimpleMetaDataMap();
+        if (processArgs != null) {
+            args.put("PROCESS_ARGS", processArgs);
+        }
+        return args;
+    }
+}
@@ -0,0 +1,106 @@
+package com.adobe.support.replication.benchmarks;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Session;
+
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationException;
+import com.day.cq.replication.ReplicationOptions;
+
+/**
+ * A {@link RecordingReplicator} which takes the time of a real replicate call:
+ * a fixed latency per call plus a latency per path, like building and queueing
+ * a content package. It counts how often every path was replicated, paths
+ * replicated more than once were also replicated by a concurrent workflow.
+ */
+public class LatencyReplicator extends RecordingReplicator {
+
+    private final long callMicros;
+
+    private final long pathMicros;
+
+    private final ConcurrentHashMap<String, AtomicInteger> replications = new ConcurrentHashMap<String, AtomicInteger>();
+
+    private final AtomicLong duplicates = new AtomicLong();
+
+    /**
+     * @param callMicros the latency of every call in microseconds
+     * @param pathMicros the additional latency per path in microseconds
+     */
+    public LatencyReplicator(long callMicros, long pathMicros) {
+        this.callMicros = callMicros;
+        this.pathMicros = pathMicros;
+    }
+
+    @Override
+    public void replicate(Session session, ReplicationActionType type, String path) throws ReplicationException {
+        count(path);
+        super.replicate(session, type, path);
+    }
+
+    @Override
+    public void replicate(Session session, ReplicationActionType type, String path, ReplicationOptions options)
+            throws ReplicationException {
+        count(path);
+        super.replicate(session, type, path, options);
+    }
+
+    @Override
+    public void replicate(Session session, ReplicationActionType type, String[] paths, ReplicationOptions options)
+            throws ReplicationException {
+        for (String path : paths) {
+            count(path);
+        }
+        super.replicate(session, type, paths, options);
+    }
+
+    @Override
+    protected void record(int pathCount) throws ReplicationException {
+        super.record(pathCount);
+        try {
+            TimeUnit.MICROSECONDS.sleep(callMicros + pathMicros * pathCount);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ReplicationException("Interrupted while replicating", e);
+        }
+    }
+
+    private void count(String path) {
+        AtomicInteger count = replications.get(path);
+        if (count == null) {
+            count = new AtomicInteger();
+            AtomicInteger existing = replications.putIfAbsent(path, count);
+            if (existing != null) {
+                count = existing;
+            }
+        }
+        if (count.incrementAndGet() > 1) {
+            duplicates.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of distinct replicated paths
+     */
+    public int getDistinctPaths() {
+        return replications.size();
+    }
+
+    /**
+     * @return the number of replications of paths which were replicated before
+     */
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        replications.clear();
+        duplicates.set(0);
+    }
+}
@@ -0,0 +1,235 @@
+package com.adobe.support.replication.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.osgi.service.event.Event;
+
+import com.adobe.granite.workflow.collection.ResourceCollection;
+import com.adobe.granite.workflow.collection.ResourceCollectionManager;
+import com.adobe.support.replication.impl.ActivationReferenceSearchImpl;
+import com.adobe.support.replication.impl.LatencyHistogram;
+import com.adobe.support.replication.impl.ReplicatePageProcess;
+import com.adobe.support.replication.impl.ReplicationMetrics;
+import com.day.cq.wcm.api.reference.ReferenceProvider;
+import com.day.cq.workflow.WorkflowSession;
+import com.day.cq.workflow.metadata.MetaDataMap;
+
+/**
+ * Simulates a publish storm: many concurrent executions of the
+ * {@link com.adobe.support.replication.ActivatePageProcess} against the
+ * in-memory {@link BenchmarkRepository}, with stubs taking the time of a real
+ * replicator, resource collection manager and event admin. Reports the
+ * throughput, the latency percentiles of the executions and how many paths
+ * were replicated more than once.
+ * <p>
+ * The settings are passed as <code>name=value</code> arguments, see
+ * {@link #DEFAULTS}:
+ *
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar com.adobe.support.replication.benchmarks.LoadSimulation \
+ *     executions=1000 threads=200 coalescer=true processArgs=batchSize=100
+ * </pre>
+ */
+public final class LoadSimulation {
+
+    /** The settings with their default values. */
+    private static final Map<String, String> DEFAULTS = new LinkedHashMap<String, String>();
+
+    static {
+        // the synthetic site
+        DEFAULTS.put("pages", "200");
+        DEFAULTS.put("assets", "1000");
+        DEFAULTS.put("fanOut", "20");
+        DEFAULTS.put("stride", "5");
+        DEFAULTS.put("denyEvery", "50");
+        // the load
+        DEFAULTS.put("executions", "500");
+        DEFAULTS.put("threads", "100");
+        DEFAULTS.put("processArgs", "batchSize=100");
+        DEFAULTS.put("coalescer", "false");
+        // the latencies in microseconds
+        DEFAULTS.put("replicateMicros", "20000");
+        DEFAULTS.put("pathMicros", "200");
+        DEFAULTS.put("collectionMicros", "1000");
+        DEFAULTS.put("eventMicros", "100");
+    }
+
+    private LoadSimulation() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("org.slf4j.simpleLogger.defaultLogLevel") == null) {
+            // the process logs every execution
+            System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+        }
+        Map<String, String> settings = new LinkedHashMap<String, String>(DEFAULTS);
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0 || !DEFAULTS.containsKey(arg.substring(0, eq))) {
+                System.err.println("Unknown setting " + arg + ", known settings and defaults: " + DEFAULTS);
+                System.exit(1);
+            }
+            settings.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        System.out.println("Settings: " + settings);
+        new Simulation(settings).run();
+    }
+
+    private static final class Simulation {
+
+        private final Map<String, String> settings;
+
+        private final BenchmarkRepository repository;
+
+        private final LatencyReplicator replicator;
+
+        private final CountingEventAdmin eventAdmin;
+
+        private final ActivationReferenceSearchImpl search;
+
+        private final ReplicatePageProcess process;
+
+        private final WorkflowSession workflowSession;
+
+        private final LatencyHistogram latencies = new LatencyHistogram();
+
+        private final AtomicInteger failures = new AtomicInteger();
+
+        /** the number of failed executions per exception type */
+        private final ConcurrentHashMap<String, AtomicInteger> failureTypes =
+                new ConcurrentHashMap<String, AtomicInteger>();
+
+        private final AtomicReference<String> firstFailure = new AtomicReference<String>();
+
+        Simulation(Map<String, String> settings) throws Exception {
+            this.settings = settings;
+            repository = new BenchmarkRepository(getInt("pages"), getInt("assets"), getInt("denyEvery"));
+            List<ReferenceProvider> providers = Collections.<ReferenceProvider> singletonList(
+                    new FanOutReferenceProvider(repository.getPages(), repository.getAssets(), getInt("fanOut"),
+                            getInt("stride")));
+            search = Fixtures.newSearch(providers, Fixtures.newReferenceCache(0), false);
+            replicator = new LatencyReplicator(getInt("replicateMicros"), getInt("pathMicros"));
+            final long eventMicros = getInt("eventMicros");
+            eventAdmin = new CountingEventAdmin() {
+                @Override
+                public void sendEvent(Event event) {
+                    pause(eventMicros);
+                    super.sendEvent(event);
+                }
+            };
+            final long collectionMicros = getInt("collectionMicros");
+            ResourceCollectionManager rcManager = Stubs.of(ResourceCollectionManager.class)
+                    .on("getCollectionsForNode", new Stubs.Answer() {
+                        public Object answer(Object[] args) {
+                            pause(collectionMicros);
+                            return Collections.<ResourceCollection> emptyList();
+                        }
+                    }).build();
+            process = Fixtures.newProcess(repository, search, Fixtures.newPrivilegeEvaluator(0), replicator, eventAdmin,
+                    rcManager);
+            Components.inject(process, "coalescer", Fixtures.newCoalescer(Boolean.parseBoolean(settings.get("coalescer"))));
+            workflowSession = Fixtures.newWorkflowSession(repository.getSession());
+        }
+
+        void run() throws InterruptedException {
+            final int executions = getInt("executions");
+            final List<String> pages = repository.getPages();
+            final MetaDataMap args = Fixtures.newArguments(settings.get("processArgs"));
+            ExecutorService pool = Executors.newFixedThreadPool(getInt("threads"));
+            final CountDownLatch done = new CountDownLatch(executions);
+            Fixtures.METRICS.reset();
+            long start = System.nanoTime();
+            for (int i = 0; i < executions; i++) {
+                final String page = pages.get(i % pages.size());
+                pool.execute(new Runnable() {
+                    public void run() {
+                        long executionStart = System.nanoTime();
+                        try {
+                            process.execute(Fixtures.newWorkItem(page), workflowSession, args);
+                        } catch (Exception e) {
+                            failed(e);
+                        } finally {
+                            latencies.record(System.nanoTime() - executionStart);
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            done.await();
+            long elapsed = System.nanoTime() - start;
+            pool.shutdown();
+            Components.invoke(search, "deactivate");
+            report(executions, elapsed);
+        }
+
+        private void failed(Exception e) {
+            failures.incrementAndGet();
+            String type = e.getClass().getSimpleName();
+            AtomicInteger count = failureTypes.get(type);
+            if (count == null) {
+                AtomicInteger existing = failureTypes.putIfAbsent(type, count = new AtomicInteger());
+                if (existing != null) {
+                    count = existing;
+                }
+            }
+            count.incrementAndGet();
+            firstFailure.compareAndSet(null, e.toString());
+        }
+
+        private void report(int executions, long elapsed) {
+            double seconds = elapsed / 1e9;
+            ReplicationMetrics metrics = Fixtures.METRICS;
+            System.out.printf("Executions: %d in %.2fs, %d failed%n", executions, seconds, failures.get());
+            if (firstFailure.get() != null) {
+                System.out.println("Failures by type: " + failureTypes + ", first: " + firstFailure.get());
+            }
+            System.out.printf("Throughput: %.1f executions/s, %.1f replicated paths/s%n", executions / seconds,
+                    replicator.getPaths() / seconds);
+            System.out.printf("Latency ms: p50=%.1f p90=%.1f p99=%.1f max=%.1f%n", millis(latencies.getPercentile(0.5)),
+                    millis(latencies.getPercentile(0.9)), millis(latencies.getPercentile(0.99)),
+                    millis(latencies.getMax()));
+            System.out.printf("Replicate calls: %d, replicated paths: %d, distinct paths: %d, duplicates: %d%n",
+                    replicator.getCalls(), replicator.getPaths(), replicator.getDistinctPaths(),
+                    replicator.getDuplicates());
+            System.out.printf("Paths discovered: %d, up to date: %d, denied: %d, coalesced: %d%n",
+                    metrics.getPathsDiscovered(), metrics.getPathsUpToDate(), metrics.getPathsDenied(),
+                    metrics.getPathsCoalesced());
+            System.out.printf("Events sent: %d, posted: %d%n", eventAdmin.getSent(), eventAdmin.getPosted());
+            List<String> phases = new ArrayList<String>();
+            Collections.addAll(phases, metrics.getPhaseTimings());
+            for (String phase : phases) {
+                System.out.println("Phase " + phase);
+            }
+        }
+
+        private int getInt(String name) {
+            return Integer.parseInt(settings.get(name));
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static void pause(long micros) {
+        if (micros <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.MICROSECONDS.sleep(micros);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.adobe.support.replication.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Session;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.adobe.support.replication.impl.ReplicatePrivilegeEvaluator;
+
+/**
+ * Measures the replicate privilege checks of the collected paths, once per
+ * path and once as batch, with and without result caching.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrivilegeBenchmark {
+
+    @Param({ "100", "10000" })
+    public int paths;
+
+    @Param({ "0", "5000" })
+    public long ttl;
+
+    private ReplicatePrivilegeEvaluator evaluator;
+
+    private Session session;
+
+    private List<String> input;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkRepository repository = new BenchmarkRepository(0, paths, 10);
+        evaluator = Fixtures.newPrivilegeEvaluator(ttl);
+        session = repository.getSession();
+        input = repository.getAssets();
+    }
+
+    @Benchmark
+    public boolean[] batch() {
+        return evaluator.canReplicate(session, input);
+    }
+
+    @Benchmark
+    public void perPath(Blackhole blackhole) {
+        for (String path : input) {
+            blackhole.consume(evaluator.canReplicate(session, path));
+        }
+    }
+}
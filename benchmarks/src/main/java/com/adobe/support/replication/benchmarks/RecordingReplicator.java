@@ -0,0 +1,74 @@
+package com.adobe.support.replication.benchmarks;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Session;
+
+import com.day.cq.replication.ReplicationAction;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationContentFilter;
+import com.day.cq.replication.ReplicationException;
+import com.day.cq.replication.ReplicationOptions;
+import com.day.cq.replication.ReplicationStatus;
+import com.day.cq.replication.Replicator;
+
+/**
+ * A {@link Replicator} which only counts the replicate calls and paths.
+ */
+public class RecordingReplicator implements Replicator {
+
+    private final AtomicLong calls = new AtomicLong();
+
+    private final AtomicLong paths = new AtomicLong();
+
+    public void replicate(Session session, ReplicationActionType type, String path) throws ReplicationException {
+        record(1);
+    }
+
+    public void replicate(Session session, ReplicationActionType type, String path, ReplicationOptions options)
+            throws ReplicationException {
+        record(1);
+    }
+
+    public void replicate(Session session, ReplicationActionType type, String[] paths, ReplicationOptions options)
+            throws ReplicationException {
+        record(paths.length);
+    }
+
+    public void checkPermission(Session session, ReplicationActionType type, String path) {
+    }
+
+    public ReplicationStatus getReplicationStatus(Session session, String path) {
+        return null;
+    }
+
+    public Iterator<String> getActivatedPaths(Session session, String path) {
+        return Collections.<String> emptyList().iterator();
+    }
+
+    @Deprecated
+    public List<ReplicationContentFilter> createContentFilterChain(ReplicationAction action) {
+        return Collections.emptyList();
+    }
+
+    protected void record(int pathCount) throws ReplicationException {
+        calls.incrementAndGet();
+        paths.addAndGet(pathCount);
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getPaths() {
+        return paths.get();
+    }
+
+    public void reset() {
+        calls.set(0);
+        paths.set(0);
+    }
+}
@@ -0,0 +1,74 @@
+package com.adobe.support.replication.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sling.api.resource.ResourceResolver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.adobe.support.replication.impl.ActivationReferenceSearchImpl;
+
+/**
+ * Measures {@link ActivationReferenceSearchImpl#search(String[], ResourceResolver)}
+ * for a single page whose references are spread over several providers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReferenceSearchBenchmark {
+
+    @Param({ "1", "10", "50" })
+    public int providers;
+
+    @Param({ "10", "1000", "100000" })
+    public int references;
+
+    @Param({ "false", "true" })
+    public boolean concurrent;
+
+    @Param({ "0", "1000" })
+    public int cacheSize;
+
+    @Param({ "false", "true" })
+    public boolean graph;
+
+    private ActivationReferenceSearchImpl search;
+
+    private ResourceResolver resolver;
+
+    private String[] payload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkRepository repository = new BenchmarkRepository(1, references, 0);
+        search = Fixtures.newSearch(Fixtures.providers(repository.getAssets(), providers),
+                Fixtures.newReferenceCache(cacheSize), Fixtures.newReferenceGraph(graph), concurrent);
+        resolver = repository.newResolver();
+        payload = new String[] { repository.getPages().get(0) };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Components.invoke(search, "deactivate");
+    }
+
+    @Benchmark
+    public List<String> search() {
+        return search.search(payload, resolver);
+    }
+}
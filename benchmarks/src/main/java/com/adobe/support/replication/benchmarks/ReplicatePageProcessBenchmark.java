@@ -0,0 +1,77 @@
+package com.adobe.support.replication.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.adobe.support.replication.impl.ActivationReferenceSearchImpl;
+import com.adobe.support.replication.impl.ReplicatePageProcess;
+import com.day.cq.workflow.WorkflowException;
+import com.day.cq.workflow.WorkflowSession;
+import com.day.cq.workflow.exec.WorkItem;
+import com.day.cq.workflow.metadata.MetaDataMap;
+
+/**
+ * Measures a full {@link ReplicatePageProcess#execute(WorkItem, WorkflowSession, MetaDataMap)}
+ * of a page with references: reference search, privilege checks, events for
+ * the denied paths and the replicate calls on a recording replicator.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReplicatePageProcessBenchmark {
+
+    @Param({ "10", "300", "3000" })
+    public int references;
+
+    @Param({ "batchSize=1", "batchSize=100", "batchSize=100,deniedEvents=aggregated", "batchSize=100,pipeline=true",
+            "batchSize=100,delta=fingerprint" })
+    public String processArgs;
+
+    private ActivationReferenceSearchImpl search;
+
+    private ReplicatePageProcess process;
+
+    private WorkItem workItem;
+
+    private WorkflowSession workflowSession;
+
+    private MetaDataMap args;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkRepository repository = new BenchmarkRepository(1, references, 20);
+        search = Fixtures.newSearch(Fixtures.providers(repository.getAssets(), 4), Fixtures.newReferenceCache(0),
+                false);
+        process = Fixtures.newProcess(repository, search, Fixtures.newPrivilegeEvaluator(0),
+                new RecordingReplicator(), new CountingEventAdmin());
+        workItem = Fixtures.newWorkItem(repository.getPages().get(0));
+        workflowSession = Fixtures.newWorkflowSession(repository.getSession());
+        args = Fixtures.newArguments(processArgs);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Components.invoke(search, "deactivate");
+    }
+
+    @Benchmark
+    public void execute() throws WorkflowException {
+        process.execute(workItem, workflowSession, args);
+    }
+}
@@ -0,0 +1,39 @@
+package com.adobe.support.replication.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+
+import com.day.cq.wcm.api.reference.Reference;
+import com.day.cq.wcm.api.reference.ReferenceProvider;
+
+/**
+ * A {@link ReferenceProvider} returning a fixed list of references for every
+ * searched resource, resolved with the resolver of the searched resource like
+ * the product providers do.
+ */
+public class StubReferenceProvider implements ReferenceProvider {
+
+    private final String type;
+
+    private final List<String> paths;
+
+    public StubReferenceProvider(String type, List<String> paths) {
+        this.type = type;
+        this.paths = paths;
+    }
+
+    public List<Reference> findReferences(Resource resource) {
+        ResourceResolver resolver = resource.getResourceResolver();
+        List<Reference> references = new ArrayList<Reference>(paths.size());
+        for (String path : paths) {
+            Resource r = resolver.getResource(path);
+            if (r != null) {
+                references.add(new Reference(type, r.getName(), r, 0));
+            }
+        }
+        return references;
+    }
+}
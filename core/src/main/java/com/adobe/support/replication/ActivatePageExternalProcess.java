@@ -0,0 +1,27 @@
+package com.adobe.support.replication;
+
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+
+import com.adobe.support.replication.impl.ReplicatePageExternalProcess;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.workflow.exec.WorkflowExternalProcess;
+
+/**
+ * <code>ActivatePageExternalProcess</code>
+ * Asynchronous process for Replications of type <i>activate</i>, to be used
+ * in an external process step.
+ *
+ * @see ReplicatePageExternalProcess
+ */
+@Component
+@Service(WorkflowExternalProcess.class)
+@Property(name = "process.label", value = "Activate Page w/ References (async)")
+public class ActivatePageExternalProcess extends ReplicatePageExternalProcess {
+
+    public ReplicationActionType getReplicationType() {
+        return ReplicationActionType.ACTIVATE;
+    }
+}
@@ -1,5 +1,6 @@
 package com.adobe.support.replication;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
@@ -9,4 +10,78 @@ public interface ActivationReferenceSearch {
 
 	Collection<? extends String> search(String[] paths, ResourceResolver resolver);
 
-}
\ No newline at end of file
+	/**
+	 * Searches the references of the given paths and the references of the found
+	 * references, breadth first, up to the given depth. Every resource is
+	 * searched at most once.
+	 * <p>
+	 * The default implementation only returns the direct references found by
+	 * {@link #search(String[], ResourceResolver)}, limited to
+	 * <code>maxNodes</code>, so existing implementations keep working.
+	 *
+	 * @param paths the paths to search
+	 * @param resolver the resolver used to read the content
+	 * @param maxDepth the number of reference levels to follow, <code>1</code>
+	 *            only returns the direct references of the given paths
+	 * @param maxNodes the maximum number of references to collect, the search
+	 *            stops once this number is reached
+	 * @return the paths of the references which need to be published
+	 */
+	default Collection<? extends String> search(String[] paths, ResourceResolver resolver, int maxDepth,
+			int maxNodes) {
+		Collection<? extends String> found = search(paths, resolver);
+		if (found == null || found.size() <= maxNodes) {
+			return found;
+		}
+		List<String> limited = new ArrayList<String>(maxNodes);
+		for (String path : found) {
+			if (limited.size() == maxNodes) {
+				break;
+			}
+			limited.add(path);
+		}
+		return limited;
+	}
+
+	/**
+	 * Streaming variant of {@link #search(String[], ResourceResolver, int, int)}.
+	 * Instead of collecting all references the paths which need to be published
+	 * are passed to the handler as soon as a slice of resources was searched,
+	 * so the caller can start publishing before the search finished. The paths
+	 * are passed in the order they were found, every path at most once.
+	 * <p>
+	 * The default implementation passes all paths found by
+	 * {@link #search(String[], ResourceResolver, int, int)} in a single call.
+	 *
+	 * @param paths the paths to search
+	 * @param resolver the resolver used to read the content
+	 * @param maxDepth the number of reference levels to follow
+	 * @param maxNodes the maximum number of references to collect
+	 * @param handler the handler receiving the found paths
+	 * @return the number of paths passed to the handler
+	 */
+	default int search(String[] paths, ResourceResolver resolver, int maxDepth, int maxNodes,
+			ReferenceHandler handler) {
+		Collection<? extends String> found = search(paths, resolver, maxDepth, maxNodes);
+		if (found == null || found.isEmpty()) {
+			return 0;
+		}
+		List<String> list = new ArrayList<String>(found);
+		handler.handle(list);
+		return list.size();
+	}
+
+	/**
+	 * Receives the paths found by a streaming search.
+	 */
+	interface ReferenceHandler {
+
+		/**
+		 * @param paths the paths of references which need to be published, only
+		 *            valid during the call
+		 * @return <code>false</code> to stop the search
+		 */
+		boolean handle(List<String> paths);
+	}
+
+}
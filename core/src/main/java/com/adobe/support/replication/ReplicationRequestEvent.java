@@ -0,0 +1,32 @@
+package com.adobe.support.replication;
+
+/**
+ * Constants of the aggregated event the activation workflow steps post for
+ * the paths the workflow user may not replicate, if the step is configured
+ * with <code>deniedEvents=aggregated</code>. It replaces the events of topic
+ * {@link com.day.cq.wcm.workflow.api.WcmWorkflowService#EVENT_TOPIC}, which
+ * are sent synchronously for every single path.
+ * <p>
+ * One event carries up to {@value #MAX_PATHS} paths and is delivered
+ * asynchronously.
+ */
+public final class ReplicationRequestEvent {
+
+	/** The topic of the event. */
+	public static final String TOPIC = "com/adobe/support/replication/REPLICATION_REQUESTED";
+
+	/** Property holding the denied paths as <code>String[]</code>. */
+	public static final String PROPERTY_PATHS = "paths";
+
+	/** Property holding the {@link com.day.cq.replication.ReplicationActionType}. */
+	public static final String PROPERTY_REPLICATION_TYPE = "replicationType";
+
+	/** Property holding the id of the workflow user. */
+	public static final String PROPERTY_USER_ID = "userId";
+
+	/** Maximum number of paths carried by a single event. */
+	public static final int MAX_PATHS = 1000;
+
+	private ReplicationRequestEvent() {
+	}
+}
@@ -0,0 +1,545 @@
+package com.adobe.support.replication.impl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+import javax.jcr.AccessDeniedException;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.json.JSONException;
+import org.apache.sling.commons.json.JSONObject;
+import org.osgi.service.event.EventAdmin;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adobe.granite.workflow.collection.ResourceCollection;
+import com.adobe.granite.workflow.collection.ResourceCollectionManager;
+import com.adobe.support.replication.ActivationReferenceSearch;
+import com.adobe.support.replication.ActivationReferenceSearch.ReferenceHandler;
+import com.adobe.support.replication.impl.ReplicationMetrics.Phase;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationException;
+import com.day.cq.replication.ReplicationListener;
+import com.day.cq.replication.ReplicationOptions;
+import com.day.cq.replication.Replicator;
+import com.day.cq.wcm.workflow.process.ResourceCollectionHelper;
+import com.day.cq.workflow.WorkflowException;
+import com.day.cq.workflow.WorkflowSession;
+import com.day.cq.workflow.exec.HistoryItem;
+import com.day.cq.workflow.exec.WorkItem;
+import com.day.cq.workflow.exec.WorkflowData;
+import com.day.cq.workflow.metadata.MetaDataMap;
+import com.day.cq.workflow.model.WorkflowNode;
+
+/**
+ * The <code>AbstractReplicatePageProcess</code> holds the logic shared by the
+ * blocking {@link ReplicatePageProcess} and the asynchronous
+ * {@link ReplicatePageExternalProcess}: resolving the payload and the
+ * participant, reading the process arguments and searching the references.
+ * Both steps support the same process arguments, see
+ * {@link ReplicatePageProcess}.
+ * <p>
+ * An execution of a step is handed to collaborators serving that execution
+ * only: the {@link PlannedReplication} collects and plans all paths before
+ * replicating them, or resumes the plan of a failed run, the
+ * {@link PipelinedReplication} replicates the references while they are
+ * searched. Both check the replicate privilege with the
+ * {@link DeniedPathRequests} and call the replicator through the
+ * {@link PathReplicator}.
+ */
+@Component(componentAbstract = true)
+public abstract class AbstractReplicatePageProcess {
+    /**
+     * the logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(AbstractReplicatePageProcess.class);
+
+    public static final String TYPE_JCR_PATH = "JCR_PATH";
+    public static final String TYPE_JCR_UUID = "JCR_UUID";
+
+    /** Value of the deniedEvents argument selecting the aggregated events. */
+    static final String DENIED_EVENTS_AGGREGATED = "aggregated";
+
+    /** Value of the overBudget argument pausing the step for approval. */
+    static final String OVER_BUDGET_PAUSE = "pause";
+
+    /** Value of the overBudget argument splitting the plan into batches. */
+    static final String OVER_BUDGET_SPLIT = "split";
+
+    /** Default minimum time in milliseconds between the starts of two budget batches. */
+    static final long DEFAULT_BATCH_INTERVAL = 60 * 1000L;
+
+    /** Number of payload paths passed to a single reference search. */
+    static final int SEARCH_SLICE_SIZE = 250;
+
+    /** Suffix of the content node of a page or asset. */
+    private static final String CONTENT_SUFFIX = "/" + JcrConstants.JCR_CONTENT;
+
+    @Reference
+    protected Replicator replicator;
+
+    @Reference
+    protected EventAdmin eventAdmin;
+
+    @Reference
+    protected ResourceCollectionManager rcManager;
+
+    @Reference
+    protected ReplicationSessionPool sessionPool;
+
+    @Reference
+    ActivationReferenceSearch activationReferenceSearch;
+
+    @Reference
+    protected ReplicatePrivilegeEvaluator privilegeEvaluator;
+
+    @Reference
+    protected ReplicationMetrics metrics;
+
+    @Reference
+    protected ReplicationThrottle throttle;
+
+    @Reference
+    protected ReplicationCoalescer coalescer;
+
+    @Reference
+    protected ReplicationLanes lanes;
+
+    enum Arguments {
+        PROCESS_ARGS("PROCESS_ARGS"),
+        REPLICATE_AS_PARTICIPANT("replicateAsParticipant"),
+        BATCH_SIZE("batchSize"),
+        BATCH_MAX_BYTES("batchMaxBytes"),
+        BATCH_ISOLATE_BYTES("batchIsolateBytes"),
+        PAYLOAD_FIRST("payloadFirst"),
+        AGENT_LANES("agentLanes"),
+        REFERENCE_DEPTH("referenceDepth"),
+        MAX_REFERENCES("maxReferences"),
+        DENIED_EVENTS("deniedEvents"),
+        PIPELINE("pipeline"),
+        DELTA("delta"),
+        DRY_RUN("dryRun"),
+        BUDGET_PATHS("budgetPaths"),
+        BUDGET_BYTES("budgetBytes"),
+        OVER_BUDGET("overBudget"),
+        BATCH_INTERVAL("batchInterval");
+
+        private String argumentName;
+
+        Arguments(String argumentName) {
+            this.argumentName = argumentName;
+        }
+
+        public String getArgumentName() {
+            return this.argumentName;
+        }
+    }
+
+    /**
+     * Resolves the path of the work item's payload.
+     *
+     * @param workItem the work item
+     * @param session the workflow session's JCR session
+     * @return the path or <code>null</code> if the payload does not exist
+     * @throws RepositoryException if the payload cannot be read
+     */
+    protected String getPayloadPath(WorkItem workItem, Session session) throws RepositoryException {
+        WorkflowData data = workItem.getWorkflowData();
+        String path = null;
+        String type = data.getPayloadType();
+
+        if (type.equals(TYPE_JCR_PATH) && data.getPayload() != null) {
+            String payloadData = (String) data.getPayload();
+            if (session.itemExists(payloadData)) {
+                path = payloadData;
+            }
+        } else if (data.getPayload() != null && type.equals(TYPE_JCR_UUID)) {
+            Node node = session.getNodeByUUID((String) data.getPayload());
+            path = node.getPath();
+        }
+        return path;
+    }
+
+    /**
+     * @param workItem the work item
+     * @return the id of the workflow node of the work item, identifying the step
+     *         within the workflow
+     */
+    protected String getStepId(WorkItem workItem) {
+        WorkflowNode node = workItem.getNode();
+        return node != null && node.getId() != null ? node.getId() : "default";
+    }
+
+    /**
+     * Reads the version labels stored by the "Create Version" step in the
+     * <code>versions</code> metadata of the workflow.
+     *
+     * @param workItem the work item
+     * @return the version labels by path, never <code>null</code>
+     * @throws JSONException if the metadata is malformed
+     */
+    protected Map<String, String> getVersionMap(WorkItem workItem) throws JSONException {
+        WorkflowData data = workItem.getWorkflowData();
+        MetaDataMap metaDataMap = data.getMetaDataMap();
+        Map<String, String> versionMap = new HashMap<String, String>();
+
+        if (metaDataMap.containsKey("versions")) {
+            JSONObject versionJs = new JSONObject(data.getMetaDataMap().get("versions", String.class));
+            Iterator iterator = versionJs.keys();
+
+            while (iterator.hasNext()) {
+                String key = (String)iterator.next();
+                versionMap.put(key, (String)versionJs.get(key));
+            }
+        }
+        return versionMap;
+    }
+
+    /**
+     * Collects the paths of the payload, its references and resource
+     * collections, requests replication of the paths the session may not
+     * replicate and replicates all others. If the given progress holds the
+     * paths planned by an earlier, failed run, only the paths not replicated
+     * by that run are replicated.
+     *
+     * @param path the payload path
+     * @param versionMap Map of available version labels
+     * @param replicationSession the session used to replicate
+     * @param userId the id of the workflow user, reported in the events for denied paths
+     * @param args The process arguments
+     * @param listener listener set on all replication options or <code>null</code>
+     * @param progress the progress of the step
+     * @return the fingerprints of the replicated paths, to be stored with
+     *         {@link #storeFingerprints(Map)} once the replication succeeded
+     * @throws WorkflowException if the paths cannot be collected or replicated
+     */
+    protected Map<String, String> replicate(String path, Map<String, String> versionMap, Session replicationSession,
+            String userId, MetaDataMap args, ReplicationListener listener, ReplicationProgress progress)
+            throws WorkflowException {
+        ResourceResolver resolver = null;
+        ResourceResolver stateResolver = null;
+        try {
+            long start = metrics.start();
+            resolver = sessionPool.getServiceResolver();
+            metrics.record(Phase.SERVICE_LOGIN, start);
+
+            Session serviceSession = resolver.adaptTo(Session.class);
+            String deltaMode = getArgument(args, Arguments.DELTA);
+            if (DeltaFilter.isFingerprint(deltaMode)) {
+                stateResolver = openStateResolver();
+            }
+            DeltaFilter delta = new DeltaFilter(resolver, stateResolver, deltaMode);
+            PathReplicator paths = new PathReplicator(this, replicationSession, resolver, versionMap, args, listener,
+                    progress);
+            DeniedPathRequests denied = new DeniedPathRequests(this, replicationSession, userId, args);
+            PlannedReplication plan = new PlannedReplication(this, paths, denied, resolver, versionMap, args,
+                    progress, delta);
+            if (progress.hasPlan()) {
+                plan.resume(path, getPayloadPaths(path, serviceSession));
+            } else if (Boolean.parseBoolean(getArgument(args, Arguments.PIPELINE)) && !plan.isEstimated()) {
+                new PipelinedReplication(this, paths, denied, resolver, args, progress, delta)
+                        .replicate(getPayloadPaths(path, serviceSession));
+            } else {
+                plan.replicate(path, getPayloadPaths(path, serviceSession));
+            }
+            if (delta.getSkipped() > 0) {
+                log.info("Skipped {} paths of {} unchanged since their last activation", delta.getSkipped(), path);
+                metrics.pathsSkipped(delta.getSkipped());
+            }
+            return delta.getReplicatedFingerprints();
+        } catch (RepositoryException e) {
+            throw new WorkflowException(e);
+        } catch (ReplicationException e) {
+            throw new WorkflowException(e);
+        } catch (LoginException e) {
+			throw new WorkflowException(e);
+		} finally {
+            if (stateResolver != null) {
+                stateResolver.close();
+            }
+            sessionPool.release(resolver);
+        }
+    }
+
+    /**
+     * Stores the fingerprints returned by a successful replication, see
+     * {@link DeltaFilter}.
+     *
+     * @param fingerprints the fingerprints by path
+     */
+    protected void storeFingerprints(Map<String, String> fingerprints) {
+        if (fingerprints.isEmpty()) {
+            return;
+        }
+        ResourceResolver stateResolver = openStateResolver();
+        if (stateResolver != null) {
+            try {
+                DeltaFilter.storeFingerprints(stateResolver, fingerprints);
+            } finally {
+                stateResolver.close();
+            }
+        }
+    }
+
+    /**
+     * @return a resolver of the <code>replication-state</code> service user or
+     *         <code>null</code> if it cannot log in
+     */
+    private ResourceResolver openStateResolver() {
+        try {
+            return sessionPool.openStateResolver();
+        } catch (LoginException e) {
+            log.warn("Cannot open the replication state, fingerprints are neither compared nor stored: {}",
+                    e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Resolves the paths of the payload, e.g. all pages of a workflow package.
+     *
+     * @return the payload paths, at least the given path
+     */
+    List<String> getPayloadPaths(String path, Session serviceSession) throws RepositoryException {
+        // check for resource collection
+        log.info(serviceSession.getUserID());
+        long start = metrics.start();
+        List<ResourceCollection> rcCollections = rcManager.getCollectionsForNode((Node) serviceSession.getItem(path));
+        metrics.record(Phase.COLLECTIONS, start);
+
+        // get list of paths to replicate (no resource collection: size
+        // == 1
+        // otherwise size >= 1
+        List<String> rcPaths = ResourceCollectionHelper.getPaths(path, rcCollections);
+        if (rcPaths == null || rcPaths.isEmpty()) {
+            rcPaths = Collections.singletonList(path);
+        }
+        return rcPaths;
+    }
+
+    /**
+     * Searches the references of all payload paths, e.g. all pages of a
+     * workflow package, with the streaming search. The paths are searched in
+     * slices of {@value #SEARCH_SLICE_SIZE}, so only the references of one
+     * slice are held by the search. References shared by several slices are
+     * handed over once per slice.
+     *
+     * @param payloadPaths the payload paths
+     * @param resolver the service resolver
+     * @param args the process arguments holding the reference depth and limit
+     * @param handler the handler receiving the found references
+     */
+    void searchReferences(List<String> payloadPaths, ResourceResolver resolver, MetaDataMap args,
+            PathHandler handler) {
+        int referenceDepth = getIntArgument(args, Arguments.REFERENCE_DEPTH, 1);
+        int maxReferences = getIntArgument(args, Arguments.MAX_REFERENCES, Integer.MAX_VALUE);
+        int found = 0;
+        for (int from = 0; from < payloadPaths.size() && !handler.stopped; from += SEARCH_SLICE_SIZE) {
+            int remaining = maxReferences - found;
+            if (remaining <= 0) {
+                log.warn("Reference search for {} stopped after {} references", payloadPaths.get(0), maxReferences);
+                break;
+            }
+            List<String> slice = payloadPaths.subList(from, Math.min(payloadPaths.size(), from + SEARCH_SLICE_SIZE));
+            found += activationReferenceSearch.search(slice.toArray(new String[slice.size()]), resolver,
+                    referenceDepth, remaining, handler);
+        }
+    }
+
+    /**
+     * Returns the latest version for the given resource path
+     *
+     * @param path Path to the resource
+     * @param versionMap Map of available version labels
+     * @return
+     */
+    static String getVersionLabel(String path, Map<String, String> versionMap) {
+        if (StringUtils.isEmpty(path) || versionMap.isEmpty()) {
+            return null;
+        }
+
+        if (versionMap.containsKey(path)) {
+            return versionMap.get(path);
+        }
+
+        if (!path.endsWith(CONTENT_SUFFIX)) {
+            path = path.concat(CONTENT_SUFFIX);
+        }
+
+        return versionMap.get(path);
+    }
+
+    /**
+     * Determine the replication mode from the arguments map.
+     *
+     * @param args The process arguments
+     * @return Depending on the process arguments <code>true</code> if the replication is supposed to take place under
+     *         the participants context, <code>false</code> otherwise.
+     */
+    protected boolean replicateAsParticipant(MetaDataMap args) {
+        String value = getArgument(args, Arguments.REPLICATE_AS_PARTICIPANT);
+        return value != null && Boolean.parseBoolean(value);
+    }
+
+    /**
+     * Reads a process argument either from the generic PROCESS_ARGS argument
+     * (<code>key1=value1,key2=value2</code>) or, if PROCESS_ARGS is not set, from
+     * the dedicated argument.
+     *
+     * @param args The process arguments
+     * @param argument The argument to read
+     * @return the argument's value or <code>null</code> if not set
+     */
+    String getArgument(MetaDataMap args, Arguments argument) {
+        String processArgs = args.get(Arguments.PROCESS_ARGS.getArgumentName(), String.class);
+        if (processArgs != null && !processArgs.equals("")) {
+            String[] arguments = processArgs.split(",");
+            for (String arg : arguments) {
+                String[] split = arg.split("=");
+                if (split.length == 2) {
+                    String key = split[0].trim();
+                    String value = split[1].trim();
+                    if (key.equalsIgnoreCase(argument.getArgumentName())) {
+                        return value;
+                    }
+                }
+            }
+            return null;
+        } else {
+            Object value = args.get(argument.getArgumentName());
+            return value != null ? value.toString() : null;
+        }
+    }
+
+    int getIntArgument(MetaDataMap args, Arguments argument, int defaultValue) {
+        return (int) getLongArgument(args, argument, defaultValue);
+    }
+
+    long getLongArgument(MetaDataMap args, Arguments argument, long defaultValue) {
+        String value = getArgument(args, argument);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid value '{}' for process argument {}", value, argument.getArgumentName());
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Copies the process arguments, with the generic PROCESS_ARGS argument
+     * resolved into the dedicated arguments.
+     *
+     * @param args The process arguments
+     * @return an immutable copy, see {@link ProcessArguments}
+     */
+    MetaDataMap copyArguments(MetaDataMap args) {
+        Map<String, Object> values = new HashMap<String, Object>();
+        for (Arguments argument : Arguments.values()) {
+            String value = argument != Arguments.PROCESS_ARGS ? getArgument(args, argument) : null;
+            if (value != null) {
+                values.put(argument.getArgumentName(), value);
+            }
+        }
+        return new ProcessArguments(values);
+    }
+
+    /**
+     * Get a session for the given approver from the {@link ReplicationSessionPool}.
+     * It must be given back with {@link #releaseParticipantSession(Session)}.
+     *
+     * @param participantId
+     * @param workflowSession
+     * @return The approver's session or <code>null</code> in case of repository exceptions.
+     */
+
+    protected Session getParticipantSession(String participantId, WorkflowSession workflowSession) {
+        try {
+            return sessionPool.getSession(participantId);
+        } catch (Exception e) {
+            log.warn(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Gives back a session returned by {@link #getParticipantSession(String, WorkflowSession)}.
+     *
+     * @param session the session, may be <code>null</code>
+     */
+    protected void releaseParticipantSession(Session session) {
+        sessionPool.release(session);
+    }
+
+    /**
+     * Travael up the session's history to find the latest participant step or dynamic participant step and use it's
+     * current assignee as approver.
+     *
+     * @param workItem
+     * @param workflowSession
+     * @return The approver's id of the latest participant/dynamic participant step in the history. In case there is no
+     *         participant step, <code>null</code> is returned.
+     */
+    protected String resolveParticipantId(WorkItem workItem, WorkflowSession workflowSession) {
+        try {
+            List<HistoryItem> history = workflowSession.getHistory(workItem.getWorkflow());
+            for (ListIterator<HistoryItem> it = history.listIterator(history.size()); it.hasPrevious();) {
+                HistoryItem previous = it.previous();
+                String type = previous.getWorkItem().getNode().getType();
+                if (type != null && (type.equals(WorkflowNode.TYPE_PARTICIPANT) || type.equals(WorkflowNode.TYPE_DYNAMIC_PARTICIPANT))) {
+                    return previous.getUserId();
+                }
+            }
+            return null;
+        } catch (Exception e) {
+            log.warn(e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Specifies the <code>{@link ReplicationActionType}</code> for which this
+     * class is designed for.
+     *
+     * @return <code>{@link ReplicationActionType}</code>
+     */
+    public abstract ReplicationActionType getReplicationType();
+
+    /**
+     * Allows subclasses to mangle with the replication options.
+     * @param opts Options for replication
+     * @return the options or <code>null</code>
+     */
+    protected ReplicationOptions prepareOptions(ReplicationOptions opts) {
+        return opts;
+    }
+
+    protected boolean canReplicate(Session session, String path) throws AccessDeniedException {
+        return privilegeEvaluator.canReplicate(session, path);
+    }
+
+    /**
+     * Handler of the streaming reference search which may stop the search of
+     * the remaining payload paths.
+     */
+    abstract static class PathHandler implements ReferenceHandler {
+
+        boolean stopped;
+    }
+
+    // ---------- SCR Integration ----------------------------------------------
+}
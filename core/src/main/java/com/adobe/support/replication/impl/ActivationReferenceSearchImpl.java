@@ -3,31 +3,48 @@ package com.adobe.support.replication.impl;
 import static org.apache.felix.scr.annotations.ReferenceCardinality.OPTIONAL_MULTIPLE;
 import static org.apache.felix.scr.annotations.ReferencePolicy.DYNAMIC;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.Date;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-
-import javax.jcr.RepositoryException;
-import javax.jcr.Session;
-import javax.jcr.security.AccessControlManager;
-import javax.jcr.security.Privilege;
-
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.felix.scr.annotations.Activate;
 import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
 import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.commons.osgi.PropertiesUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.adobe.support.replication.ActivationReferenceSearch;
+import com.adobe.support.replication.ActivationReferenceSearch.ReferenceHandler;
 import com.day.cq.commons.jcr.JcrConstants;
-import com.day.cq.replication.ReplicationStatus;
-import com.day.cq.replication.Replicator;
+import com.day.cq.wcm.api.NameConstants;
 import com.day.cq.wcm.api.Page;
 import com.day.cq.wcm.api.Template;
 import com.day.cq.wcm.api.reference.Reference;
@@ -36,8 +53,31 @@ import com.day.cq.wcm.api.reference.ReferenceProvider;
 /**
  * The <code>ReferenceSearchServlet</code> does search in all given resources
  * (usually pages) all references to assets, tags and configurations.
+ * <p>
+ * By default all {@link ReferenceProvider}s are called one after another on
+ * the calling thread. In concurrent mode every (path, provider) pair is
+ * executed on a bounded thread pool and each call is limited by a time budget.
+ * A provider exceeding its budget is cancelled and skipped for the rest of the
+ * search, the references found so far are used. Resource resolvers and JCR
+ * sessions are not thread safe, so the pool threads never touch the passed
+ * resolver: every running call borrows a clone of it, opened by the calling
+ * thread and closed once the search ended, and hands its references back as
+ * {@link DetachedReferences}, which the calling thread resolves again. A call
+ * not started within the budget, e.g. because the pool is busy with other
+ * searches, or rejected by the full queue of the pool, is dropped like a
+ * timed out one.
+ * <p>
+ * The streaming search hands the references over after every slice of
+ * {@value #STREAM_SLICE_SIZE} resources, the collecting search sorts them by
+ * path once the search finished.
+ * <p>
+ * The references found for a resource are kept in the {@link ReferenceCache}
+ * and, if enabled, in the persistent {@link ReferenceGraph}, which is asked
+ * before the providers are called. The template and structure paths of the
+ * pages are kept in the {@link TemplateCache}.
  */
-@Component(metatype = false, immediate=true)
+@Component(metatype = true, immediate=true, label = "Activation Reference Search",
+		description = "Finds the references of pages which have to be activated along with the page.")
 @Service(ActivationReferenceSearch.class)
 public class ActivationReferenceSearchImpl implements ActivationReferenceSearch {
 	private final Logger log = LoggerFactory.getLogger(ActivationReferenceSearchImpl.class);
@@ -55,104 +95,577 @@ public class ActivationReferenceSearchImpl implements ActivationReferenceSearch
 	 */
 	public static final String PATH = "path";
 
+	/** Number of resources searched before the found references are handed over. */
+	private static final int STREAM_SLICE_SIZE = 50;
+
+	/** Suffix of the content node, appended without an intermediate builder. */
+	private static final String CONTENT_SUFFIX = "/" + JcrConstants.JCR_CONTENT;
+
+	private static final boolean DEFAULT_CONCURRENT = false;
+
+	@Property(boolValue = DEFAULT_CONCURRENT, label = "Concurrent search",
+			description = "Call the reference providers concurrently on a bounded thread pool.")
+	public static final String PROP_CONCURRENT = "search.concurrent";
+
+	private static final int DEFAULT_THREADS = 4;
+
+	@Property(intValue = DEFAULT_THREADS, label = "Search threads",
+			description = "Number of threads used for the concurrent search.")
+	public static final String PROP_THREADS = "search.threads";
+
+	private static final long DEFAULT_PROVIDER_TIMEOUT = 2000;
+
+	@Property(longValue = DEFAULT_PROVIDER_TIMEOUT, label = "Provider time budget",
+			description = "Maximum time in milliseconds a single reference provider call may take in concurrent mode. "
+					+ "Slower providers are cancelled and their references are missing from the result.")
+	public static final String PROP_PROVIDER_TIMEOUT = "search.provider.timeout";
+
+	private volatile ExecutorService executor;
+
+	private volatile long providerTimeout = DEFAULT_PROVIDER_TIMEOUT;
+
+	private volatile int threads = DEFAULT_THREADS;
+
 	@org.apache.felix.scr.annotations.Reference(referenceInterface = ReferenceProvider.class, cardinality = OPTIONAL_MULTIPLE, policy = DYNAMIC)
 	private final List<ReferenceProvider> referenceProviders = new CopyOnWriteArrayList<ReferenceProvider>();
 
+	@org.apache.felix.scr.annotations.Reference
+	private ReferenceCache referenceCache;
+
+	@org.apache.felix.scr.annotations.Reference
+	private ReferenceGraph referenceGraph;
+
+	@org.apache.felix.scr.annotations.Reference
+	private TemplateCache templateCache;
+
+	@org.apache.felix.scr.annotations.Reference
+	private ReplicationMetrics metrics;
+
 	/* (non-Javadoc)
 	 * @see com.adobe.support.replication.impl.ActivationReferenceSearch#search(java.lang.String[], org.apache.sling.api.resource.ResourceResolver)
 	 */
 	public List<String> search(String[] paths, ResourceResolver resolver) {
-		Set<Reference> allReferences = new TreeSet<Reference>(new Comparator<Reference>() {
-			public int compare(Reference o1, Reference o2) {
-				return o1.getResource().getPath().compareTo(o2.getResource().getPath());
+		return search(paths, resolver, 1, Integer.MAX_VALUE);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.adobe.support.replication.ActivationReferenceSearch#search(java.lang.String[], org.apache.sling.api.resource.ResourceResolver, int, int)
+	 */
+	public List<String> search(String[] paths, ResourceResolver resolver, int maxDepth, int maxNodes) {
+		final List<String> references = new ArrayList<String>();
+		search(paths, resolver, maxDepth, maxNodes, new ReferenceHandler() {
+			public boolean handle(List<String> found) {
+				references.addAll(found);
+				return true;
 			}
 		});
-		if (paths != null) {
-			List<String> pathsList = new ArrayList<String>();
+		Collections.sort(references);
+		return references;
+	}
 
-			Collections.addAll(pathsList, paths);
+	/* (non-Javadoc)
+	 * @see com.adobe.support.replication.ActivationReferenceSearch#search(java.lang.String[], org.apache.sling.api.resource.ResourceResolver, int, int, com.adobe.support.replication.ActivationReferenceSearch.ReferenceHandler)
+	 */
+	public int search(String[] paths, ResourceResolver resolver, int maxDepth, int maxNodes, ReferenceHandler handler) {
+		if (paths == null || paths.length == 0) {
+			return 0;
+		}
+		Set<String> pathSet = new LinkedHashSet<String>();
 
-			// extend the path by other required resources
-			pathsList.addAll(extendPaths(resolver, pathsList));
+		Collections.addAll(pathSet, paths);
 
-			// remove duplicates in the paths list
-			removeDuplicates(pathsList);
+		// extend the path by other required resources, duplicates are dropped by the set
+		pathSet.addAll(extendPaths(resolver, pathSet));
 
-			// search all refs that may be contained in one of the passed paths
-			for (String path : pathsList) {
-				if (path.length() > 0) {
-					// get content node
-					Resource r = resolver.getResource(path + "/" + JcrConstants.JCR_CONTENT);
-					if (r == null) {
-						r = resolver.getResource(path);
+		SearchScratch scratch = new SearchScratch(resolver);
+		try {
+			return search(paths[0], pathSet, maxDepth, maxNodes, handler, scratch);
+		} finally {
+			scratch.close();
+			metrics.pathsUpToDate(scratch.upToDate);
+		}
+	}
+
+	/**
+	 * Searches the given paths and their references breadth first, see
+	 * {@link #search(String[], ResourceResolver, int, int, ReferenceHandler)}.
+	 *
+	 * @param visited the paths to search, receiving the found references
+	 * @return the number of paths passed to the handler
+	 */
+	private int search(String firstPath, Set<String> visited, int maxDepth, int maxNodes, ReferenceHandler handler,
+			SearchScratch scratch) {
+		ResourceResolver resolver = scratch.resolver;
+		// breadth first search, every level holds the paths not searched before
+		Set<String> found = new HashSet<String>();
+		List<String> level = new ArrayList<String>(visited);
+		List<String> next = new ArrayList<String>();
+		int depth = 0;
+		int handled = 0;
+		search: while (depth < maxDepth && !level.isEmpty()) {
+			depth++;
+			// every slice of the level is evaluated and handed over on its own
+			for (int from = 0; from < level.size(); from += STREAM_SLICE_SIZE) {
+				List<String> slice = level.subList(from, Math.min(level.size(), from + STREAM_SLICE_SIZE));
+				List<Reference> sliceReferences = scratch.references;
+				sliceReferences.clear();
+				boolean limitReached = false;
+				for (Map.Entry<String, Reference> entry : findReferences(slice, resolver, scratch).entrySet()) {
+					if (found.size() >= maxNodes) {
+						log.warn("Reference search for {} stopped at depth {} after {} references",
+								new Object[] { firstPath, depth, maxNodes });
+						limitReached = true;
+						break;
+					}
+					String path = entry.getKey();
+					if (found.add(path)) {
+						sliceReferences.add(entry.getValue());
+						if (visited.add(path)) {
+							next.add(path);
+						}
 					}
+				}
 
-					if (r == null) {
-						continue;
+				// the handler may not keep the list, it is reused by the next slice
+				List<String> outdated = scratch.outdated;
+				outdated.clear();
+				scratch.upToDate += ReplicationStatusEvaluator.collectOutdated(sliceReferences, outdated);
+				if (!outdated.isEmpty()) {
+					handled += outdated.size();
+					if (!handler.handle(outdated)) {
+						break search;
 					}
+				}
+				if (limitReached) {
+					break search;
+				}
+			}
+			// the searched level becomes the next one
+			List<String> searched = level;
+			level = next;
+			next = searched;
+			next.clear();
+		}
+		return handled;
+	}
+
+	/**
+	 * Finds the references contained in the given paths.
+	 *
+	 * @return the references keyed and sorted by the referenced path
+	 */
+	private Map<String, Reference> findReferences(List<String> paths, ResourceResolver resolver,
+			SearchScratch scratch) {
+		Map<String, Reference> references = scratch.sorted;
+		references.clear();
+
+		// search all refs that may be contained in one of the passed paths
+		List<Resource> resources = scratch.resources;
+		resources.clear();
+		for (String path : paths) {
+			if (path.length() > 0) {
+				// get content node
+				Resource r = resolver.getResource(path.concat(CONTENT_SUFFIX));
+				if (r == null) {
+					r = resolver.getResource(path);
+				}
 
-					for (ReferenceProvider referenceProvider : referenceProviders) {
-						allReferences.addAll(referenceProvider.findReferences(r));
+				if (r == null) {
+					continue;
+				}
+				resources.add(r);
+			}
+		}
+
+		// use the cached or indexed references where possible
+		List<Resource> uncached = scratch.uncached;
+		uncached.clear();
+		for (Resource r : resources) {
+			List<Reference> cached = referenceCache.get(r);
+			if (cached != null) {
+				referenceGraph.putIfAbsent(r, cached);
+			} else {
+				cached = referenceGraph.get(r);
+				if (cached != null) {
+					referenceCache.put(r, cached);
+				}
+			}
+			if (cached != null) {
+				addReferences(references, cached);
+			} else {
+				uncached.add(r);
+			}
+		}
+
+		ExecutorService pool = executor;
+		if (pool != null && !uncached.isEmpty() && openClones(scratch, uncached.size() * referenceProviders.size())) {
+			findReferencesConcurrently(pool, uncached, references, scratch);
+		} else {
+			for (Resource r : uncached) {
+				List<Reference> found = new ArrayList<Reference>();
+				for (ReferenceProvider referenceProvider : referenceProviders) {
+					long start = metrics.start();
+					List<Reference> providerReferences = referenceProvider.findReferences(r);
+					metrics.recordProvider(referenceProvider, start);
+					if (providerReferences != null) {
+						found.addAll(providerReferences);
 					}
 				}
+				referenceCache.put(r, found);
+				referenceGraph.put(r, found);
+				addReferences(references, found);
+			}
+		}
+		return references;
+	}
+
+	/**
+	 * Opens the clones of the caller's resolver used by the provider calls, at
+	 * most one per pool thread.
+	 *
+	 * @return <code>false</code> if no clone can be opened and the providers
+	 *         have to be called on the calling thread
+	 */
+	private boolean openClones(SearchScratch scratch, int calls) {
+		try {
+			scratch.openClones(Math.min(calls, threads));
+		} catch (LoginException e) {
+			log.warn("Cannot clone the resolver of the reference search, searching on the calling thread: {}",
+					e.getMessage());
+		}
+		return scratch.cloneCount > 0;
+	}
+
+	/**
+	 * Calls every provider for every resource on the given pool. Each call is
+	 * limited to the configured provider time budget, measured from the moment
+	 * the call actually started or, while it is still queued, from the moment
+	 * the calling thread started to wait for it. A provider which exceeded its
+	 * budget is not called again during this search. Only the references of
+	 * resources for which all provider calls completed are cached.
+	 */
+	private void findReferencesConcurrently(ExecutorService pool, List<Resource> resources,
+			Map<String, Reference> allReferences, SearchScratch scratch) {
+		final Set<ReferenceProvider> timedOut = Collections
+				.newSetFromMap(new ConcurrentHashMap<ReferenceProvider, Boolean>());
+
+		List<ProviderCall> calls = new ArrayList<ProviderCall>();
+		int rejected = 0;
+		for (Resource r : resources) {
+			for (ReferenceProvider referenceProvider : referenceProviders) {
+				ProviderCall call = new ProviderCall(referenceProvider, r, scratch, timedOut, metrics);
+				try {
+					call.future = pool.submit(call);
+				} catch (RejectedExecutionException e) {
+					rejected++;
+				}
+				calls.add(call);
 			}
 		}
+		if (rejected > 0) {
+			log.warn("The reference search pool rejected {} provider calls, their references are incomplete",
+					rejected);
+		}
 
-		ArrayList<String> references = new ArrayList<String>();
-		for (Reference reference : allReferences) {
+		ResourceResolver resolver = scratch.resolver;
+		Map<Resource, List<Reference>> complete = new LinkedHashMap<Resource, List<Reference>>();
+		Set<Resource> incomplete = new HashSet<Resource>();
+		for (ProviderCall call : calls) {
+			await(call, timedOut);
+			List<Reference> result = call.done ? call.result.resolve(resolver) : null;
+			if (result != null) {
+				addReferences(allReferences, result);
+			}
+			if (result == null) {
+				incomplete.add(call.resource);
+			} else if (!incomplete.contains(call.resource)) {
+				List<Reference> list = complete.get(call.resource);
+				if (list == null) {
+					list = new ArrayList<Reference>();
+					complete.put(call.resource, list);
+				}
+				list.addAll(result);
+			}
+		}
+		for (Map.Entry<Resource, List<Reference>> entry : complete.entrySet()) {
+			if (!incomplete.contains(entry.getKey())) {
+				referenceCache.put(entry.getKey(), entry.getValue());
+				referenceGraph.put(entry.getKey(), entry.getValue());
+			}
+		}
+	}
 
-			boolean published = false;
-			boolean outdated = false;
-			ReplicationStatus replStatus = null;
-			final Resource resource = reference.getResource();
-			boolean canReplicate = canReplicate(reference.getResource().getPath(), resolver.adaptTo(Session.class));
-			long lastPublished = 0;
+	/**
+	 * Waits for the given call until it completed or its budget passed. A call
+	 * which did not complete in time is cancelled, whether it is running or
+	 * still queued.
+	 */
+	private void await(ProviderCall call, Set<ReferenceProvider> timedOut) {
+		if (call.future == null) {
+			return;
+		}
+		final long budget = providerTimeout;
+		final long waitStarted = System.currentTimeMillis();
+		try {
+			while (true) {
+				long started = call.started;
+				long wait = (started != 0 ? started : waitStarted) + budget - System.currentTimeMillis();
+				if (wait <= 0) {
+					break;
+				}
+				try {
+					call.future.get(wait, TimeUnit.MILLISECONDS);
+					return;
+				} catch (TimeoutException e) {
+					// still running or queued, check the budget again
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			call.future.cancel(true);
+			return;
+		} catch (ExecutionException e) {
+			log.warn("Reference provider " + call.provider.getClass().getName() + " failed for " + call.path,
+					e.getCause());
+			return;
+		}
+		call.future.cancel(true);
+		if (call.started == 0) {
+			log.debug("Call of reference provider {} for {} not started within {}ms, its references are incomplete",
+					new Object[] { call.provider.getClass().getName(), call.path, budget });
+		} else if (timedOut.add(call.provider)) {
+			log.warn("Reference provider {} exceeded its time budget of {}ms at {}, its references are incomplete",
+					new Object[] { call.provider.getClass().getName(), budget, call.path });
+		}
+	}
+
+	private static void addReferences(Map<String, Reference> allReferences, List<Reference> references) {
+		if (references == null) {
+			return;
+		}
+		for (Reference reference : references) {
+			Resource resource = reference.getResource();
 			if (resource != null) {
-				replStatus = resource.adaptTo(ReplicationStatus.class);
-				if (replStatus != null) {
-					published = replStatus.isDelivered() || replStatus.isActivated();
-					if (published) {
-						lastPublished = replStatus.getLastPublished().getTimeInMillis();
-						outdated = lastPublished < reference.getLastModified();
-					}
+				String path = resource.getPath();
+				if (!allReferences.containsKey(path)) {
+					allReferences.put(path, reference);
 				}
+			}
+		}
+	}
+
+	/**
+	 * The state of a single search: the collections which are cleared and
+	 * reused for every slice instead of being allocated per slice, and the
+	 * clones of the caller's resolver lent to the provider calls running on
+	 * the pool.
+	 */
+	private static final class SearchScratch {
+
+		private final ResourceResolver resolver;
+
+		private final Deque<ResourceResolver> idleClones = new ArrayDeque<ResourceResolver>();
+
+		private int cloneCount;
+
+		private boolean closed;
+
+		private int upToDate;
+
+		private final Map<String, Reference> sorted = new TreeMap<String, Reference>();
+
+		private final List<Resource> resources = new ArrayList<Resource>(STREAM_SLICE_SIZE);
+
+		private final List<Resource> uncached = new ArrayList<Resource>(STREAM_SLICE_SIZE);
 
-				log.debug(
-						"Considering reference at {} . Published: {}, outdated: {} ( lastPublished: {}, lastModified: {} )",
-						new Object[] { reference.getResource().getPath(), published, outdated, new Date(lastPublished),
-								new Date(reference.getLastModified()) });
+		private final List<Reference> references = new ArrayList<Reference>();
+
+		private final List<String> outdated = new ArrayList<String>();
+
+		SearchScratch(ResourceResolver resolver) {
+			this.resolver = resolver;
+		}
+
+		/**
+		 * Opens clones of the caller's resolver on the calling thread, so
+		 * that the given number of calls can run at the same time.
+		 *
+		 * @param count the number of clones
+		 * @throws LoginException if the resolver cannot be cloned
+		 */
+		void openClones(int count) throws LoginException {
+			while (cloneCount < count) {
+				ResourceResolver clone = resolver.clone(null);
+				synchronized (this) {
+					idleClones.addLast(clone);
+				}
+				cloneCount++;
 			}
+		}
 
-			if (!published || outdated) {
-				references.add(reference.getResource().getPath());
+		/**
+		 * @return an idle clone or <code>null</code> if all clones are in use,
+		 *         e.g. by a cancelled call ignoring its interruption
+		 */
+		synchronized ResourceResolver takeClone() {
+			return closed ? null : idleClones.pollFirst();
+		}
+
+		/**
+		 * Gives back a clone taken by a call, closes it if the search ended.
+		 */
+		void releaseClone(ResourceResolver clone) {
+			synchronized (this) {
+				if (!closed) {
+					idleClones.addLast(clone);
+					return;
+				}
 			}
+			clone.close();
+		}
 
+		/**
+		 * Closes the idle clones, the clones still in use are closed by their
+		 * calls.
+		 */
+		void close() {
+			List<ResourceResolver> idle;
+			synchronized (this) {
+				closed = true;
+				idle = new ArrayList<ResourceResolver>(idleClones);
+				idleClones.clear();
+			}
+			for (ResourceResolver clone : idle) {
+				clone.close();
+			}
 		}
-		return references;
+	}
+
+	/**
+	 * A single call of a reference provider for one resource, made with a
+	 * clone of the caller's resolver.
+	 */
+	private static final class ProviderCall implements Callable<Void> {
+
+		private final ReferenceProvider provider;
+
+		private final Resource resource;
+
+		private final String path;
+
+		private final SearchScratch scratch;
 
+		private final Set<ReferenceProvider> timedOut;
+
+		private final ReplicationMetrics metrics;
+
+		private volatile long started;
+
+		private volatile boolean done;
+
+		private volatile DetachedReferences result;
+
+		private Future<Void> future;
+
+		ProviderCall(ReferenceProvider provider, Resource resource, SearchScratch scratch,
+				Set<ReferenceProvider> timedOut, ReplicationMetrics metrics) {
+			this.provider = provider;
+			this.resource = resource;
+			this.path = resource.getPath();
+			this.scratch = scratch;
+			this.timedOut = timedOut;
+			this.metrics = metrics;
+		}
+
+		public Void call() {
+			if (timedOut.contains(provider)) {
+				return null;
+			}
+			ResourceResolver clone = scratch.takeClone();
+			if (clone == null) {
+				return null;
+			}
+			try {
+				started = System.currentTimeMillis();
+				Resource r = clone.getResource(path);
+				List<Reference> references = null;
+				if (r != null) {
+					long start = metrics.start();
+					references = provider.findReferences(r);
+					metrics.recordProvider(provider, start);
+				}
+				result = new DetachedReferences(references);
+				done = true;
+			} finally {
+				scratch.releaseClone(clone);
+			}
+			return null;
+		}
+	}
+
+	@Activate
+	@Modified
+	protected void activate(Map<String, Object> properties) {
+		providerTimeout = PropertiesUtil.toLong(properties.get(PROP_PROVIDER_TIMEOUT), DEFAULT_PROVIDER_TIMEOUT);
+		boolean concurrent = PropertiesUtil.toBoolean(properties.get(PROP_CONCURRENT), DEFAULT_CONCURRENT);
+		threads = Math.max(1, PropertiesUtil.toInteger(properties.get(PROP_THREADS), DEFAULT_THREADS));
+
+		ExecutorService old = executor;
+		executor = concurrent ? createExecutor(threads) : null;
+		if (old != null) {
+			old.shutdown();
+		}
+	}
+
+	@Deactivate
+	protected void deactivate() {
+		ExecutorService old = executor;
+		executor = null;
+		if (old != null) {
+			old.shutdownNow();
+		}
+	}
+
+	/**
+	 * Creates a fixed size pool with a bounded queue. If the queue is full the
+	 * provider call is rejected and its references are incomplete.
+	 */
+	private static ExecutorService createExecutor(int threads) {
+		final AtomicInteger counter = new AtomicInteger();
+		ThreadFactory factory = new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "activation-reference-search-" + counter.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+		return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(threads * 256), factory, new ThreadPoolExecutor.AbortPolicy());
 	}
 
 	protected void bindReferenceProviders(ReferenceProvider referenceProvider) {
 
 		referenceProviders.add(referenceProvider);
+		clearCache();
 	}
 
 	protected void unbindReferenceProviders(ReferenceProvider referenceProvider) {
 
 		referenceProviders.remove(referenceProvider);
+		clearCache();
 	}
 
-	private static boolean canReplicate(String path, Session session) {
-		try {
-			AccessControlManager acMgr = session.getAccessControlManager();
-			return session.getAccessControlManager().hasPrivileges(path,
-					new Privilege[] { acMgr.privilegeFromName(Replicator.REPLICATE_PRIVILEGE) });
-		} catch (RepositoryException e) {
-			return false;
+	/**
+	 * The cached references depend on the set of bound providers.
+	 */
+	private void clearCache() {
+		ReferenceCache cache = referenceCache;
+		if (cache != null) {
+			cache.clear();
 		}
 	}
 
-	private List<String> extendPaths(ResourceResolver resolver, List<String> paths) {
+	private List<String> extendPaths(ResourceResolver resolver, Iterable<String> paths) {
 		List<String> list = new ArrayList<String>();
 
 		// check if any path ia based on a structured template
@@ -177,48 +690,29 @@ public class ActivationReferenceSearchImpl implements ActivationReferenceSearch
 	}
 
 	private List<String> getTemplatePaths(Resource r) {
-		List<String> paths = new ArrayList<String>();
-
-		Template t = r.adaptTo(Template.class);
-		Page p = r.adaptTo(Page.class);
-		if (t == null && p == null) {
-			// nothing to do
-			return paths;
+		// a page names its template, the resolution of shared templates is cached
+		if (NameConstants.NT_PAGE.equals(r.getValueMap().get(JcrConstants.JCR_PRIMARYTYPE, String.class))) {
+			Resource content = r.getChild(JcrConstants.JCR_CONTENT);
+			String templatePath = content != null
+					? content.getValueMap().get(NameConstants.PN_TEMPLATE, String.class) : null;
+			if (templatePath != null && templatePath.length() > 0) {
+				return templateCache.getPaths(templatePath, r.getResourceResolver());
+			}
 		}
 
-		// resource is a page
-		if (p != null) {
+		Template t = r.adaptTo(Template.class);
+		if (t == null) {
+			// resource is a page
+			Page p = r.adaptTo(Page.class);
+			if (p == null) {
+				// nothing to do
+				return Collections.emptyList();
+			}
 			t = p.getTemplate();
 		}
 
 		// resource is or is based on a template
-		if (t != null && t.hasStructureSupport()) {
-			// template itself
-			paths.add(t.getPath());
-
-			Resource tr = t.adaptTo(Resource.class);
-			// structure resource
-			Resource sr = tr.getChild(NN_STRUCTURE);
-			if (sr != null) {
-				paths.add(sr.getPath());
-			}
-		}
-		return paths;
-	}
-
-	private void removeDuplicates(List<String> pathsList) {
-		int index = 0;
-
-		while (index < pathsList.size() - 1) {
-			String path = pathsList.get(index);
-
-			List<String> tail = pathsList.subList(index + 1, pathsList.size());
-
-			while (tail.contains(path)) {
-				tail.remove(path);
-			}
-			index++;
-		}
+		return TemplateCache.getPaths(t);
 	}
 
 }
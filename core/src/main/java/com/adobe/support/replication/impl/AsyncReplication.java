@@ -0,0 +1,189 @@
+package com.adobe.support.replication.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.ReplicationAction;
+import com.day.cq.replication.ReplicationListener;
+import com.day.cq.replication.ReplicationLog;
+import com.day.cq.replication.ReplicationResult;
+
+/**
+ * An <code>AsyncReplication</code> is the handle of a replication running in
+ * the background on behalf of a {@link ReplicatePageExternalProcess}. It is
+ * set as {@link ReplicationListener} on all replication options of the run and
+ * aggregates the results the agents report.
+ */
+public class AsyncReplication implements ReplicationListener {
+
+    private final String id = UUID.randomUUID().toString();
+
+    private final String path;
+
+    private final long created = System.currentTimeMillis();
+
+    private final List<String> failures = new ArrayList<String>();
+
+    private final Set<String> failedPaths = new LinkedHashSet<String>();
+
+    private volatile int actions;
+
+    private volatile boolean done;
+
+    private volatile long finished;
+
+    private volatile Throwable error;
+
+    private volatile ReplicationProgress progress;
+
+    private volatile Map<String, String> fingerprints = Collections.emptyMap();
+
+    AsyncReplication(String path) {
+        this.path = path;
+    }
+
+    /**
+     * @return the id handed to the workflow engine
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the payload path
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * @return <code>true</code> once the background run ended, successfully or not
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return the time the run ended or <code>0</code> if still running
+     */
+    public long getFinished() {
+        return finished;
+    }
+
+    /**
+     * @return the error which aborted the run or <code>null</code>
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * @return the number of replication actions the agents reported as ended
+     */
+    public int getActionCount() {
+        return actions;
+    }
+
+    /**
+     * @return the failures reported by the agents, one line per agent and path
+     */
+    public List<String> getFailures() {
+        synchronized (failures) {
+            return new ArrayList<String>(failures);
+        }
+    }
+
+    /**
+     * @return the paths of the failed replication actions
+     */
+    public String[] getFailedPaths() {
+        synchronized (failures) {
+            return failedPaths.toArray(new String[failedPaths.size()]);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the run ended without error and without failures
+     */
+    public boolean isSuccessful() {
+        return done && error == null && getFailures().isEmpty();
+    }
+
+    /**
+     * @return the progress of the run
+     */
+    public ReplicationProgress getProgress() {
+        return progress;
+    }
+
+    void setProgress(ReplicationProgress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * @return the fingerprints of the replicated paths, see {@link DeltaFilter}
+     */
+    public Map<String, String> getFingerprints() {
+        return fingerprints;
+    }
+
+    void setFingerprints(Map<String, String> fingerprints) {
+        this.fingerprints = fingerprints;
+    }
+
+    void finish(Throwable error) {
+        this.error = error;
+        this.finished = System.currentTimeMillis();
+        this.done = true;
+    }
+
+    public void onStart(Agent agent, ReplicationAction action) {
+    }
+
+    public void onMessage(ReplicationLog.Level level, String message) {
+    }
+
+    public void onEnd(Agent agent, ReplicationAction action, ReplicationResult result) {
+        synchronized (failures) {
+            actions++;
+            if (result != null && !result.isSuccess()) {
+                failures.add(describe(agent, action) + ": " + result.getCode() + " " + result.getMessage());
+                addFailedPaths(action);
+            }
+        }
+    }
+
+    public void onError(Agent agent, ReplicationAction action, Exception error) {
+        synchronized (failures) {
+            failures.add(describe(agent, action) + ": " + error);
+            addFailedPaths(action);
+        }
+    }
+
+    private void addFailedPaths(ReplicationAction action) {
+        if (action != null && action.getPaths() != null) {
+            Collections.addAll(failedPaths, action.getPaths());
+        }
+    }
+
+    private static String describe(Agent agent, ReplicationAction action) {
+        String agentId = agent != null ? agent.getId() : null;
+        String actionPath = action != null ? action.getPath() : null;
+        return actionPath + " on " + agentId;
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncReplication[" + id + ", " + path + (done ? ", done" : ", running") + "]";
+    }
+}
@@ -0,0 +1,188 @@
+package com.adobe.support.replication.impl;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>AsyncReplicationTracker</code> runs the replications of the
+ * {@link ReplicatePageExternalProcess asynchronous workflow steps} on its own
+ * thread pool and keeps their {@link AsyncReplication handles} until the
+ * workflow engine collected the result.
+ * <p>
+ * Handles are only kept in memory. A replication still running when the
+ * instance stops is lost, the workflow step then fails and is retried by the
+ * engine. Finished handles never collected are dropped after the configured
+ * retention time.
+ */
+@Component(metatype = true, label = "Activation Async Replication Tracker",
+        description = "Runs and tracks the replications of the asynchronous activation workflow steps.")
+@Service(AsyncReplicationTracker.class)
+public class AsyncReplicationTracker {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncReplicationTracker.class);
+
+    private static final int DEFAULT_THREADS = 4;
+
+    @Property(intValue = DEFAULT_THREADS, label = "Threads",
+            description = "Number of replications running in parallel, further replications are queued.")
+    public static final String PROP_THREADS = "async.threads";
+
+    private static final long DEFAULT_RETENTION = 24 * 60 * 60 * 1000L;
+
+    @Property(longValue = DEFAULT_RETENTION, label = "Retention",
+            description = "Time in milliseconds a finished replication is kept if its result is not collected.")
+    public static final String PROP_RETENTION = "async.retention";
+
+    /**
+     * The work of an asynchronous replication.
+     */
+    public interface Task {
+
+        /**
+         * @param replication the handle, to be set as listener on the replication options
+         * @throws Exception if the replication failed
+         */
+        void run(AsyncReplication replication) throws Exception;
+    }
+
+    private final ConcurrentMap<String, AsyncReplication> replications = new ConcurrentHashMap<String, AsyncReplication>();
+
+    private volatile ThreadPoolExecutor executor;
+
+    private volatile long retention = DEFAULT_RETENTION;
+
+    @Activate
+    @Modified
+    protected void activate(Map<String, Object> properties) {
+        int threads = Math.max(1, PropertiesUtil.toInteger(properties.get(PROP_THREADS), DEFAULT_THREADS));
+        retention = Math.max(0, PropertiesUtil.toLong(properties.get(PROP_RETENTION), DEFAULT_RETENTION));
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "activation-async-replication-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        } else if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        ThreadPoolExecutor pool = executor;
+        executor = null;
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+        for (AsyncReplication replication : replications.values()) {
+            if (!replication.isDone()) {
+                replication.finish(new IllegalStateException("Replication tracker stopped"));
+            }
+        }
+    }
+
+    /**
+     * Queues the given task.
+     *
+     * @param path the payload path, used for logging
+     * @param task the replication work
+     * @return the handle of the replication
+     */
+    public AsyncReplication submit(String path, final Task task) {
+        purge();
+        final AsyncReplication replication = new AsyncReplication(path);
+        replications.put(replication.getId(), replication);
+        ThreadPoolExecutor pool = executor;
+        try {
+            if (pool == null) {
+                throw new RejectedExecutionException("not active");
+            }
+            pool.execute(new Runnable() {
+                public void run() {
+                    Throwable error = null;
+                    try {
+                        task.run(replication);
+                    } catch (Exception e) {
+                        log.error("Asynchronous replication of " + replication.getPath() + " failed: " + e.getMessage(), e);
+                        error = e;
+                    } finally {
+                        replication.finish(error);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            replication.finish(e);
+        }
+        log.debug("Queued {}", replication);
+        return replication;
+    }
+
+    /**
+     * @param id the id of the replication
+     * @return the replication or <code>null</code> if unknown
+     */
+    public AsyncReplication get(String id) {
+        return replications.get(id);
+    }
+
+    /**
+     * Forgets the replication once its result was collected.
+     *
+     * @param id the id of the replication
+     * @return the replication or <code>null</code> if unknown
+     */
+    public AsyncReplication remove(String id) {
+        return replications.remove(id);
+    }
+
+    /**
+     * @return the number of replications queued or running
+     */
+    public int getPendingCount() {
+        int pending = 0;
+        for (AsyncReplication replication : replications.values()) {
+            if (!replication.isDone()) {
+                pending++;
+            }
+        }
+        return pending;
+    }
+
+    private void purge() {
+        long expired = System.currentTimeMillis() - retention;
+        for (Iterator<AsyncReplication> it = replications.values().iterator(); it.hasNext();) {
+            AsyncReplication replication = it.next();
+            if (replication.isDone() && replication.getFinished() < expired) {
+                log.warn("Dropping uncollected {}", replication);
+                it.remove();
+            }
+        }
+    }
+}
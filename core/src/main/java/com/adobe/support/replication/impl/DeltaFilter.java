@@ -0,0 +1,308 @@
+package com.adobe.support.replication.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.day.cq.commons.jcr.JcrConstants;
+import com.day.cq.wcm.api.NameConstants;
+
+/**
+ * The <code>DeltaFilter</code> drops the paths which are activated and did not
+ * change since, like the reference search does for the references. It is used
+ * by the replication steps for all paths, including the payload and the pages
+ * of a workflow package, if the <code>delta</code> argument is set.
+ * <p>
+ * A path is unchanged if its last activation is not older than its last
+ * modification. In fingerprint mode a path modified after its last activation
+ * is still unchanged if the fingerprint of its <code>jcr:content</code>
+ * subtree equals the fingerprint stored at its last activation, e.g. after a
+ * page was saved again without changes. The fingerprint covers the names,
+ * order and values of all nodes and properties except the modification and
+ * replication properties of the content node. Binaries are covered by the
+ * modification dates of their nodes only. Paths without content node are
+ * only checked by date. A path without modification date is always changed,
+ * in fingerprint mode unless its fingerprint is unchanged.
+ * <p>
+ * The fingerprints are kept below {@value #FINGERPRINT_ROOT}, mirroring the
+ * content paths, and are read and written with a resolver of the
+ * <code>replication-state</code> service user, so the content is never
+ * modified. The filter only collects the fingerprints of the replicated paths,
+ * the step stores them with {@link #storeFingerprints(ResourceResolver, Map)}
+ * once the replication succeeded.
+ * <p>
+ * An instance is used for a single execution and is not thread safe.
+ */
+final class DeltaFilter {
+
+    private static final Logger log = LoggerFactory.getLogger(DeltaFilter.class);
+
+    /** Value of the delta argument enabling the date check. */
+    static final String MODE_MODIFIED = "modified";
+
+    /** Value of the delta argument enabling the date check and the fingerprint. */
+    static final String MODE_FINGERPRINT = "fingerprint";
+
+    /** Property holding the fingerprint of the last activation. */
+    static final String PN_FINGERPRINT = "replicationFingerprint";
+
+    /** Root of the stored fingerprints. */
+    static final String FINGERPRINT_ROOT = ReplicationSessionPool.STATE_ROOT + "/fingerprints";
+
+    private static final String REPLICATION_PREFIX = "cq:lastReplicat";
+
+    /** Also ignores the fingerprints earlier versions stored in the content. */
+    private static final List<String> IGNORED_CONTENT_PROPERTIES = Arrays.asList(NameConstants.PN_PAGE_LAST_MOD,
+            NameConstants.PN_PAGE_LAST_MOD_BY, JcrConstants.JCR_LASTMODIFIED, "jcr:lastModifiedBy", PN_FINGERPRINT);
+
+    /** Number of fingerprints stored with one commit. */
+    private static final int COMMIT_SIZE = 100;
+
+    private static final Map<String, Object> STATE_PROPERTIES = Collections.<String, Object> singletonMap(
+            JcrConstants.JCR_PRIMARYTYPE, JcrConstants.NT_UNSTRUCTURED);
+
+    private final ResourceResolver resolver;
+
+    private final ResourceResolver stateResolver;
+
+    private final boolean enabled;
+
+    private final boolean fingerprint;
+
+    private final Map<String, String> fingerprints = new HashMap<String, String>();
+
+    private final Map<String, String> replicated = new LinkedHashMap<String, String>();
+
+    private int skipped;
+
+    /**
+     * @param resolver the service resolver reading the content
+     * @param stateResolver the resolver reading the stored fingerprints,
+     *            <code>null</code> to check by date only
+     * @param mode the value of the delta argument, <code>null</code> or
+     *            <code>false</code> disable the filter, {@value #MODE_FINGERPRINT}
+     *            enables the fingerprint, any other value the date check only
+     */
+    DeltaFilter(ResourceResolver resolver, ResourceResolver stateResolver, String mode) {
+        this.resolver = resolver;
+        this.stateResolver = stateResolver;
+        this.enabled = mode != null && mode.length() > 0 && !"false".equalsIgnoreCase(mode);
+        this.fingerprint = MODE_FINGERPRINT.equalsIgnoreCase(mode) && stateResolver != null;
+    }
+
+    /**
+     * @param mode the value of the delta argument
+     * @return <code>true</code> if the mode compares fingerprints
+     */
+    static boolean isFingerprint(String mode) {
+        return MODE_FINGERPRINT.equalsIgnoreCase(mode);
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param paths the paths to replicate
+     * @return the paths which changed since their last activation, in the given order
+     */
+    List<String> filter(List<String> paths) {
+        if (!enabled) {
+            return paths;
+        }
+        List<String> changed = new ArrayList<String>(paths.size());
+        for (String path : paths) {
+            if (isChanged(path)) {
+                changed.add(path);
+            }
+        }
+        skipped += paths.size() - changed.size();
+        return changed;
+    }
+
+    private boolean isChanged(String path) {
+        Resource resource = resolver.getResource(path);
+        if (resource == null) {
+            return true;
+        }
+        long lastPublished = ReplicationStatusEvaluator.getLastPublished(resource);
+        if (lastPublished == 0) {
+            return true;
+        }
+        // without modification date only the fingerprint can tell an unchanged path
+        long lastModified = ReferenceCache.getLastModified(resource);
+        if (lastModified > 0 && lastPublished >= lastModified) {
+            return false;
+        }
+        if (!fingerprint) {
+            return true;
+        }
+        Resource content = getContent(resource);
+        if (content == null) {
+            return true;
+        }
+        String current = compute(content);
+        fingerprints.put(path, current);
+        Resource state = stateResolver.getResource(FINGERPRINT_ROOT + path);
+        String stored = state != null ? state.getValueMap().get(PN_FINGERPRINT, String.class) : null;
+        if (current.equals(stored)) {
+            log.debug("Skipping {}, its content did not change since the last activation", path);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of paths dropped by {@link #filter(List)}
+     */
+    int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Collects the fingerprints of the given replicated paths, to be stored
+     * once the replication succeeded.
+     *
+     * @param paths the replicated paths
+     */
+    void replicated(Collection<String> paths) {
+        if (!fingerprint) {
+            return;
+        }
+        for (String path : paths) {
+            String value = fingerprints.get(path);
+            if (value == null) {
+                Resource resource = resolver.getResource(path);
+                Resource content = resource != null ? getContent(resource) : null;
+                value = content != null ? compute(content) : null;
+            }
+            if (value != null) {
+                replicated.put(path, value);
+            }
+        }
+    }
+
+    /**
+     * @return the fingerprints of the replicated paths by path
+     */
+    Map<String, String> getReplicatedFingerprints() {
+        return replicated;
+    }
+
+    /**
+     * Stores the given fingerprints below {@value #FINGERPRINT_ROOT}. Failures
+     * are logged only, the paths are then checked by date next time.
+     *
+     * @param stateResolver the resolver of the <code>replication-state</code> service user
+     * @param fingerprints the fingerprints by path
+     */
+    static void storeFingerprints(ResourceResolver stateResolver, Map<String, String> fingerprints) {
+        int pending = 0;
+        try {
+            for (Map.Entry<String, String> entry : fingerprints.entrySet()) {
+                Resource state = ResourceUtil.getOrCreateResource(stateResolver, FINGERPRINT_ROOT + entry.getKey(),
+                        STATE_PROPERTIES, null, false);
+                ModifiableValueMap props = state.adaptTo(ModifiableValueMap.class);
+                if (props == null) {
+                    continue;
+                }
+                props.put(PN_FINGERPRINT, entry.getValue());
+                if (++pending == COMMIT_SIZE) {
+                    stateResolver.commit();
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                stateResolver.commit();
+            }
+        } catch (PersistenceException e) {
+            log.warn("Cannot store the replication fingerprints: {}", e.getMessage());
+            stateResolver.revert();
+        }
+    }
+
+    private static Resource getContent(Resource resource) {
+        return JcrConstants.JCR_CONTENT.equals(resource.getName()) ? resource
+                : resource.getChild(JcrConstants.JCR_CONTENT);
+    }
+
+    /**
+     * @param content the content node
+     * @return the base64 encoded SHA-1 digest of the content subtree
+     */
+    static String compute(Resource content) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        update(digest, content, true);
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, Resource resource, boolean root) {
+        digest.update(resource.getName().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) '{');
+        Map<String, Object> props = new TreeMap<String, Object>(resource.getValueMap());
+        for (Map.Entry<String, Object> entry : props.entrySet()) {
+            String name = entry.getKey();
+            if (name.startsWith(REPLICATION_PREFIX) || root && IGNORED_CONTENT_PROPERTIES.contains(name)) {
+                continue;
+            }
+            digest.update(name.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '=');
+            digest.update(toString(entry.getValue()).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) ';');
+        }
+        for (Iterator<Resource> it = resource.listChildren(); it.hasNext();) {
+            update(digest, it.next(), false);
+        }
+        digest.update((byte) '}');
+    }
+
+    private static String toString(Object value) {
+        if (value instanceof Calendar) {
+            return Long.toString(((Calendar) value).getTimeInMillis());
+        }
+        if (value instanceof Object[]) {
+            StringBuilder builder = new StringBuilder("[");
+            for (Object item : (Object[]) value) {
+                builder.append(toString(item)).append(',');
+            }
+            return builder.append(']').toString();
+        }
+        if (value instanceof InputStream) {
+            // binaries are covered by the modification date of their node
+            try {
+                ((InputStream) value).close();
+            } catch (IOException e) {
+                // nothing read
+            }
+            return "binary";
+        }
+        return String.valueOf(value);
+    }
+}
@@ -0,0 +1,157 @@
+package com.adobe.support.replication.impl;
+
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.List;
+
+import javax.jcr.Session;
+
+import org.osgi.service.event.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adobe.support.replication.ReplicationRequestEvent;
+import com.adobe.support.replication.impl.AbstractReplicatePageProcess.Arguments;
+import com.adobe.support.replication.impl.ReplicationMetrics.Phase;
+import com.day.cq.wcm.workflow.api.WcmWorkflowService;
+import com.day.cq.workflow.metadata.MetaDataMap;
+
+/**
+ * The <code>DeniedPathRequests</code> check the replicate privilege of the
+ * workflow user on the paths of a replication step and request the
+ * replication of the denied paths, with one synchronous event per path or,
+ * if the <code>deniedEvents</code> argument is <code>aggregated</code>, with
+ * asynchronous {@link ReplicationRequestEvent}s.
+ * <p>
+ * An instance serves a single execution of a step.
+ */
+final class DeniedPathRequests {
+
+    private static final Logger log = LoggerFactory.getLogger(DeniedPathRequests.class);
+
+    private final AbstractReplicatePageProcess process;
+
+    private final Session replicationSession;
+
+    private final String userId;
+
+    private final boolean aggregated;
+
+    /**
+     * @param process the step, providing the services
+     * @param replicationSession the session used to replicate
+     * @param userId the id of the workflow user, reported in the events
+     * @param args the process arguments
+     */
+    DeniedPathRequests(AbstractReplicatePageProcess process, Session replicationSession, String userId,
+            MetaDataMap args) {
+        this.process = process;
+        this.replicationSession = replicationSession;
+        this.userId = userId;
+        this.aggregated = AbstractReplicatePageProcess.DENIED_EVENTS_AGGREGATED
+                .equalsIgnoreCase(process.getArgument(args, Arguments.DENIED_EVENTS));
+    }
+
+    /**
+     * @return <code>true</code> if the denied paths are requested with
+     *         aggregated events
+     */
+    boolean isAggregated() {
+        return aggregated;
+    }
+
+    /**
+     * Checks the replicate privilege of the given paths and requests the
+     * replication of the denied paths.
+     *
+     * @param paths the paths to check
+     * @param deniedPaths list collecting the denied paths for
+     *            {@link #request(List)}, <code>null</code> to send one event
+     *            per denied path at once
+     * @return the paths the replication session may replicate
+     */
+    List<String> filterAllowed(List<String> paths, List<String> deniedPaths) {
+        List<String> allowedPaths = new ArrayList<String>(paths.size());
+        long start = process.metrics.start();
+        boolean[] allowed = process.privilegeEvaluator.canReplicate(replicationSession, paths);
+        process.metrics.record(Phase.ACL_CHECK, start);
+        List<String> denied = deniedPaths;
+        for (int i = 0; i < allowed.length; i++) {
+            String aPath = paths.get(i);
+            if (allowed[i]) {
+                allowedPaths.add(aPath);
+            } else {
+                if (denied == null) {
+                    denied = new ArrayList<String>();
+                }
+                denied.add(aPath);
+            }
+        }
+        if (allowedPaths.size() < paths.size()) {
+            process.metrics.pathsDenied(paths.size() - allowedPaths.size());
+            if (deniedPaths == null) {
+                sendEvents(denied);
+            }
+        }
+        return allowedPaths;
+    }
+
+    /**
+     * Requests the replication of the given paths with the events selected by
+     * the <code>deniedEvents</code> argument.
+     *
+     * @param deniedPaths the denied paths
+     */
+    void request(List<String> deniedPaths) {
+        if (deniedPaths.isEmpty()) {
+            return;
+        }
+        if (aggregated) {
+            postEvents(deniedPaths);
+        } else {
+            sendEvents(deniedPaths);
+        }
+    }
+
+    /**
+     * Requests the replication of every given path with a synchronous event of
+     * topic {@value WcmWorkflowService#EVENT_TOPIC}.
+     */
+    private void sendEvents(List<String> deniedPaths) {
+        long start = process.metrics.start();
+        // the event copies its properties, so a single dictionary serves all denied paths
+        Dictionary<String, Object> properties = new Hashtable<String, Object>();
+        properties.put("replicationType", process.getReplicationType());
+        properties.put("userId", userId);
+        for (String aPath : deniedPaths) {
+            // request for "replication action"
+            log.debug("{} is not allowed to replicate this page/asset {}. Issuing request for 'replication",
+                    userId, aPath);
+            properties.put("path", aPath);
+            process.eventAdmin.sendEvent(new Event(WcmWorkflowService.EVENT_TOPIC, properties));
+        }
+        process.metrics.record(Phase.EVENTS, start);
+    }
+
+    /**
+     * Requests the replication of the given paths with asynchronous
+     * {@link ReplicationRequestEvent}s of up to
+     * {@value ReplicationRequestEvent#MAX_PATHS} paths each.
+     */
+    private void postEvents(List<String> deniedPaths) {
+        log.debug("{} is not allowed to replicate {} pages/assets. Issuing request for 'replication",
+                userId, deniedPaths.size());
+        long start = process.metrics.start();
+        for (int from = 0; from < deniedPaths.size(); from += ReplicationRequestEvent.MAX_PATHS) {
+            List<String> slice = deniedPaths.subList(from,
+                    Math.min(deniedPaths.size(), from + ReplicationRequestEvent.MAX_PATHS));
+            final Dictionary<String, Object> properties = new Hashtable<String, Object>();
+            properties.put(ReplicationRequestEvent.PROPERTY_PATHS, slice.toArray(new String[slice.size()]));
+            properties.put(ReplicationRequestEvent.PROPERTY_REPLICATION_TYPE, process.getReplicationType());
+            properties.put(ReplicationRequestEvent.PROPERTY_USER_ID, userId);
+            process.eventAdmin.postEvent(new Event(ReplicationRequestEvent.TOPIC, properties));
+        }
+        process.metrics.record(Phase.EVENTS, start);
+    }
+}
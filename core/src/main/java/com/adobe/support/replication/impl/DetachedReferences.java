@@ -0,0 +1,104 @@
+package com.adobe.support.replication.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+
+import com.day.cq.wcm.api.reference.Reference;
+
+/**
+ * The <code>DetachedReferences</code> are the references a provider found
+ * for a resource, without the resources of the resolver they were found with.
+ * They are kept by path, type, name and the last modification date reported
+ * by the provider, and are resolved again with the resolver of the caller.
+ * <p>
+ * Instances are immutable and may be handed from one thread to another.
+ */
+final class DetachedReferences {
+
+    private static final String[] NO_STRINGS = new String[0];
+
+    private final String[] paths;
+
+    private final String[] types;
+
+    private final String[] names;
+
+    private final long[] lastModified;
+
+    /**
+     * @param references the references found by the providers, may be
+     *            <code>null</code>
+     */
+    DetachedReferences(List<Reference> references) {
+        List<Reference> list = new ArrayList<Reference>(references != null ? references.size() : 0);
+        if (references != null) {
+            for (Reference reference : references) {
+                if (reference.getResource() != null) {
+                    list.add(reference);
+                }
+            }
+        }
+        int size = list.size();
+        paths = size > 0 ? new String[size] : NO_STRINGS;
+        types = size > 0 ? new String[size] : NO_STRINGS;
+        names = size > 0 ? new String[size] : NO_STRINGS;
+        lastModified = new long[size];
+        for (int i = 0; i < size; i++) {
+            Reference reference = list.get(i);
+            paths[i] = reference.getResource().getPath();
+            types[i] = reference.getType();
+            names[i] = reference.getName();
+            lastModified[i] = reference.getLastModified();
+        }
+    }
+
+    int size() {
+        return paths.length;
+    }
+
+    String getPath(int i) {
+        return paths[i];
+    }
+
+    String getType(int i) {
+        return types[i];
+    }
+
+    String getName(int i) {
+        return names[i];
+    }
+
+    /**
+     * @return the last modification date the provider reported for the
+     *         reference
+     */
+    long getLastModified(int i) {
+        return lastModified[i];
+    }
+
+    /**
+     * Resolves the references with the given resolver. References whose
+     * resource does not exist anymore are dropped.
+     *
+     * @param resolver the resolver of the caller
+     * @return the references, carrying the last modification dates reported
+     *         by the providers
+     */
+    List<Reference> resolve(ResourceResolver resolver) {
+        if (paths.length == 0) {
+            return Collections.emptyList();
+        }
+        List<Reference> references = new ArrayList<Reference>(paths.length);
+        for (int i = 0; i < paths.length; i++) {
+            Resource r = resolver.getResource(paths[i]);
+            if (r != null) {
+                references.add(new Reference(types[i], names[i], r, lastModified[i]));
+            }
+        }
+        return references;
+    }
+}
@@ -0,0 +1,111 @@
+package com.adobe.support.replication.impl;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The <code>EdgeStore</code> holds the adjacency blocks of the
+ * {@link ReferenceGraph} outside of the Java heap, in a direct buffer
+ * addressed in <code>int</code>s. Blocks are appended, a freed block only
+ * counts as garbage until the graph copies its live blocks into a new store.
+ * The buffer grows by doubling.
+ * <p>
+ * The store is not thread-safe, the graph guards it with its lock.
+ */
+final class EdgeStore {
+
+    /** Largest capacity in <code>int</code>s a direct buffer can hold. */
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE / 4;
+
+    private ByteBuffer buffer;
+
+    private int used;
+
+    private int garbage;
+
+    /**
+     * @param capacity the initial capacity in <code>int</code>s
+     */
+    EdgeStore(int capacity) {
+        buffer = ByteBuffer.allocateDirect(Math.max(16, capacity) * 4);
+    }
+
+    /**
+     * Appends a block.
+     *
+     * @param ints the size of the block
+     * @return the offset of the block
+     * @throws IllegalStateException if the store cannot grow anymore
+     */
+    int allocate(int ints) {
+        int capacity = buffer.capacity() / 4;
+        if (ints > capacity - used) {
+            long needed = (long) used + ints;
+            if (needed > MAX_CAPACITY) {
+                throw new IllegalStateException("The reference graph exceeds " + MAX_CAPACITY + " ints");
+            }
+            ByteBuffer grown = ByteBuffer.allocateDirect((int) Math.min(MAX_CAPACITY,
+                    Math.max(needed, 2L * capacity)) * 4);
+            ByteBuffer live = buffer.duplicate();
+            live.position(0);
+            live.limit(used * 4);
+            grown.put(live);
+            buffer = grown;
+        }
+        int offset = used;
+        used += ints;
+        return offset;
+    }
+
+    /**
+     * @param ints the size of a block which is not used anymore
+     */
+    void free(int ints) {
+        garbage += ints;
+    }
+
+    int getInt(int index) {
+        return buffer.getInt(index * 4);
+    }
+
+    void putInt(int index, int value) {
+        buffer.putInt(index * 4, value);
+    }
+
+    long getLong(int index) {
+        return buffer.getLong(index * 4);
+    }
+
+    void putLong(int index, long value) {
+        buffer.putLong(index * 4, value);
+    }
+
+    /**
+     * Copies a block of this store into the given store.
+     */
+    void copy(int from, EdgeStore target, int to, int ints) {
+        for (int i = 0; i < ints; i++) {
+            target.putInt(to + i, getInt(from + i));
+        }
+    }
+
+    /**
+     * @return the number of <code>int</code>s appended, including garbage
+     */
+    int getUsed() {
+        return used;
+    }
+
+    /**
+     * @return the number of <code>int</code>s of freed blocks
+     */
+    int getGarbage() {
+        return garbage;
+    }
+
+    /**
+     * @return the size of the buffer in bytes
+     */
+    long getCapacityBytes() {
+        return buffer.capacity();
+    }
+}
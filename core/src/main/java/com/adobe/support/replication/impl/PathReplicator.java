@@ -0,0 +1,492 @@
+package com.adobe.support.replication.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adobe.support.replication.impl.AbstractReplicatePageProcess.Arguments;
+import com.adobe.support.replication.impl.ReplicationMetrics.Phase;
+import com.day.cq.replication.AgentIdFilter;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationException;
+import com.day.cq.replication.ReplicationListener;
+import com.day.cq.replication.ReplicationOptions;
+import com.day.cq.replication.Replicator;
+import com.day.cq.workflow.WorkflowException;
+import com.day.cq.workflow.metadata.MetaDataMap;
+
+/**
+ * The <code>PathReplicator</code> hands the paths of a replication step to
+ * the {@link Replicator}: one by one, in chunks if <code>batchSize</code> is
+ * greater than <code>1</code>, or in one lane per agent if
+ * <code>agentLanes</code> is set. Every call waits for the
+ * {@link ReplicationThrottle} and skips the paths replicated by concurrent
+ * workflows, see {@link ReplicationCoalescer}. The replicated paths are marked
+ * done in the progress of the step, a checkpoint is taken before a failure is
+ * reported.
+ * <p>
+ * An instance serves a single execution of a step and is used by the thread
+ * of that execution only.
+ */
+final class PathReplicator {
+
+    private static final Logger log = LoggerFactory.getLogger(PathReplicator.class);
+
+    private final AbstractReplicatePageProcess process;
+
+    private final Session replicationSession;
+
+    private final ResourceResolver resolver;
+
+    private final Map<String, String> versionMap;
+
+    private final MetaDataMap args;
+
+    private final ReplicationListener listener;
+
+    private final ReplicationProgress progress;
+
+    /**
+     * @param process the step, providing the services and the process arguments
+     * @param replicationSession the session used to replicate
+     * @param resolver the service resolver, used to estimate the payload sizes
+     * @param versionMap Map of available version labels
+     * @param args the process arguments
+     * @param listener listener set on all replication options or <code>null</code>
+     * @param progress the progress of the step
+     */
+    PathReplicator(AbstractReplicatePageProcess process, Session replicationSession, ResourceResolver resolver,
+            Map<String, String> versionMap, MetaDataMap args, ReplicationListener listener,
+            ReplicationProgress progress) {
+        this.process = process;
+        this.replicationSession = replicationSession;
+        this.resolver = resolver;
+        this.versionMap = versionMap;
+        this.args = args;
+        this.listener = listener;
+        this.progress = progress;
+    }
+
+    /**
+     * Replicates the given paths, one by one or, if <code>batchSize</code> is
+     * greater than <code>1</code>, in chunks. Paths replicated by concurrent
+     * workflows are skipped, see {@link ReplicationCoalescer}.
+     */
+    void replicate(List<String> paths) throws ReplicationException, WorkflowException {
+        Map<String, String> revisions = Collections.emptyMap();
+        if (!versionMap.isEmpty()) {
+            revisions = new HashMap<String, String>();
+            for (String aPath : paths) {
+                String versionLabel = AbstractReplicatePageProcess.getVersionLabel(aPath, versionMap);
+                if (StringUtils.isNotEmpty(versionLabel)) {
+                    revisions.put(aPath, versionLabel);
+                }
+            }
+        }
+        ReplicationCoalescer.Claim claim = process.coalescer.claim(process.getReplicationType(), paths, revisions,
+                resolver);
+        try {
+            replicateClaimed(claim.getClaimed());
+            // lets the workflows waiting for these paths continue before waiting for the others
+            claim.release(getDone(claim.getClaimed()));
+            List<String> taken;
+            try {
+                taken = claim.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                progress.checkpoint();
+                throw new WorkflowException("Interrupted while waiting for concurrent replications", e);
+            }
+            replicateClaimed(taken);
+        } finally {
+            claim.close(getDone(claim.getClaimed()));
+            List<String> coalesced = claim.getCoalesced();
+            if (!coalesced.isEmpty()) {
+                log.debug("Skipped {} paths replicated by concurrent workflows", coalesced.size());
+                process.metrics.pathsCoalesced(coalesced.size());
+                progress.done(coalesced.toArray(new String[coalesced.size()]));
+            }
+        }
+    }
+
+    /**
+     * Replicates the given paths in batches of the leading paths which fit
+     * into the budget, at least one path per batch. A batch starts no earlier
+     * than the given interval after the start of the batch before, so the
+     * budget limits the paths reaching the publish instances per interval.
+     * A checkpoint is taken after every batch, so a retry of a failed step
+     * resumes with the batch that failed.
+     *
+     * @param path the payload path
+     * @param paths the paths to replicate
+     * @param budgetPaths maximum number of paths per batch, <code>0</code> for no limit
+     * @param budgetBytes maximum estimated bytes per batch, <code>0</code> for no limit
+     * @param interval minimum time in milliseconds between the starts of two batches
+     * @param delta the delta filter receiving the replicated paths
+     * @throws WorkflowException if interrupted while waiting for the next batch
+     */
+    void replicateBatches(String path, List<String> paths, int budgetPaths, long budgetBytes, long interval,
+            DeltaFilter delta) throws ReplicationException, WorkflowException {
+        PayloadSizeEstimator estimator = budgetBytes > 0 ? new PayloadSizeEstimator(resolver) : null;
+        int from = 0;
+        int batches = 0;
+        long started = 0;
+        while (from < paths.size()) {
+            if (batches > 0) {
+                awaitBatch(started + interval);
+            }
+            started = System.currentTimeMillis();
+            int to = from;
+            long bytes = 0;
+            while (to < paths.size() && (budgetPaths <= 0 || to - from < budgetPaths)) {
+                long size = estimator != null ? estimator.estimate(paths.get(to)) : 0;
+                if (to > from && budgetBytes > 0 && bytes + size > budgetBytes) {
+                    break;
+                }
+                bytes += size;
+                to++;
+            }
+            List<String> batch = paths.subList(from, to);
+            replicate(batch);
+            delta.replicated(batch);
+            from = to;
+            batches++;
+            if (from < paths.size()) {
+                progress.checkpoint();
+            }
+        }
+        log.info("Replicated {} paths of {} in {} batches within the budget", new Object[] { paths.size(), path,
+                batches });
+    }
+
+    /**
+     * Waits for the start of the next budget batch.
+     *
+     * @param start the time in milliseconds the next batch may start
+     * @throws WorkflowException if interrupted while waiting
+     */
+    private void awaitBatch(long start) throws WorkflowException {
+        long wait = start - System.currentTimeMillis();
+        if (wait <= 0) {
+            return;
+        }
+        log.debug("Waiting {}ms for the next batch within the budget", wait);
+        try {
+            Thread.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WorkflowException("Interrupted while waiting for the next batch within the budget", e);
+        }
+    }
+
+    private List<String> getDone(List<String> paths) {
+        List<String> done = new ArrayList<String>(paths.size());
+        for (String aPath : paths) {
+            if (progress.isDone(aPath)) {
+                done.add(aPath);
+            }
+        }
+        return done;
+    }
+
+    private void replicateClaimed(List<String> paths) throws ReplicationException, WorkflowException {
+        if (paths.isEmpty()) {
+            return;
+        }
+        ReplicationMetrics metrics = process.metrics;
+        long start = metrics.start();
+        int batchSize = process.getIntArgument(args, Arguments.BATCH_SIZE, 1);
+        if (Boolean.parseBoolean(process.getArgument(args, Arguments.AGENT_LANES)) && replicateLanes(paths)) {
+            metrics.record(Phase.REPLICATE, start);
+            return;
+        }
+        if (batchSize > 1) {
+            long batchMaxBytes = process.getLongArgument(args, Arguments.BATCH_MAX_BYTES, 0);
+            long batchIsolateBytes = process.getLongArgument(args, Arguments.BATCH_ISOLATE_BYTES, 0);
+            replicateChunks(paths, batchSize, batchMaxBytes, batchIsolateBytes);
+        } else {
+            for (String aPath : paths) {
+                throttle(1);
+                ReplicationOptions opts = newOptions(AbstractReplicatePageProcess.getVersionLabel(aPath, versionMap));
+                try {
+                    process.replicator.replicate(replicationSession, process.getReplicationType(), aPath, opts);
+                } catch (ReplicationException e) {
+                    progress.checkpoint();
+                    throw e;
+                }
+                metrics.pathsReplicated(1);
+                progress.done(aPath);
+            }
+        }
+        metrics.record(Phase.REPLICATE, start);
+    }
+
+    /**
+     * Replicates the given paths in chunks using the multi path
+     * {@link Replicator#replicate(Session, ReplicationActionType, String[], ReplicationOptions)}
+     * call. Paths sharing a revision label are grouped together. A failing chunk
+     * does not stop the remaining chunks, all failures are reported at the end.
+     *
+     * @param paths the paths to replicate
+     * @param batchSize maximum number of paths per chunk
+     * @param batchMaxBytes maximum estimated bytes per chunk, <code>0</code> for no limit
+     * @param batchIsolateBytes estimated bytes from which a path is replicated
+     *            alone after all other chunks, <code>0</code> to disable
+     * @throws WorkflowException if at least one chunk failed
+     */
+    private void replicateChunks(List<String> paths, int batchSize, long batchMaxBytes, long batchIsolateBytes)
+            throws WorkflowException {
+        List<ReplicationChunk> chunks = newChunks(paths, batchSize, batchMaxBytes, batchIsolateBytes);
+        List<ReplicationChunk> failed = new ArrayList<ReplicationChunk>();
+        for (ReplicationChunk chunk : chunks) {
+            ReplicationOptions opts = newOptions(chunk.getRevision());
+            String[] chunkPaths = chunk.getPathArray();
+            // the throttle may split the chunk while the replication queues are filling up
+            for (int from = 0; from < chunkPaths.length;) {
+                int size = throttle(chunkPaths.length - from);
+                String[] part = size == chunkPaths.length ? chunkPaths
+                        : Arrays.copyOfRange(chunkPaths, from, from + size);
+                try {
+                    process.replicator.replicate(replicationSession, process.getReplicationType(), part, opts);
+                    process.metrics.pathsReplicated(part.length);
+                    progress.done(part);
+                } catch (ReplicationException e) {
+                    log.error("Replication of " + chunk + " failed: " + e.getMessage(), e);
+                    failed.add(chunk);
+                    break;
+                }
+                from += size;
+            }
+        }
+        if (!failed.isEmpty()) {
+            progress.checkpoint();
+            throw new WorkflowException(failed.size() + " of " + chunks.size() + " replication chunks failed: " + failed);
+        }
+    }
+
+    private List<ReplicationChunk> newChunks(List<String> paths, int batchSize, long batchMaxBytes,
+            long batchIsolateBytes) {
+        PayloadSizeEstimator estimator = batchMaxBytes > 0 || batchIsolateBytes > 0
+                ? new PayloadSizeEstimator(resolver) : null;
+        ReplicationChunker chunker = new ReplicationChunker(batchSize, batchMaxBytes, batchIsolateBytes);
+        for (String aPath : paths) {
+            String versionLabel = AbstractReplicatePageProcess.getVersionLabel(aPath, versionMap);
+            chunker.add(aPath, StringUtils.isNotEmpty(versionLabel) ? versionLabel : null,
+                    estimator != null ? estimator.estimate(aPath) : 0);
+        }
+        return chunker.finish();
+    }
+
+    /**
+     * Replicates the given paths in one lane per agent, see
+     * {@link ReplicationLanes}. All lanes run in the pool of the lanes with
+     * sessions of the user of the replication session, the calling thread
+     * waits for them until the deadline of the lanes. A path is done once all
+     * lanes replicated it. Failed and timed out lanes fail the step, the retry
+     * replicates the paths not done to all agents again.
+     *
+     * @return <code>false</code> if the paths were not replicated because
+     *         there are less than two agents or the sessions of the lanes
+     *         cannot be opened
+     */
+    private boolean replicateLanes(List<String> paths) throws WorkflowException {
+        ReplicationLanes lanes = process.lanes;
+        List<String> agentIds = lanes.getAgentIds(newOptions(null).getFilter());
+        if (agentIds.size() < 2) {
+            return false;
+        }
+        String userId = replicationSession.getUserID();
+        try {
+            // the lanes open their own sessions, fails early if the user cannot be impersonated
+            process.sessionPool.release(process.sessionPool.getSession(userId));
+        } catch (RepositoryException e) {
+            log.warn("Cannot open the sessions of the replication lanes, replicating to all agents at once: {}",
+                    e.getMessage());
+            return false;
+        }
+        int batchSize = process.getIntArgument(args, Arguments.BATCH_SIZE, 1);
+        List<ReplicationChunk> chunks = newChunks(paths, batchSize,
+                batchSize > 1 ? process.getLongArgument(args, Arguments.BATCH_MAX_BYTES, 0) : 0,
+                batchSize > 1 ? process.getLongArgument(args, Arguments.BATCH_ISOLATE_BYTES, 0) : 0);
+        AtomicIntegerArray remaining = new AtomicIntegerArray(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            remaining.set(i, agentIds.size());
+        }
+        BlockingQueue<ReplicationChunk> completed = new LinkedBlockingQueue<ReplicationChunk>();
+        long deadline = System.currentTimeMillis() + lanes.getTimeout();
+
+        List<ReplicationLane> laneList = new ArrayList<ReplicationLane>(agentIds.size());
+        List<Future<?>> futures = new ArrayList<Future<?>>(agentIds.size());
+        for (String agentId : agentIds) {
+            ReplicationLane lane = new ReplicationLane(agentId, userId, chunks, remaining, completed, deadline);
+            laneList.add(lane);
+            futures.add(lanes.submit(lane));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            Future<?> future = futures.get(i);
+            try {
+                future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                laneList.get(i).timedOut = true;
+            } catch (ExecutionException e) {
+                laneList.get(i).failure = e.getCause();
+            } catch (InterruptedException e) {
+                for (Future<?> other : futures) {
+                    other.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                progress.checkpoint();
+                throw new WorkflowException("Interrupted while waiting for the replication lanes", e);
+            }
+        }
+        for (ReplicationChunk chunk = completed.poll(); chunk != null; chunk = completed.poll()) {
+            process.metrics.pathsReplicated(chunk.size());
+            progress.done(chunk.getPathArray());
+        }
+
+        List<String> failed = new ArrayList<String>();
+        for (ReplicationLane lane : laneList) {
+            if (lane.timedOut) {
+                lanes.timedOut(lane.agentId);
+                failed.add(lane.agentId + " (timed out)");
+            } else if (lane.failure != null) {
+                failed.add(lane.agentId + " (" + lane.failure.getMessage() + ")");
+            }
+        }
+        if (!failed.isEmpty()) {
+            progress.checkpoint();
+            throw new WorkflowException(failed.size() + " of " + laneList.size() + " replication lanes failed: "
+                    + failed);
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the {@link ReplicationThrottle}.
+     *
+     * @param batchSize the number of paths to replicate
+     * @return the number of paths which may be replicated now
+     * @throws WorkflowException if interrupted while waiting
+     */
+    private int throttle(int batchSize) throws WorkflowException {
+        try {
+            return Math.min(batchSize, process.throttle.acquire(batchSize));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            progress.checkpoint();
+            throw new WorkflowException("Interrupted while waiting for the replication queues", e);
+        }
+    }
+
+    private ReplicationOptions newOptions(String versionLabel) {
+        ReplicationOptions opts = new ReplicationOptions();
+
+        // if a version's label exist pass it to the replicator
+        if (StringUtils.isNotEmpty(versionLabel)) {
+            // Set the local revision label
+            opts.setRevision(versionLabel);
+        }
+        if (listener != null) {
+            opts.setListener(listener);
+        }
+        return process.prepareOptions(opts);
+    }
+
+    /**
+     * Replicates the chunks to a single agent, see
+     * {@link PathReplicator#replicateLanes(List)}. A lane stops at the first
+     * failure or once the deadline passed.
+     */
+    private final class ReplicationLane implements Runnable {
+
+        private final String agentId;
+
+        /** The user of the session opened by the lane. */
+        private final String userId;
+
+        private final List<ReplicationChunk> chunks;
+
+        private final AtomicIntegerArray remaining;
+
+        private final BlockingQueue<ReplicationChunk> completed;
+
+        private final long deadline;
+
+        private volatile Throwable failure;
+
+        private volatile boolean timedOut;
+
+        ReplicationLane(String agentId, String userId, List<ReplicationChunk> chunks, AtomicIntegerArray remaining,
+                BlockingQueue<ReplicationChunk> completed, long deadline) {
+            this.agentId = agentId;
+            this.userId = userId;
+            this.chunks = chunks;
+            this.remaining = remaining;
+            this.completed = completed;
+            this.deadline = deadline;
+        }
+
+        public void run() {
+            Session laneSession = null;
+            try {
+                laneSession = process.sessionPool.getSession(userId);
+                for (int i = 0; i < chunks.size(); i++) {
+                    if (System.currentTimeMillis() > deadline) {
+                        timedOut = true;
+                        return;
+                    }
+                    ReplicationChunk chunk = chunks.get(i);
+                    // waits while the queues are full, the chunks of the lanes are not split
+                    process.throttle.acquire(chunk.size());
+                    ReplicationOptions opts = newOptions(chunk.getRevision());
+                    opts.setFilter(new AgentIdFilter(agentId));
+                    long start = System.nanoTime();
+                    try {
+                        if (chunk.size() == 1) {
+                            process.replicator.replicate(laneSession, process.getReplicationType(),
+                                    chunk.getPaths().get(0), opts);
+                        } else {
+                            process.replicator.replicate(laneSession, process.getReplicationType(),
+                                    chunk.getPathArray(), opts);
+                        }
+                    } catch (ReplicationException e) {
+                        process.lanes.record(agentId, System.nanoTime() - start, true);
+                        log.error("Replication of " + chunk + " to " + agentId + " failed: " + e.getMessage(), e);
+                        failure = e;
+                        return;
+                    }
+                    process.lanes.record(agentId, System.nanoTime() - start, false);
+                    if (remaining.decrementAndGet(i) == 0) {
+                        completed.add(chunk);
+                    }
+                }
+            } catch (RepositoryException e) {
+                failure = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                timedOut = true;
+            } finally {
+                process.sessionPool.release(laneSession);
+            }
+        }
+    }
+}
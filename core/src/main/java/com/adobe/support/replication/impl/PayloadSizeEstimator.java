@@ -0,0 +1,82 @@
+package com.adobe.support.replication.impl;
+
+import java.util.Iterator;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+
+import com.day.cq.commons.jcr.JcrConstants;
+
+/**
+ * The <code>PayloadSizeEstimator</code> estimates the size of the replication
+ * content of a path. Assets are accounted with the sum of the binary lengths
+ * of their renditions, as all renditions are part of the replication package.
+ * Assets without readable rendition lengths report their original size via
+ * <code>dam:size</code>, all other resources are accounted with a fixed
+ * default size.
+ */
+public class PayloadSizeEstimator {
+
+    /** Estimated size of a resource without size information. */
+    public static final long DEFAULT_SIZE = 4 * 1024;
+
+    static final String PN_DAM_SIZE = "dam:size";
+
+    static final String NN_METADATA = "metadata";
+
+    static final String NN_RENDITIONS = "renditions";
+
+    private final ResourceResolver resolver;
+
+    public PayloadSizeEstimator(ResourceResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * @param path the path to estimate
+     * @return the estimated size in bytes, <code>0</code> if the path does not exist
+     */
+    public long estimate(String path) {
+        Resource resource = resolver.getResource(path);
+        if (resource == null) {
+            return 0;
+        }
+        long renditions = getRenditionsSize(resource);
+        if (renditions > 0) {
+            return renditions;
+        }
+        Resource metadata = resource.getChild(JcrConstants.JCR_CONTENT + "/" + NN_METADATA);
+        if (metadata != null) {
+            ValueMap props = metadata.adaptTo(ValueMap.class);
+            if (props != null) {
+                Long size = props.get(PN_DAM_SIZE, Long.class);
+                if (size != null && size > 0) {
+                    return size;
+                }
+            }
+        }
+        return DEFAULT_SIZE;
+    }
+
+    /**
+     * Sums the content lengths of the renditions. The length is taken from the
+     * resource metadata, the binaries are not read.
+     *
+     * @return the size in bytes, <code>0</code> if unknown
+     */
+    private static long getRenditionsSize(Resource resource) {
+        Resource renditions = resource.getChild(JcrConstants.JCR_CONTENT + "/" + NN_RENDITIONS);
+        if (renditions == null) {
+            return 0;
+        }
+        long size = 0;
+        for (Iterator<Resource> it = renditions.listChildren(); it.hasNext();) {
+            long length = it.next().getResourceMetadata().getContentLength();
+            if (length > 0) {
+                size += length;
+            }
+        }
+        return size;
+    }
+}
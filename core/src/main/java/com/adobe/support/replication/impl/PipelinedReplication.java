@@ -0,0 +1,167 @@
+package com.adobe.support.replication.impl;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.sling.api.resource.ResourceResolver;
+
+import com.adobe.support.replication.impl.AbstractReplicatePageProcess.Arguments;
+import com.adobe.support.replication.impl.AbstractReplicatePageProcess.PathHandler;
+import com.adobe.support.replication.impl.ReplicationMetrics.Phase;
+import com.day.cq.replication.ReplicationException;
+import com.day.cq.workflow.WorkflowException;
+import com.day.cq.workflow.metadata.MetaDataMap;
+
+/**
+ * The <code>PipelinedReplication</code> replicates the references of a step
+ * with the <code>pipeline</code> argument while they are searched: every
+ * slice of paths handed over by the search is checked for the replicate
+ * privilege, added to the plan of the progress and replicated once
+ * <code>batchSize</code> paths are pending. The payload paths are replicated
+ * last, or first if <code>payloadFirst</code> is set. A failed replication
+ * stops the search, the partial plan is kept for the retry, which skips the
+ * paths replicated by the failed run.
+ * <p>
+ * An instance serves a single execution of a step.
+ */
+final class PipelinedReplication extends PathHandler {
+
+    private final AbstractReplicatePageProcess process;
+
+    private final PathReplicator replicator;
+
+    private final DeniedPathRequests denied;
+
+    private final ResourceResolver resolver;
+
+    private final MetaDataMap args;
+
+    private final ReplicationProgress progress;
+
+    private final DeltaFilter delta;
+
+    private final int batchSize;
+
+    private final Set<String> seen = new HashSet<String>();
+
+    private final List<String> deniedPaths;
+
+    private List<String> pending = new ArrayList<String>();
+
+    /** The new paths of a handed over slice, reused for every slice. */
+    private final List<String> found = new ArrayList<String>();
+
+    private long replicateNanos;
+
+    private Exception failure;
+
+    /**
+     * @param process the step, providing the services and the process arguments
+     * @param replicator the replicator of the step
+     * @param denied the requests of the denied paths
+     * @param resolver the service resolver, used to search the references
+     * @param args the process arguments
+     * @param progress the progress of the step
+     * @param delta the delta filter of the step
+     */
+    PipelinedReplication(AbstractReplicatePageProcess process, PathReplicator replicator, DeniedPathRequests denied,
+            ResourceResolver resolver, MetaDataMap args, ReplicationProgress progress, DeltaFilter delta) {
+        this.process = process;
+        this.replicator = replicator;
+        this.denied = denied;
+        this.resolver = resolver;
+        this.args = args;
+        this.progress = progress;
+        this.delta = delta;
+        this.batchSize = Math.max(1, process.getIntArgument(args, Arguments.BATCH_SIZE, 1));
+        this.deniedPaths = denied.isAggregated() ? new ArrayList<String>() : null;
+    }
+
+    /**
+     * Replicates the given payload paths and their references.
+     *
+     * @param payloadPaths the payload paths
+     * @throws ReplicationException if a path cannot be replicated
+     * @throws WorkflowException if the paths cannot be replicated
+     */
+    void replicate(List<String> payloadPaths) throws ReplicationException, WorkflowException {
+        boolean payloadFirst = Boolean.parseBoolean(process.getArgument(args, Arguments.PAYLOAD_FIRST));
+        long start = process.metrics.start();
+        if (payloadFirst) {
+            handle(payloadPaths);
+            flush();
+        }
+        if (!stopped) {
+            process.searchReferences(payloadPaths, resolver, args, this);
+        }
+        if (!stopped && !payloadFirst) {
+            handle(payloadPaths);
+        }
+        if (!stopped) {
+            flush();
+        }
+        rethrow();
+        process.metrics.recordNanos(Phase.REFERENCE_SEARCH, System.nanoTime() - start - replicateNanos);
+        progress.completePlan();
+        if (deniedPaths != null) {
+            denied.request(deniedPaths);
+        }
+    }
+
+    public boolean handle(List<String> paths) {
+        found.clear();
+        for (String path : paths) {
+            if (seen.add(path)) {
+                found.add(path);
+            }
+        }
+        if (found.isEmpty()) {
+            return true;
+        }
+        process.metrics.pathsDiscovered(found.size());
+        List<String> allowedPaths = denied.filterAllowed(delta.filter(found), deniedPaths);
+        progress.addToPlan(allowedPaths);
+        for (String path : allowedPaths) {
+            // a retried step skips the paths replicated by the failed run
+            if (!progress.isDone(path)) {
+                pending.add(path);
+            }
+        }
+        if (pending.size() >= batchSize) {
+            flush();
+        }
+        return !stopped;
+    }
+
+    private void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<String> paths = pending;
+        pending = new ArrayList<String>();
+        long start = System.nanoTime();
+        try {
+            replicator.replicate(paths);
+            delta.replicated(paths);
+        } catch (ReplicationException e) {
+            failure = e;
+            stopped = true;
+        } catch (WorkflowException e) {
+            failure = e;
+            stopped = true;
+        } finally {
+            replicateNanos += System.nanoTime() - start;
+        }
+    }
+
+    private void rethrow() throws ReplicationException, WorkflowException {
+        if (failure instanceof ReplicationException) {
+            throw (ReplicationException) failure;
+        }
+        if (failure instanceof WorkflowException) {
+            throw (WorkflowException) failure;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.adobe.support.replication.impl;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adobe.support.replication.impl.AbstractReplicatePageProcess.Arguments;
+import com.adobe.support.replication.impl.AbstractReplicatePageProcess.PathHandler;
+import com.adobe.support.replication.impl.ReplicationMetrics.Phase;
+import com.day.cq.replication.ReplicationException;
+import com.day.cq.workflow.WorkflowException;
+import com.day.cq.workflow.metadata.MetaDataMap;
+
+/**
+ * The <code>PlannedReplication</code> collects all paths of a step before
+ * replicating them: the payload paths, their references and resource
+ * collections, filtered by the {@link DeltaFilter} and the replicate
+ * privilege. The collected paths are stored as plan of the progress, so a
+ * retry of a failed step resumes with the paths not replicated yet, see
+ * {@link #resume(String, List)}.
+ * <p>
+ * With <code>dryRun</code>, <code>budgetPaths</code> or
+ * <code>budgetBytes</code> the plan is estimated first. A dry run only stores
+ * the estimate, a plan exceeding its budget fails the step, pauses it for
+ * approval or is replicated in batches within the budget, depending on the
+ * <code>overBudget</code> argument. The batches start at least
+ * <code>batchInterval</code> milliseconds apart, so the plan reaches the
+ * publish instances no faster than the budget allows.
+ * <p>
+ * An instance serves a single execution of a step.
+ */
+final class PlannedReplication {
+
+    private static final Logger log = LoggerFactory.getLogger(PlannedReplication.class);
+
+    private final AbstractReplicatePageProcess process;
+
+    private final PathReplicator replicator;
+
+    private final DeniedPathRequests denied;
+
+    private final ResourceResolver resolver;
+
+    private final Map<String, String> versionMap;
+
+    private final MetaDataMap args;
+
+    private final ReplicationProgress progress;
+
+    private final DeltaFilter delta;
+
+    private final boolean dryRun;
+
+    private final int budgetPaths;
+
+    private final long budgetBytes;
+
+    private final boolean split;
+
+    private final long batchInterval;
+
+    /**
+     * @param process the step, providing the services and the process arguments
+     * @param replicator the replicator of the step
+     * @param denied the requests of the denied paths
+     * @param resolver the service resolver, used to search the references and
+     *            to estimate the payload sizes
+     * @param versionMap Map of available version labels
+     * @param args the process arguments
+     * @param progress the progress of the step
+     * @param delta the delta filter of the step
+     */
+    PlannedReplication(AbstractReplicatePageProcess process, PathReplicator replicator, DeniedPathRequests denied,
+            ResourceResolver resolver, Map<String, String> versionMap, MetaDataMap args,
+            ReplicationProgress progress, DeltaFilter delta) {
+        this.process = process;
+        this.replicator = replicator;
+        this.denied = denied;
+        this.resolver = resolver;
+        this.versionMap = versionMap;
+        this.args = args;
+        this.progress = progress;
+        this.delta = delta;
+        dryRun = Boolean.parseBoolean(process.getArgument(args, Arguments.DRY_RUN));
+        budgetPaths = process.getIntArgument(args, Arguments.BUDGET_PATHS, 0);
+        budgetBytes = process.getLongArgument(args, Arguments.BUDGET_BYTES, 0);
+        split = isBudgeted() && !progress.isApproved() && AbstractReplicatePageProcess.OVER_BUDGET_SPLIT
+                .equalsIgnoreCase(process.getArgument(args, Arguments.OVER_BUDGET));
+        batchInterval = Math.max(0, process.getLongArgument(args, Arguments.BATCH_INTERVAL,
+                AbstractReplicatePageProcess.DEFAULT_BATCH_INTERVAL));
+    }
+
+    /**
+     * @return <code>true</code> if the plan is estimated before it is
+     *         replicated, which rules out the pipelined replication
+     */
+    boolean isEstimated() {
+        return dryRun || isBudgeted();
+    }
+
+    private boolean isBudgeted() {
+        return budgetPaths > 0 || budgetBytes > 0;
+    }
+
+    /**
+     * Replicates the paths of the plan stored by an earlier, failed run which
+     * were not replicated yet.
+     *
+     * @param path the payload path
+     * @param rcPaths the payload paths, e.g. all pages of a workflow package
+     */
+    void resume(String path, List<String> rcPaths) throws ReplicationException, WorkflowException {
+        List<String> remainingPaths = progress.getRemaining();
+        log.info("Resuming replication of {} with {} remaining paths", path, remainingPaths.size());
+        if (split) {
+            replicator.replicateBatches(path, remainingPaths, budgetPaths, budgetBytes, batchInterval, delta);
+        } else {
+            replicatePayloadFirst(remainingPaths, rcPaths);
+        }
+    }
+
+    /**
+     * Collects, plans and replicates the given payload paths and their
+     * references.
+     *
+     * @param path the payload path
+     * @param rcPaths the payload paths, e.g. all pages of a workflow package
+     * @throws WorkflowException if the plan exceeds its budget or cannot be
+     *             replicated
+     */
+    void replicate(String path, List<String> rcPaths) throws ReplicationException, WorkflowException {
+        List<String> deniedPaths = new ArrayList<String>();
+        List<String> allowedPaths = collectPaths(rcPaths, deniedPaths);
+        String exceeded = null;
+        if (isEstimated()) {
+            ReplicationEstimate estimate = estimate(allowedPaths);
+            estimate.setDryRun(dryRun);
+            progress.setEstimate(estimate);
+            // an approved plan is replicated as a whole, the estimate consumes the approval
+            if (isBudgeted() && !progress.isApproved()) {
+                exceeded = estimate.exceeds(budgetPaths, budgetBytes);
+            }
+        }
+        if (dryRun) {
+            log.info("Dry run of {}: {}, {} denied paths", new Object[] { path, progress.getEstimate(),
+                    deniedPaths.size() });
+        } else if (exceeded != null && !split) {
+            if (!AbstractReplicatePageProcess.OVER_BUDGET_PAUSE
+                    .equalsIgnoreCase(process.getArgument(args, Arguments.OVER_BUDGET))) {
+                throw new WorkflowException("Replication of " + path + " exceeds its budget, " + exceeded);
+            }
+            progress.getEstimate().setPending(exceeded);
+            log.warn("Replication of {} awaits approval, {}", path, exceeded);
+        } else {
+            denied.request(deniedPaths);
+            progress.setPlan(allowedPaths);
+            if (exceeded != null) {
+                // the plan is stored first, a retried step resumes with the batch that failed
+                progress.checkpoint();
+                replicator.replicateBatches(path, allowedPaths, budgetPaths, budgetBytes, batchInterval, delta);
+            } else {
+                replicatePayloadFirst(allowedPaths, rcPaths);
+            }
+        }
+    }
+
+    /**
+     * Replicates the given paths. With <code>payloadFirst</code> the payload
+     * paths leading the given paths get packages of their own and are
+     * replicated before the references.
+     *
+     * @param paths the paths to replicate
+     * @param rcPaths the payload paths
+     */
+    private void replicatePayloadFirst(List<String> paths, List<String> rcPaths)
+            throws ReplicationException, WorkflowException {
+        int payloadCount = 0;
+        if (Boolean.parseBoolean(process.getArgument(args, Arguments.PAYLOAD_FIRST))) {
+            Set<String> payload = new HashSet<String>(rcPaths);
+            while (payloadCount < paths.size() && payload.contains(paths.get(payloadCount))) {
+                payloadCount++;
+            }
+            replicator.replicate(paths.subList(0, payloadCount));
+        }
+        replicator.replicate(paths.subList(payloadCount, paths.size()));
+        delta.replicated(paths);
+    }
+
+    /**
+     * Collects the paths to replicate and the paths the replication session
+     * may not replicate.
+     *
+     * @param deniedPaths the list receiving the denied paths
+     * @return the paths the replication session may replicate
+     */
+    private List<String> collectPaths(List<String> rcPaths, List<String> deniedPaths) {
+        final Set<String> pathSet = new LinkedHashSet<String>();
+        boolean payloadFirst = Boolean.parseBoolean(process.getArgument(args, Arguments.PAYLOAD_FIRST));
+        if (payloadFirst) {
+            pathSet.addAll(rcPaths);
+        }
+        long start = process.metrics.start();
+        process.searchReferences(rcPaths, resolver, args, new PathHandler() {
+            public boolean handle(List<String> paths) {
+                pathSet.addAll(paths);
+                return true;
+            }
+        });
+        process.metrics.record(Phase.REFERENCE_SEARCH, start);
+        if (!payloadFirst) {
+            pathSet.addAll(rcPaths);
+        }
+
+        List<String> paths = new ArrayList<String>(pathSet);
+        process.metrics.pathsDiscovered(paths.size());
+        paths = delta.filter(paths);
+        return denied.filterAllowed(paths, deniedPaths);
+    }
+
+    /**
+     * Estimates the cost of replicating the given plan: its size and the
+     * replication items every agent receives, one per chunk if the paths are
+     * replicated in chunks.
+     *
+     * @param paths the planned paths
+     * @return the estimate
+     */
+    private ReplicationEstimate estimate(List<String> paths) {
+        PayloadSizeEstimator estimator = new PayloadSizeEstimator(resolver);
+        int batchSize = process.getIntArgument(args, Arguments.BATCH_SIZE, 1);
+        ReplicationChunker chunker = batchSize > 1 ? new ReplicationChunker(batchSize,
+                process.getLongArgument(args, Arguments.BATCH_MAX_BYTES, 0),
+                process.getLongArgument(args, Arguments.BATCH_ISOLATE_BYTES, 0)) : null;
+        long bytes = 0;
+        for (String aPath : paths) {
+            long size = estimator.estimate(aPath);
+            bytes += size;
+            if (chunker != null) {
+                String versionLabel = AbstractReplicatePageProcess.getVersionLabel(aPath, versionMap);
+                chunker.add(aPath, StringUtils.isNotEmpty(versionLabel) ? versionLabel : null, size);
+            }
+        }
+        int items = chunker != null ? chunker.finish().size() : paths.size();
+        Map<String, Integer> agents = new LinkedHashMap<String, Integer>();
+        for (String agentId : process.lanes.getAgentIds(null)) {
+            agents.put(agentId, items);
+        }
+        return new ReplicationEstimate(paths.size(), bytes, agents);
+    }
+}
@@ -0,0 +1,56 @@
+package com.adobe.support.replication.impl;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.day.cq.workflow.metadata.MetaDataMap;
+
+/**
+ * The <code>ProcessArguments</code> are an immutable copy of the arguments of
+ * a replication step, see
+ * {@link AbstractReplicatePageProcess#copyArguments(MetaDataMap)}. They are
+ * handed to replications outliving the call of the step, which must not read
+ * the arguments of the workflow engine anymore.
+ */
+final class ProcessArguments extends AbstractMap<String, Object> implements MetaDataMap {
+
+    private final Map<String, Object> values;
+
+    ProcessArguments(Map<String, Object> values) {
+        this.values = Collections.unmodifiableMap(new HashMap<String, Object>(values));
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        return values.entrySet();
+    }
+
+    @Override
+    public Object get(Object key) {
+        return values.get(key);
+    }
+
+    /**
+     * @return the value, its string representation if a string is requested or
+     *         <code>null</code> if not set or of another type
+     */
+    public <T> T get(String name, Class<T> type) {
+        Object value = values.get(name);
+        if (type.isInstance(value)) {
+            return type.cast(value);
+        }
+        return value != null && type == String.class ? type.cast(value.toString()) : null;
+    }
+
+    public <T> T get(String name, T defaultValue) {
+        if (defaultValue == null) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        T value = (T) get(name, defaultValue.getClass());
+        return value != null ? value : defaultValue;
+    }
+}
@@ -0,0 +1,265 @@
+package com.adobe.support.replication.impl;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.resource.observation.ExternalResourceChangeListener;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+
+import com.day.cq.commons.jcr.JcrConstants;
+import com.day.cq.wcm.api.NameConstants;
+import com.day.cq.wcm.api.reference.Reference;
+
+/**
+ * The <code>ReferenceCache</code> keeps the references found by the
+ * {@link com.day.cq.wcm.api.reference.ReferenceProvider ReferenceProvider}s
+ * for a resource, so shared content like headers, footers or fragments is not
+ * scanned again for every page being activated.
+ * <p>
+ * An entry is only used if the last modification date of the resource did not
+ * change since it was cached, and it is dropped as soon as the resource or one
+ * of its descendants changes. Only the paths of the references are kept, the
+ * resources are resolved again with the caller's resolver. A hit returns the
+ * last modification dates reported by the providers, and is treated as a miss
+ * if a referenced resource vanished or was modified after caching, so the
+ * providers report the new dates. The least recently used entries are evicted
+ * once the configured size is reached.
+ */
+@Component(metatype = true, immediate = true, label = "Activation Reference Cache",
+        description = "Caches the references found for a resource during the activation reference search.")
+@Service({ ReferenceCache.class, ResourceChangeListener.class, ReferenceCacheMBean.class })
+@Properties({
+        @Property(name = ResourceChangeListener.PATHS, value = { "/content", "/conf" }, propertyPrivate = true),
+        @Property(name = ResourceChangeListener.CHANGES, value = { "ADDED", "CHANGED", "REMOVED" }, propertyPrivate = true),
+        @Property(name = "jmx.objectname", value = "com.adobe.support.replication:type=ReferenceCache", propertyPrivate = true)
+})
+public class ReferenceCache implements ResourceChangeListener, ExternalResourceChangeListener, ReferenceCacheMBean {
+
+    private static final int DEFAULT_SIZE = 1000;
+
+    @Property(intValue = DEFAULT_SIZE, label = "Cache size",
+            description = "Maximum number of resources whose references are cached, 0 disables the cache.")
+    public static final String PROP_SIZE = "cache.size";
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private volatile int maxSize = DEFAULT_SIZE;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > maxSize) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    @Activate
+    @Modified
+    protected void activate(Map<String, Object> properties) {
+        maxSize = Math.max(0, PropertiesUtil.toInteger(properties.get(PROP_SIZE), DEFAULT_SIZE));
+        synchronized (entries) {
+            shrink();
+        }
+    }
+
+    /**
+     * Returns the cached references of the given resource.
+     *
+     * @param resource the resource searched for references
+     * @return the references or <code>null</code> if not cached or outdated
+     */
+    public List<Reference> get(Resource resource) {
+        if (maxSize == 0) {
+            return null;
+        }
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(resource.getPath());
+        }
+        if (entry == null || entry.lastModified != getLastModified(resource)) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        ResourceResolver resolver = resource.getResourceResolver();
+        DetachedReferences cached = entry.references;
+        List<Reference> references = new ArrayList<Reference>(cached.size());
+        for (int i = 0; i < cached.size(); i++) {
+            Resource r = resolver.getResource(cached.getPath(i));
+            if (r == null || getLastModified(r) != entry.targetModified[i]) {
+                misses.incrementAndGet();
+                return null;
+            }
+            references.add(new Reference(cached.getType(i), cached.getName(i), r, cached.getLastModified(i)));
+        }
+        hits.incrementAndGet();
+        return references;
+    }
+
+    /**
+     * Caches the references found for the given resource.
+     *
+     * @param resource the resource searched for references
+     * @param references all references found by all providers
+     */
+    public void put(Resource resource, List<Reference> references) {
+        if (maxSize == 0) {
+            return;
+        }
+        Entry entry = new Entry(getLastModified(resource), references);
+        synchronized (entries) {
+            entries.put(resource.getPath(), entry);
+        }
+    }
+
+    /**
+     * Drops the entries of the changed resources and their ancestors. Removed
+     * resources also drop the entries of their descendants.
+     */
+    public void onChange(List<ResourceChange> changes) {
+        synchronized (entries) {
+            for (ResourceChange change : changes) {
+                String path = change.getPath();
+                if (change.getType() == ResourceChange.ChangeType.REMOVED) {
+                    String prefix = path + "/";
+                    for (Iterator<String> it = entries.keySet().iterator(); it.hasNext();) {
+                        if (it.next().startsWith(prefix)) {
+                            it.remove();
+                            invalidations.incrementAndGet();
+                        }
+                    }
+                }
+                while (path.length() > 1) {
+                    if (entries.remove(path) != null) {
+                        invalidations.incrementAndGet();
+                    }
+                    path = path.substring(0, Math.max(1, path.lastIndexOf('/')));
+                }
+            }
+        }
+    }
+
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    private void shrink() {
+        Iterator<String> it = entries.keySet().iterator();
+        while (entries.size() > maxSize && it.hasNext()) {
+            it.next();
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Reads the last modification date of a resource, preferring the WCM date
+     * over the JCR date. For a resource with a <code>jcr:content</code> child the
+     * date of the child is used.
+     *
+     * @param resource the resource
+     * @return the date in milliseconds or <code>0</code> if unknown
+     */
+    static long getLastModified(Resource resource) {
+        Resource content = JcrConstants.JCR_CONTENT.equals(resource.getName()) ? resource
+                : resource.getChild(JcrConstants.JCR_CONTENT);
+        long lastModified = getLastModified(content != null ? content.adaptTo(ValueMap.class) : null);
+        if (lastModified == 0 && content != resource) {
+            lastModified = getLastModified(resource.adaptTo(ValueMap.class));
+        }
+        return lastModified;
+    }
+
+    private static long getLastModified(ValueMap props) {
+        if (props == null) {
+            return 0;
+        }
+        Calendar date = props.get(NameConstants.PN_PAGE_LAST_MOD, Calendar.class);
+        if (date == null) {
+            date = props.get(JcrConstants.JCR_LASTMODIFIED, Calendar.class);
+        }
+        return date != null ? date.getTimeInMillis() : 0;
+    }
+
+    private static final class Entry {
+
+        private final long lastModified;
+
+        private final DetachedReferences references;
+
+        /**
+         * the last modification dates of the referenced resources when cached
+         */
+        private final long[] targetModified;
+
+        Entry(long lastModified, List<Reference> references) {
+            this.lastModified = lastModified;
+            this.references = new DetachedReferences(references);
+            targetModified = new long[this.references.size()];
+            if (references != null) {
+                // same order as the detached references, which skip references without resource
+                int i = 0;
+                for (Reference reference : references) {
+                    if (reference.getResource() != null) {
+                        targetModified[i++] = getLastModified(reference.getResource());
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,868 @@
+package com.adobe.support.replication.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.observation.ExternalResourceChangeListener;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.osgi.framework.BundleContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.day.cq.commons.jcr.JcrConstants;
+import com.day.cq.wcm.api.reference.Reference;
+
+/**
+ * The <code>ReferenceGraph</code> is a persistent index of the references
+ * found by the {@link com.day.cq.wcm.api.reference.ReferenceProvider
+ * ReferenceProvider}s. Unlike the {@link ReferenceCache} it holds the
+ * references of all indexed resources and also answers the reverse question,
+ * which resources reference a given path.
+ * <p>
+ * Every path is interned once and referred to by an <code>int</code> id. The
+ * forward adjacency of a resource, target, type and name ids plus the last
+ * modification dates of every reference, and the reverse adjacency of a path,
+ * the ids of its sources, are blocks of an off-heap {@link EdgeStore}. A
+ * lookup therefore costs one hash lookup plus the number of references. Like
+ * a cache entry an indexed resource is only used while its last modification
+ * date did not change, and a hit returns the dates the providers reported,
+ * unless a referenced resource vanished or was modified since it was indexed.
+ * The id of a path neither indexed nor referenced is released and handed out
+ * again.
+ * <p>
+ * Changes below <code>/content</code> and <code>/conf</code> drop the affected
+ * resources from the graph and queue their pages for the
+ * {@link ReferenceGraphIndexer}, which searches them again in the background.
+ * The graph is written to a memory mapped snapshot file when the component
+ * stops and after a rebuild, and loaded from it on start. The indexed
+ * resources are also kept sorted by path, so a removed resource drops its
+ * descendants without scanning the graph. The graph is disabled by default.
+ */
+@Component(metatype = true, immediate = true, label = "Activation Reference Graph",
+        description = "Persistent forward and reverse index of the references found during the activation reference search.")
+@Service({ ReferenceGraph.class, ResourceChangeListener.class, ReferenceGraphMBean.class })
+@Properties({
+        @Property(name = ResourceChangeListener.PATHS, value = { "/content", "/conf" }, propertyPrivate = true),
+        @Property(name = ResourceChangeListener.CHANGES, value = { "ADDED", "CHANGED", "REMOVED" }, propertyPrivate = true),
+        @Property(name = "jmx.objectname", value = "com.adobe.support.replication:type=ReferenceGraph", propertyPrivate = true)
+})
+public class ReferenceGraph implements ResourceChangeListener, ExternalResourceChangeListener, ReferenceGraphMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(ReferenceGraph.class);
+
+    private static final boolean DEFAULT_ENABLED = false;
+
+    @Property(boolValue = DEFAULT_ENABLED, label = "Enabled",
+            description = "Index the references of all searched resources and keep the index up to date.")
+    public static final String PROP_ENABLED = "graph.enabled";
+
+    @Property(value = "", label = "Snapshot file",
+            description = "File the graph is persisted to. Empty uses the data area of the bundle.")
+    public static final String PROP_SNAPSHOT = "graph.snapshot";
+
+    private static final String SNAPSHOT_NAME = "reference-graph.bin";
+
+    private static final int MAGIC = 0x52454732;
+
+    private static final String CONTENT_SEGMENT = "/" + JcrConstants.JCR_CONTENT;
+
+    /**
+     * Ints per forward edge: target, type and name id, the last modification
+     * date reported by the provider and the one of the target when indexed.
+     */
+    private static final int EDGE = 7;
+
+    private static final int TYPE = 1;
+
+    private static final int NAME = 2;
+
+    private static final int LAST_MODIFIED = 3;
+
+    private static final int TARGET_MODIFIED = 5;
+
+    /** Minimum number of garbage ints before the store is compacted. */
+    private static final int MIN_GARBAGE = 1 << 16;
+
+    private static final int INITIAL_IDS = 1024;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<String, Integer> pathIds = new HashMap<String, Integer>();
+
+    /** The indexed resources by path, for the descendants of removed resources. */
+    private final NavigableMap<String, Integer> sourceIds = new TreeMap<String, Integer>();
+
+    private String[] paths = new String[INITIAL_IDS];
+
+    /** Highest id in use plus one. */
+    private int pathCount;
+
+    private int[] freeIds = new int[16];
+
+    private int freeCount;
+
+    private final Map<String, Integer> labelIds = new HashMap<String, Integer>();
+
+    private final List<String> labels = new ArrayList<String>();
+
+    private EdgeStore store = new EdgeStore(INITIAL_IDS * EDGE);
+
+    /** Offset of the forward edges of a resource in the store. */
+    private int[] forwardOffset = new int[INITIAL_IDS];
+
+    /** Number of forward edges of a resource, <code>-1</code> if not indexed. */
+    private int[] forwardCount = newForwardCount(INITIAL_IDS);
+
+    private long[] modified = new long[INITIAL_IDS];
+
+    /** Offset of the sources referencing a path in the store. */
+    private int[] reverseOffset = new int[INITIAL_IDS];
+
+    private int[] reverseSize = new int[INITIAL_IDS];
+
+    private int[] reverseCapacity = new int[INITIAL_IDS];
+
+    private int sourceCount;
+
+    private int edgeCount;
+
+    private final Set<String> dirty = new LinkedHashSet<String>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong updates = new AtomicLong();
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private volatile boolean enabled = DEFAULT_ENABLED;
+
+    private volatile File snapshot;
+
+    @Activate
+    protected void activate(BundleContext bundleContext, Map<String, Object> properties) {
+        String file = PropertiesUtil.toString(properties.get(PROP_SNAPSHOT), "");
+        if (file.length() > 0) {
+            snapshot = new File(file);
+        } else if (bundleContext != null) {
+            snapshot = bundleContext.getDataFile(SNAPSHOT_NAME);
+        }
+        modified(properties);
+        if (enabled && snapshot != null && snapshot.isFile()) {
+            try {
+                load(snapshot);
+            } catch (IOException e) {
+                log.warn("Cannot load the reference graph from " + snapshot + ", it has to be rebuilt", e);
+                clear();
+            }
+        }
+    }
+
+    @Modified
+    protected void modified(Map<String, Object> properties) {
+        enabled = PropertiesUtil.toBoolean(properties.get(PROP_ENABLED), DEFAULT_ENABLED);
+        if (!enabled) {
+            clear();
+        }
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        if (enabled) {
+            saveSnapshot();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Returns the indexed references of the given resource.
+     *
+     * @param resource the resource searched for references
+     * @return the references or <code>null</code> if not indexed or outdated
+     */
+    public List<Reference> get(Resource resource) {
+        if (!enabled) {
+            return null;
+        }
+        long lastModified = ReferenceCache.getLastModified(resource);
+        String[] targets = null;
+        String[] types = null;
+        String[] names = null;
+        long[] providerModified = null;
+        long[] targetModified = null;
+        lock.readLock().lock();
+        try {
+            Integer id = pathIds.get(resource.getPath());
+            if (id != null && forwardCount[id] >= 0 && modified[id] == lastModified) {
+                int count = forwardCount[id];
+                targets = new String[count];
+                types = new String[count];
+                names = new String[count];
+                providerModified = new long[count];
+                targetModified = new long[count];
+                for (int i = 0, e = forwardOffset[id]; i < count; i++, e += EDGE) {
+                    targets[i] = paths[store.getInt(e)];
+                    types[i] = labels.get(store.getInt(e + TYPE));
+                    names[i] = labels.get(store.getInt(e + NAME));
+                    providerModified[i] = store.getLong(e + LAST_MODIFIED);
+                    targetModified[i] = store.getLong(e + TARGET_MODIFIED);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (targets == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        // a vanished or modified target makes the providers report it again
+        ResourceResolver resolver = resource.getResourceResolver();
+        List<Reference> references = new ArrayList<Reference>(targets.length);
+        for (int i = 0; i < targets.length; i++) {
+            Resource r = resolver.getResource(targets[i]);
+            if (r == null || ReferenceCache.getLastModified(r) != targetModified[i]) {
+                misses.incrementAndGet();
+                return null;
+            }
+            references.add(new Reference(types[i], names[i], r, providerModified[i]));
+        }
+        hits.incrementAndGet();
+        return references;
+    }
+
+    /**
+     * Replaces the indexed references of the given resource.
+     *
+     * @param resource the resource searched for references
+     * @param references all references found by all providers
+     */
+    public void put(Resource resource, List<Reference> references) {
+        if (!enabled) {
+            return;
+        }
+        long lastModified = ReferenceCache.getLastModified(resource);
+        lock.writeLock().lock();
+        try {
+            index(resource.getPath(), lastModified, references);
+            compactIfWasteful();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Indexes the given references unless the resource is indexed with its
+     * current modification date already. Used for references which did not
+     * come from the providers, so the graph does not miss resources answered
+     * by the {@link ReferenceCache}.
+     *
+     * @param resource the resource searched for references
+     * @param references all references of the resource
+     */
+    public void putIfAbsent(Resource resource, List<Reference> references) {
+        if (!enabled) {
+            return;
+        }
+        long lastModified = ReferenceCache.getLastModified(resource);
+        lock.writeLock().lock();
+        try {
+            Integer id = pathIds.get(resource.getPath());
+            if (id == null || forwardCount[id] < 0 || modified[id] != lastModified) {
+                index(resource.getPath(), lastModified, references);
+                compactIfWasteful();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void index(String path, long lastModified, List<Reference> references) {
+        int source = intern(path);
+        unlink(source);
+        int[] edges = new int[references != null ? references.size() * EDGE : 0];
+        int length = 0;
+        if (references != null) {
+            for (Reference reference : references) {
+                Resource r = reference.getResource();
+                if (r == null) {
+                    continue;
+                }
+                edges[length] = intern(r.getPath());
+                edges[length + TYPE] = label(reference.getType());
+                edges[length + NAME] = label(reference.getName());
+                setLong(edges, length + LAST_MODIFIED, reference.getLastModified());
+                setLong(edges, length + TARGET_MODIFIED, ReferenceCache.getLastModified(r));
+                length += EDGE;
+            }
+        }
+        link(source, lastModified, edges, length / EDGE);
+        updates.incrementAndGet();
+    }
+
+    /**
+     * Stores the forward edges of the given source and adds the source to the
+     * reverse adjacency of its targets.
+     *
+     * @param edges the edges, {@value #EDGE} ints each
+     * @param count the number of edges
+     */
+    private void link(int source, long lastModified, int[] edges, int count) {
+        int offset = count > 0 ? store.allocate(count * EDGE) : 0;
+        for (int i = 0; i < count * EDGE; i++) {
+            store.putInt(offset + i, edges[i]);
+        }
+        forwardOffset[source] = offset;
+        forwardCount[source] = count;
+        modified[source] = lastModified;
+        sourceIds.put(paths[source], source);
+        sourceCount++;
+        edgeCount += count;
+        for (int e = 0; e < count * EDGE; e += EDGE) {
+            addReverse(edges[e], source);
+        }
+    }
+
+    private void addReverse(int target, int source) {
+        int size = reverseSize[target];
+        if (size == reverseCapacity[target]) {
+            int capacity = Math.max(4, size * 2);
+            int offset = store.allocate(capacity);
+            if (size > 0) {
+                store.copy(reverseOffset[target], store, offset, size);
+                store.free(reverseCapacity[target]);
+            }
+            reverseOffset[target] = offset;
+            reverseCapacity[target] = capacity;
+        }
+        store.putInt(reverseOffset[target] + size, source);
+        reverseSize[target] = size + 1;
+    }
+
+    private void removeReverse(int target, int source) {
+        int offset = reverseOffset[target];
+        int size = reverseSize[target];
+        for (int i = 0; i < size; i++) {
+            if (store.getInt(offset + i) == source) {
+                store.putInt(offset + i, store.getInt(offset + size - 1));
+                reverseSize[target] = size - 1;
+                break;
+            }
+        }
+        if (reverseSize[target] == 0) {
+            store.free(reverseCapacity[target]);
+            reverseCapacity[target] = 0;
+        }
+    }
+
+    /**
+     * Drops the forward edges of the given source and its entries in the
+     * reverse adjacency of its targets. Targets nothing refers to anymore are
+     * released, the source is kept.
+     */
+    private boolean unlink(int source) {
+        int count = forwardCount[source];
+        if (count < 0) {
+            return false;
+        }
+        int offset = forwardOffset[source];
+        forwardCount[source] = -1;
+        sourceIds.remove(paths[source]);
+        sourceCount--;
+        edgeCount -= count;
+        for (int e = offset; e < offset + count * EDGE; e += EDGE) {
+            int target = store.getInt(e);
+            removeReverse(target, source);
+            if (target != source) {
+                release(target);
+            }
+        }
+        store.free(count * EDGE);
+        return true;
+    }
+
+    /**
+     * Releases the id of a path which is neither indexed nor referenced.
+     */
+    private void release(int id) {
+        if (forwardCount[id] >= 0 || reverseSize[id] > 0) {
+            return;
+        }
+        pathIds.remove(paths[id]);
+        paths[id] = null;
+        freeId(id);
+    }
+
+    private void freeId(int id) {
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = id;
+    }
+
+    private int intern(String path) {
+        Integer id = pathIds.get(path);
+        if (id != null) {
+            return id;
+        }
+        int newId;
+        if (freeCount > 0) {
+            newId = freeIds[--freeCount];
+        } else {
+            if (pathCount == paths.length) {
+                grow(paths.length * 2);
+            }
+            newId = pathCount++;
+        }
+        paths[newId] = path;
+        forwardCount[newId] = -1;
+        modified[newId] = 0;
+        reverseSize[newId] = 0;
+        reverseCapacity[newId] = 0;
+        pathIds.put(path, newId);
+        return newId;
+    }
+
+    private void grow(int capacity) {
+        paths = Arrays.copyOf(paths, capacity);
+        forwardOffset = Arrays.copyOf(forwardOffset, capacity);
+        int length = forwardCount.length;
+        forwardCount = Arrays.copyOf(forwardCount, capacity);
+        Arrays.fill(forwardCount, length, capacity, -1);
+        modified = Arrays.copyOf(modified, capacity);
+        reverseOffset = Arrays.copyOf(reverseOffset, capacity);
+        reverseSize = Arrays.copyOf(reverseSize, capacity);
+        reverseCapacity = Arrays.copyOf(reverseCapacity, capacity);
+    }
+
+    /**
+     * Copies the live blocks into a new store once more than half of the store
+     * is garbage.
+     */
+    private void compactIfWasteful() {
+        int garbage = store.getGarbage();
+        if (garbage < MIN_GARBAGE || garbage < store.getUsed() / 2) {
+            return;
+        }
+        EdgeStore compacted = new EdgeStore(Math.max(INITIAL_IDS * EDGE, (store.getUsed() - garbage) * 2));
+        for (int id = 0; id < pathCount; id++) {
+            int count = forwardCount[id];
+            if (count > 0) {
+                int offset = compacted.allocate(count * EDGE);
+                store.copy(forwardOffset[id], compacted, offset, count * EDGE);
+                forwardOffset[id] = offset;
+            }
+            int capacity = reverseCapacity[id];
+            if (capacity > 0) {
+                int offset = compacted.allocate(capacity);
+                store.copy(reverseOffset[id], compacted, offset, reverseSize[id]);
+                reverseOffset[id] = offset;
+            }
+        }
+        store = compacted;
+    }
+
+    private static void setLong(int[] ints, int index, long value) {
+        ints[index] = (int) (value >>> 32);
+        ints[index + 1] = (int) value;
+    }
+
+    private static int[] newForwardCount(int capacity) {
+        int[] count = new int[capacity];
+        Arrays.fill(count, -1);
+        return count;
+    }
+
+    private int label(String label) {
+        String value = label != null ? label : "";
+        Integer id = labelIds.get(value);
+        if (id == null) {
+            id = labels.size();
+            labels.add(value);
+            labelIds.put(value, id);
+        }
+        return id;
+    }
+
+    /**
+     * Drops the changed resources from the graph and queues their pages or
+     * assets for indexing. Removed resources also drop their descendants.
+     */
+    public void onChange(List<ResourceChange> changes) {
+        if (!enabled) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            for (ResourceChange change : changes) {
+                String path = change.getPath();
+                int content = contentIndex(path);
+                if (content < 0 && change.getType() == ResourceChange.ChangeType.REMOVED) {
+                    // the removed resource and its indexed descendants, in path order
+                    List<Integer> removed = new ArrayList<Integer>(sourceIds.subMap(path, true,
+                            path + "/" + Character.MAX_VALUE, false).values());
+                    String prefix = path + "/";
+                    for (Integer id : removed) {
+                        String source = paths[id];
+                        if ((source.equals(path) || source.startsWith(prefix)) && unlink(id)) {
+                            release(id);
+                            invalidations.incrementAndGet();
+                        }
+                    }
+                    continue;
+                }
+                String source = content < 0 ? path : path.substring(0, content + CONTENT_SEGMENT.length());
+                Integer id = pathIds.get(source);
+                if (id != null && unlink(id)) {
+                    release(id);
+                    invalidations.incrementAndGet();
+                }
+                dirty.add(content < 0 ? path : path.substring(0, content));
+            }
+            compactIfWasteful();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the index of the first <code>/jcr:content</code> segment of the path or <code>-1</code>
+     */
+    private static int contentIndex(String path) {
+        int index = path.indexOf(CONTENT_SEGMENT);
+        while (index >= 0) {
+            int end = index + CONTENT_SEGMENT.length();
+            if (end == path.length() || path.charAt(end) == '/') {
+                return index;
+            }
+            index = path.indexOf(CONTENT_SEGMENT, end);
+        }
+        return -1;
+    }
+
+    /**
+     * Returns and forgets the pages and assets changed since the last call.
+     *
+     * @return the paths to be searched again
+     */
+    public List<String> takeDirty() {
+        lock.writeLock().lock();
+        try {
+            List<String> list = new ArrayList<String>(dirty);
+            dirty.clear();
+            return list;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param path a page, an asset or any other searched resource
+     * @return the indexed reference paths, empty if not indexed
+     */
+    public String[] getReferences(String path) {
+        lock.readLock().lock();
+        try {
+            Integer id = pathIds.get(path + CONTENT_SEGMENT);
+            if (id == null || forwardCount[id] < 0) {
+                id = pathIds.get(path);
+            }
+            int count = id != null ? Math.max(0, forwardCount[id]) : 0;
+            String[] result = new String[count];
+            for (int i = 0; i < count; i++) {
+                result[i] = paths[store.getInt(forwardOffset[id] + i * EDGE)];
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param path a referenced path, e.g. an asset
+     * @return the pages and other resources referencing the path, empty if none is indexed
+     */
+    public String[] getReferrers(String path) {
+        lock.readLock().lock();
+        try {
+            Integer id = pathIds.get(path);
+            int size = id != null ? reverseSize[id] : 0;
+            Set<String> result = new LinkedHashSet<String>(size * 2);
+            for (int i = 0; i < size; i++) {
+                String source = paths[store.getInt(reverseOffset[id] + i)];
+                result.add(source.endsWith(CONTENT_SEGMENT)
+                        ? source.substring(0, source.length() - CONTENT_SEGMENT.length()) : source);
+            }
+            return result.toArray(new String[result.size()]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getSourceCount() {
+        lock.readLock().lock();
+        try {
+            return sourceCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getPathCount() {
+        lock.readLock().lock();
+        try {
+            return pathIds.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getEdgeCount() {
+        lock.readLock().lock();
+        try {
+            return edgeCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getStoreBytes() {
+        lock.readLock().lock();
+        try {
+            return store.getCapacityBytes();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getDirtyCount() {
+        lock.readLock().lock();
+        try {
+            return dirty.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getUpdateCount() {
+        return updates.get();
+    }
+
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            pathIds.clear();
+            sourceIds.clear();
+            paths = new String[INITIAL_IDS];
+            pathCount = 0;
+            freeCount = 0;
+            labelIds.clear();
+            labels.clear();
+            store = new EdgeStore(INITIAL_IDS * EDGE);
+            forwardOffset = new int[INITIAL_IDS];
+            forwardCount = newForwardCount(INITIAL_IDS);
+            modified = new long[INITIAL_IDS];
+            reverseOffset = new int[INITIAL_IDS];
+            reverseSize = new int[INITIAL_IDS];
+            reverseCapacity = new int[INITIAL_IDS];
+            sourceCount = 0;
+            edgeCount = 0;
+            dirty.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public String saveSnapshot() {
+        File file = snapshot;
+        if (file == null) {
+            return "No snapshot file configured";
+        }
+        try {
+            save(file);
+            return "Saved " + getSourceCount() + " resources to " + file;
+        } catch (IOException e) {
+            log.warn("Cannot save the reference graph to " + file, e);
+            return "Cannot save the reference graph: " + e.getMessage();
+        }
+    }
+
+    /**
+     * Writes the interned paths, the labels and the forward adjacency. Released
+     * ids are written as paths of length <code>-1</code>. The reverse adjacency
+     * is derived again on load. The file is written next to the snapshot and
+     * then moved over it.
+     */
+    private void save(File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        lock.readLock().lock();
+        try {
+            byte[][] pathBytes = new byte[pathCount][];
+            byte[][] labelBytes = new byte[labels.size()][];
+            long size = 4 + 4 + 4 + 4;
+            for (int id = 0; id < pathCount; id++) {
+                pathBytes[id] = paths[id] != null ? paths[id].getBytes(StandardCharsets.UTF_8) : null;
+                size += 4 + (pathBytes[id] != null ? pathBytes[id].length : 0);
+            }
+            for (int id = 0; id < labelBytes.length; id++) {
+                labelBytes[id] = labels.get(id).getBytes(StandardCharsets.UTF_8);
+                size += 4 + labelBytes[id].length;
+            }
+            for (int id = 0; id < pathCount; id++) {
+                if (forwardCount[id] >= 0) {
+                    size += 4 + 8 + 4 + 4L * EDGE * forwardCount[id];
+                }
+            }
+
+            RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+            try {
+                raf.setLength(size);
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buffer.putInt(MAGIC);
+                buffer.putInt(pathBytes.length);
+                for (byte[] bytes : pathBytes) {
+                    if (bytes != null) {
+                        buffer.putInt(bytes.length).put(bytes);
+                    } else {
+                        buffer.putInt(-1);
+                    }
+                }
+                buffer.putInt(labelBytes.length);
+                for (byte[] bytes : labelBytes) {
+                    buffer.putInt(bytes.length).put(bytes);
+                }
+                buffer.putInt(sourceCount);
+                for (int id = 0; id < pathCount; id++) {
+                    int count = forwardCount[id];
+                    if (count >= 0) {
+                        buffer.putInt(id).putLong(modified[id]).putInt(count);
+                        for (int i = 0; i < count * EDGE; i++) {
+                            buffer.putInt(store.getInt(forwardOffset[id] + i));
+                        }
+                    }
+                }
+                buffer.force();
+            } finally {
+                raf.close();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void load(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        lock.writeLock().lock();
+        try {
+            clear();
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a reference graph snapshot");
+            }
+            int count = buffer.getInt();
+            if (count > paths.length) {
+                grow(count);
+            }
+            for (int id = 0; id < count; id++) {
+                String path = readString(buffer);
+                if (path != null) {
+                    paths[id] = path;
+                    pathIds.put(path, id);
+                }
+            }
+            pathCount = count;
+            count = buffer.getInt();
+            for (int id = 0; id < count; id++) {
+                label(readString(buffer));
+            }
+            count = buffer.getInt();
+            int[] edges = new int[0];
+            for (int i = 0; i < count; i++) {
+                int source = buffer.getInt();
+                long lastModified = buffer.getLong();
+                int edgeTotal = buffer.getInt();
+                if (edges.length < edgeTotal * EDGE) {
+                    edges = new int[edgeTotal * EDGE];
+                }
+                buffer.asIntBuffer().get(edges, 0, edgeTotal * EDGE);
+                buffer.position(buffer.position() + 4 * EDGE * edgeTotal);
+                link(source, lastModified, edges, edgeTotal);
+            }
+            // the ids of the paths written as released are handed out again
+            for (int id = pathCount - 1; id >= 0; id--) {
+                if (paths[id] == null) {
+                    freeId(id);
+                }
+            }
+            log.info("Loaded {} resources with {} references from {}", new Object[] { sourceCount, edgeCount, file });
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt reference graph snapshot " + file, e);
+        } finally {
+            lock.writeLock().unlock();
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the string or <code>null</code> if written with length <code>-1</code>
+     */
+    private static String readString(MappedByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,258 @@
+package com.adobe.support.replication.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adobe.support.replication.ActivationReferenceSearch;
+import com.day.cq.commons.jcr.JcrConstants;
+
+/**
+ * The <code>ReferenceGraphIndexer</code> keeps the {@link ReferenceGraph} up
+ * to date. In the configured interval it searches the pages and assets changed
+ * since the last run again, and on request it rebuilds the whole graph by
+ * searching every resource with a <code>jcr:content</code> child below the
+ * configured roots.
+ * <p>
+ * The indexer uses the regular {@link ActivationReferenceSearch}, which puts
+ * the references found into the graph. It reads with the
+ * <code>wcm-workflow-service</code> service user. Nothing is done while the
+ * graph is disabled.
+ */
+@Component(metatype = true, immediate = true, label = "Activation Reference Graph Indexer",
+        description = "Updates and rebuilds the activation reference graph in the background.")
+@Service(ReferenceGraphIndexerMBean.class)
+@Property(name = "jmx.objectname", value = "com.adobe.support.replication:type=ReferenceGraphIndexer", propertyPrivate = true)
+public class ReferenceGraphIndexer implements ReferenceGraphIndexerMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(ReferenceGraphIndexer.class);
+
+    private static final long DEFAULT_INTERVAL = 5000;
+
+    @Property(longValue = DEFAULT_INTERVAL, label = "Interval",
+            description = "Time in milliseconds between two updates of the changed pages and assets.")
+    public static final String PROP_INTERVAL = "indexer.interval";
+
+    @Property(value = { "/content" }, label = "Rebuild roots",
+            description = "Paths below which all pages and assets are searched by a rebuild.")
+    public static final String PROP_ROOTS = "indexer.rebuild.roots";
+
+    private static final boolean DEFAULT_REBUILD_ON_START = false;
+
+    @Property(boolValue = DEFAULT_REBUILD_ON_START, label = "Rebuild on start",
+            description = "Rebuild the graph when the indexer starts and the graph is empty.")
+    public static final String PROP_REBUILD_ON_START = "indexer.rebuild.on.start";
+
+    private static final String WCM_WORKFLOW_SERVICE = "wcm-workflow-service";
+
+    /** Number of paths passed to a single search. */
+    private static final int SLICE_SIZE = 100;
+
+    @Reference
+    private ReferenceGraph graph;
+
+    @Reference
+    private ActivationReferenceSearch activationReferenceSearch;
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    private volatile ScheduledExecutorService executor;
+
+    private volatile String[] roots = new String[] { "/content" };
+
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+
+    private final AtomicLong indexed = new AtomicLong();
+
+    private volatile long lastRebuild;
+
+    @Activate
+    protected void activate(Map<String, Object> properties) {
+        long interval = Math.max(100, PropertiesUtil.toLong(properties.get(PROP_INTERVAL), DEFAULT_INTERVAL));
+        roots = PropertiesUtil.toStringArray(properties.get(PROP_ROOTS), new String[] { "/content" });
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "activation-reference-graph-indexer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                update();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        if (PropertiesUtil.toBoolean(properties.get(PROP_REBUILD_ON_START), DEFAULT_REBUILD_ON_START)
+                && graph.isEnabled() && graph.getSourceCount() == 0) {
+            rebuild();
+        }
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        ScheduledExecutorService pool = executor;
+        executor = null;
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Searches the pages and assets changed since the last update.
+     */
+    void update() {
+        if (!graph.isEnabled()) {
+            return;
+        }
+        List<String> changed = graph.takeDirty();
+        if (changed.isEmpty()) {
+            return;
+        }
+        ResourceResolver resolver = null;
+        try {
+            resolver = login();
+            List<String> existing = new ArrayList<String>(changed.size());
+            for (String path : changed) {
+                if (resolver.getResource(path) != null) {
+                    existing.add(path);
+                }
+            }
+            index(existing, resolver);
+            log.debug("Updated the references of {} changed resources", existing.size());
+        } catch (LoginException e) {
+            log.warn("Cannot update the reference graph: {}", e.getMessage());
+        } catch (RuntimeException e) {
+            log.warn("Update of the reference graph failed", e);
+        } finally {
+            if (resolver != null && resolver.isLive()) {
+                resolver.close();
+            }
+        }
+    }
+
+    public String rebuild() {
+        ScheduledExecutorService pool = executor;
+        if (pool == null || !graph.isEnabled()) {
+            return "The reference graph is disabled";
+        }
+        if (!rebuilding.compareAndSet(false, true)) {
+            return "A rebuild is already running";
+        }
+        pool.execute(new Runnable() {
+            public void run() {
+                try {
+                    doRebuild();
+                } finally {
+                    rebuilding.set(false);
+                }
+            }
+        });
+        return "Rebuild of " + Arrays.toString(roots) + " started";
+    }
+
+    private void doRebuild() {
+        long start = System.currentTimeMillis();
+        ResourceResolver resolver = null;
+        try {
+            resolver = login();
+            graph.clear();
+            int count = 0;
+            List<String> slice = new ArrayList<String>(SLICE_SIZE);
+            for (String root : roots) {
+                Resource rootResource = resolver.getResource(root);
+                if (rootResource == null) {
+                    continue;
+                }
+                Deque<Resource> stack = new ArrayDeque<Resource>();
+                stack.push(rootResource);
+                while (!stack.isEmpty()) {
+                    Resource resource = stack.pop();
+                    boolean searched = false;
+                    for (Iterator<Resource> it = resource.listChildren(); it.hasNext();) {
+                        Resource child = it.next();
+                        if (JcrConstants.JCR_CONTENT.equals(child.getName())) {
+                            searched = true;
+                        } else {
+                            stack.push(child);
+                        }
+                    }
+                    if (searched) {
+                        slice.add(resource.getPath());
+                        if (slice.size() == SLICE_SIZE) {
+                            count += index(slice, resolver);
+                            slice.clear();
+                        }
+                    }
+                    if (Thread.currentThread().isInterrupted()) {
+                        log.info("Rebuild of the reference graph interrupted after {} resources", count);
+                        return;
+                    }
+                }
+            }
+            count += index(slice, resolver);
+            lastRebuild = System.currentTimeMillis();
+            log.info("Rebuilt the reference graph from {} resources in {}ms", count, lastRebuild - start);
+            graph.saveSnapshot();
+        } catch (LoginException e) {
+            log.warn("Cannot rebuild the reference graph: {}", e.getMessage());
+        } catch (RuntimeException e) {
+            log.warn("Rebuild of the reference graph failed", e);
+        } finally {
+            if (resolver != null && resolver.isLive()) {
+                resolver.close();
+            }
+        }
+    }
+
+    private int index(List<String> paths, ResourceResolver resolver) {
+        for (int from = 0; from < paths.size(); from += SLICE_SIZE) {
+            List<String> slice = paths.subList(from, Math.min(paths.size(), from + SLICE_SIZE));
+            activationReferenceSearch.search(slice.toArray(new String[slice.size()]), resolver, 1, Integer.MAX_VALUE);
+        }
+        indexed.addAndGet(paths.size());
+        return paths.size();
+    }
+
+    private ResourceResolver login() throws LoginException {
+        return resolverFactory.getServiceResourceResolver(
+                Collections.singletonMap(ResourceResolverFactory.SUBSERVICE, (Object) WCM_WORKFLOW_SERVICE));
+    }
+
+    public boolean isRebuilding() {
+        return rebuilding.get();
+    }
+
+    public long getIndexedCount() {
+        return indexed.get();
+    }
+
+    public long getLastRebuild() {
+        return lastRebuild;
+    }
+}
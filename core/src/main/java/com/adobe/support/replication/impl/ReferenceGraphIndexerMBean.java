@@ -0,0 +1,15 @@
+package com.adobe.support.replication.impl;
+
+/**
+ * JMX view on the {@link ReferenceGraphIndexer}.
+ */
+public interface ReferenceGraphIndexerMBean {
+
+    boolean isRebuilding();
+
+    long getIndexedCount();
+
+    long getLastRebuild();
+
+    String rebuild();
+}
@@ -0,0 +1,35 @@
+package com.adobe.support.replication.impl;
+
+/**
+ * JMX view on the {@link ReferenceGraph}.
+ */
+public interface ReferenceGraphMBean {
+
+    boolean isEnabled();
+
+    int getSourceCount();
+
+    int getPathCount();
+
+    int getEdgeCount();
+
+    long getStoreBytes();
+
+    int getDirtyCount();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    long getUpdateCount();
+
+    long getInvalidationCount();
+
+    String[] getReferences(String path);
+
+    String[] getReferrers(String path);
+
+    String saveSnapshot();
+
+    void clear();
+}
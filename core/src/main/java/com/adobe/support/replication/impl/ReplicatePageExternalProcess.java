@@ -0,0 +1,225 @@
+package com.adobe.support.replication.impl;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.sling.commons.json.JSONException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.adobe.support.replication.impl.ReplicationMetrics.Phase;
+import com.day.cq.workflow.WorkflowException;
+import com.day.cq.workflow.WorkflowSession;
+import com.day.cq.workflow.exec.WorkItem;
+import com.day.cq.workflow.exec.WorkflowData;
+import com.day.cq.workflow.exec.WorkflowExternalProcess;
+import com.day.cq.workflow.metadata.MetaDataMap;
+
+/**
+ * The <code>ReplicatePageExternalProcess</code> is the asynchronous variant of
+ * the {@link ReplicatePageProcess}. It supports the same arguments, but only
+ * resolves the payload on the workflow thread. The reference search and the
+ * replication run on the pool of the {@link AsyncReplicationTracker}, so the
+ * workflow thread is released at once and the engine polls for the
+ * completion.
+ * <p>
+ * The background run cannot use the workflow session, it impersonates the
+ * participant or, if not replicating as participant, the user of the workflow
+ * session through the <code>wcm-workflow-service</code> service user. Unlike
+ * the blocking step, it fails if replicating as participant and the
+ * participant cannot be resolved, instead of replicating as the workflow
+ * user. The arguments are copied before the run is submitted. The step fails
+ * if any replication action failed or any agent reported an error.
+ * <p>
+ * The fingerprints of the <code>delta</code> argument are only stored once
+ * the engine collects the result and all agents reported success.
+ * <p>
+ * The background run cannot store its progress itself. Its checkpoints are
+ * stored whenever the engine polls for the completion, and once more when
+ * the engine collects the result, so a retry after a restart only replicates
+ * the paths not replicated before the last poll.
+ */
+@Component(componentAbstract = true)
+public abstract class ReplicatePageExternalProcess extends AbstractReplicatePageProcess
+        implements WorkflowExternalProcess {
+    /**
+     * the logger
+     */
+    private static final Logger log = LoggerFactory.getLogger(ReplicatePageExternalProcess.class);
+
+    @Reference
+    protected AsyncReplicationTracker tracker;
+
+    /**
+     * Submits the replication of the payload.
+     *
+     * @return the id of the {@link AsyncReplication} or <code>null</code> if the
+     *         payload does not exist
+     * @see com.day.cq.workflow.exec.WorkflowExternalProcess#execute(WorkItem, WorkflowSession, MetaDataMap)
+     */
+    public Serializable execute(WorkItem workItem, WorkflowSession workflowSession, MetaDataMap args)
+            throws WorkflowException {
+        try {
+            Session session = workflowSession.getSession();
+            final String path = getPayloadPath(workItem, session);
+            if (path == null) {
+                log.warn("Cannot activate page or asset because path is null for this " + "workitem: "
+                        + workItem.toString());
+                return null;
+            }
+            final Map<String, String> versionMap = getVersionMap(workItem);
+            final String workflowUserId = session.getUserID();
+            final String participantId;
+            if (replicateAsParticipant(args)) {
+                participantId = resolveParticipantId(workItem, workflowSession);
+                if (participantId == null) {
+                    throw new WorkflowException("Cannot resolve the participant to replicate " + path
+                            + ", the workflow model needs a participant step ahead of this step");
+                }
+            } else {
+                participantId = null;
+            }
+            // the engine may change its arguments once the step returned
+            final MetaDataMap arguments = copyArguments(args);
+            final ReplicationProgress progress = new BackgroundProgress(getStepId(workItem),
+                    workItem.getWorkflowData().getMetaDataMap());
+
+            AsyncReplication replication = tracker.submit(path, new AsyncReplicationTracker.Task() {
+                public void run(AsyncReplication replication) throws Exception {
+                    replicateInBackground(path, versionMap, participantId, workflowUserId, arguments, replication,
+                            progress);
+                }
+            });
+            replication.setProgress(progress);
+            log.debug("Submitted {} for work item {}", replication, workItem.getId());
+            return replication.getId();
+        } catch (RepositoryException e) {
+            throw new WorkflowException(e);
+        } catch (JSONException e) {
+            throw new WorkflowException(e);
+        }
+    }
+
+    /**
+     * Stores the progress of a running replication if it took a checkpoint
+     * since the last poll.
+     *
+     * @return <code>true</code> if the replication ended or is unknown
+     * @see com.day.cq.workflow.exec.WorkflowExternalProcess#hasFinished(Serializable, WorkItem, WorkflowSession, MetaDataMap)
+     */
+    public boolean hasFinished(Serializable externalProcessId, WorkItem workItem, WorkflowSession workflowSession,
+            MetaDataMap args) {
+        AsyncReplication replication = externalProcessId != null ? tracker.get(externalProcessId.toString()) : null;
+        if (replication == null || replication.isDone()) {
+            return true;
+        }
+        ReplicationProgress progress = replication.getProgress();
+        if (progress instanceof BackgroundProgress && ((BackgroundProgress) progress).takeCheckpoint()) {
+            WorkflowData data = workItem.getWorkflowData();
+            try {
+                progress.save(data.getMetaDataMap());
+                workflowSession.updateWorkflowData(workItem.getWorkflow(), data);
+            } catch (RuntimeException e) {
+                log.warn("Cannot store the replication progress of " + workItem.getId(), e);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Completes the step if all replications succeeded. Otherwise the progress
+     * is stored in the workflow metadata, so the retried step only replicates
+     * the remaining paths.
+     *
+     * @throws WorkflowException if the replication failed or got lost
+     * @see com.day.cq.workflow.exec.WorkflowExternalProcess#handleResult(Serializable, WorkItem, WorkflowSession, MetaDataMap)
+     */
+    public void handleResult(Serializable externalProcessId, WorkItem workItem, WorkflowSession workflowSession,
+            MetaDataMap args) throws WorkflowException {
+        if (externalProcessId == null) {
+            return;
+        }
+        AsyncReplication replication = tracker.remove(externalProcessId.toString());
+        if (replication == null) {
+            throw new WorkflowException("Replication " + externalProcessId
+                    + " is unknown, it was probably lost by a restart");
+        }
+        WorkflowData data = workItem.getWorkflowData();
+        ReplicationProgress progress = replication.getProgress();
+        if (!replication.isSuccessful()) {
+            progress.retry(replication.getFailedPaths());
+            progress.save(data.getMetaDataMap());
+            workflowSession.updateWorkflowData(workItem.getWorkflow(), data);
+        } else if (progress.clear(data.getMetaDataMap())) {
+            workflowSession.updateWorkflowData(workItem.getWorkflow(), data);
+        }
+        if (replication.getError() != null) {
+            throw new WorkflowException("Replication of " + replication.getPath() + " failed: "
+                    + replication.getError().getMessage(), replication.getError());
+        }
+        if (!replication.getFailures().isEmpty()) {
+            throw new WorkflowException(replication.getFailures().size() + " replication actions of "
+                    + replication.getPath() + " failed: " + replication.getFailures());
+        }
+        storeFingerprints(replication.getFingerprints());
+        log.info("Replicated {} with {} replication actions in {}ms", new Object[] { replication.getPath(),
+                replication.getActionCount(), replication.getFinished() - replication.getCreated() });
+    }
+
+    private void replicateInBackground(String path, Map<String, String> versionMap, String participantId,
+            String workflowUserId, MetaDataMap args, AsyncReplication replication, ReplicationProgress progress)
+            throws WorkflowException {
+        final long executeStart = metrics.start();
+        boolean failed = true;
+        Session replicationSession = null;
+        try {
+            long start = metrics.start();
+            String userId = participantId != null ? participantId : workflowUserId;
+            replicationSession = getParticipantSession(userId, null);
+            metrics.record(Phase.IMPERSONATION, start);
+            if (replicationSession == null) {
+                throw new WorkflowException("Cannot impersonate " + userId + " to replicate " + path);
+            }
+
+            replication.setFingerprints(replicate(path, versionMap, replicationSession, workflowUserId, args,
+                    replication, progress));
+            failed = false;
+        } finally {
+            metrics.record(Phase.EXECUTE, executeStart);
+            metrics.executed(failed);
+            releaseParticipantSession(replicationSession);
+        }
+    }
+
+    /**
+     * The progress of a background run. A checkpoint only flags the progress,
+     * it is stored by the next poll of the engine, see
+     * {@link ReplicatePageExternalProcess#hasFinished}.
+     */
+    private static final class BackgroundProgress extends ReplicationProgress {
+
+        private final AtomicBoolean checkpointPending = new AtomicBoolean();
+
+        BackgroundProgress(String stepId, MetaDataMap metaData) {
+            super(stepId, metaData);
+        }
+
+        @Override
+        protected void checkpoint() {
+            checkpointPending.set(true);
+        }
+
+        /**
+         * @return <code>true</code> if a checkpoint was taken since the last call
+         */
+        boolean takeCheckpoint() {
+            return checkpointPending.getAndSet(false);
+        }
+    }
+}
@@ -1,55 +1,22 @@
 package com.adobe.support.replication.impl;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Dictionary;
-import java.util.HashMap;
-import java.util.Hashtable;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 
-import javax.jcr.AccessDeniedException;
-import javax.jcr.Node;
-import javax.jcr.Repository;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
-import javax.jcr.SimpleCredentials;
-import javax.jcr.security.AccessControlManager;
-import javax.jcr.security.Privilege;
 
-import org.apache.commons.lang3.StringUtils;
 import org.apache.felix.scr.annotations.Component;
-import org.apache.felix.scr.annotations.Reference;
-import org.apache.jackrabbit.JcrConstants;
-import org.apache.sling.api.resource.LoginException;
-import org.apache.sling.api.resource.ResourceResolver;
-import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.apache.sling.commons.json.JSONException;
-import org.apache.sling.commons.json.JSONObject;
-import org.apache.sling.jcr.api.SlingRepository;
-import org.osgi.service.event.Event;
-import org.osgi.service.event.EventAdmin;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.adobe.granite.workflow.collection.ResourceCollection;
-import com.adobe.granite.workflow.collection.ResourceCollectionManager;
-import com.adobe.support.replication.ActivationReferenceSearch;
-import com.day.cq.replication.ReplicationActionType;
-import com.day.cq.replication.ReplicationException;
-import com.day.cq.replication.ReplicationOptions;
-import com.day.cq.replication.Replicator;
-import com.day.cq.wcm.workflow.api.WcmWorkflowService;
-import com.day.cq.wcm.workflow.process.ResourceCollectionHelper;
+import com.adobe.support.replication.impl.ReplicationMetrics.Phase;
 import com.day.cq.workflow.WorkflowException;
 import com.day.cq.workflow.WorkflowSession;
-import com.day.cq.workflow.exec.HistoryItem;
 import com.day.cq.workflow.exec.WorkItem;
 import com.day.cq.workflow.exec.WorkflowData;
 import com.day.cq.workflow.exec.WorkflowProcess;
 import com.day.cq.workflow.metadata.MetaDataMap;
-import com.day.cq.workflow.model.WorkflowNode;
 
 /**
  * This abstract <code>ReplicatePageProcess</code> class serves as the basis for
@@ -63,7 +30,16 @@ import com.day.cq.workflow.model.WorkflowNode;
  * In case the {@link com.day.cq.workflow.WorkflowSession Session} starting the
  * process is lacking the Privilege to replicate, an event of this topic
  * <code>{@value com.day.cq.wcm.workflow.api.WcmWorkflowService#EVENT_TOPIC}</code>
- * is send out. Listeners to this topic, may handle this situation.
+ * is send out. Listeners to this topic, may handle this situation.<br>
+ * If the payload is a workflow package, the references of all pages of the
+ * package are searched together and references shared by several pages are
+ * replicated only once.<br>
+ * The planned paths and the progress of the replication are stored in the
+ * workflow metadata. If the step fails and is retried, only the remaining
+ * paths are replicated.<br>
+ * While the queues of the replication agents are filling up, the
+ * {@link ReplicationThrottle} delays the replication and reduces the chunk size.
+ * Paths replicated by concurrent workflows are skipped, see {@link ReplicationCoalescer}.<br>
  * <b>Configuration</b>
  * This process supports the following configuration arguments:
  * <dl>
@@ -74,72 +50,119 @@ import com.day.cq.workflow.model.WorkflowNode;
  * a participant or dynamic participant step modeled ahead this replication process, to determine the participant. If no
  * participant can be determined, it falls back to workflow-session-service-user.
  * </dd>
+ * <dt>batchSize</dt>
+ * <dd>Maximum number of paths sent to the replicator in a single call. Default is <code>1</code>, meaning every path
+ * is replicated with its own call. Values greater than <code>1</code> group the paths into chunks, each resulting in one
+ * replication package per agent. Paths with different revision labels are never grouped together.
+ * </dd>
+ * <dt>batchMaxBytes</dt>
+ * <dd>Optional upper limit of the estimated payload size of a chunk in bytes. Only used if <code>batchSize</code> is
+ * greater than <code>1</code>. Default is <code>0</code>, meaning chunks are limited by <code>batchSize</code> only.
+ * Assets are estimated with the lengths of their renditions.
+ * </dd>
+ * <dt>batchIsolateBytes</dt>
+ * <dd>Optional estimated payload size in bytes from which a path is replicated in a chunk of its own, after all other
+ * chunks. Only used if <code>batchSize</code> is greater than <code>1</code>. Default is <code>0</code>, meaning huge
+ * assets are grouped like all other paths.
+ * </dd>
+ * <dt>payloadFirst</dt>
+ * <dd>Boolean flag to replicate the payload before its references. Default is <code>false</code>, meaning the
+ * references are replicated first, so the payload never refers to content missing on the publish instances. If set
+ * to <code>true</code> the approved payload is visible earlier, its references follow.
+ * </dd>
+ * <dt>referenceDepth</dt>
+ * <dd>Number of reference levels to follow. Default is <code>1</code>, meaning only the direct references of the
+ * payload are activated. Higher values also activate the references of the references, e.g. the assets of an
+ * experience fragment used by the page.
+ * </dd>
+ * <dt>maxReferences</dt>
+ * <dd>Maximum number of references collected by the reference search. Default is unlimited.
+ * </dd>
+ * <dt>deniedEvents</dt>
+ * <dd>How the replication of paths the user may not replicate is requested. Default is <code>perPath</code>, sending
+ * one synchronous event of topic <code>{@value com.day.cq.wcm.workflow.api.WcmWorkflowService#EVENT_TOPIC}</code>
+ * per path. <code>aggregated</code> posts asynchronous
+ * {@link com.adobe.support.replication.ReplicationRequestEvent}s carrying up to
+ * {@value com.adobe.support.replication.ReplicationRequestEvent#MAX_PATHS} paths each instead.
+ * </dd>
+ * <dt>pipeline</dt>
+ * <dd>Boolean flag to replicate the references while they are still searched. Default is <code>false</code>, meaning
+ * all references are collected before the first one is replicated. If set to <code>true</code> the references are
+ * replicated as soon as <code>batchSize</code> of them were found, the payload is replicated last. A failed
+ * replication stops the search, the retried step searches again and skips the paths already replicated.
+ * </dd>
+ * <dt>agentLanes</dt>
+ * <dd>Boolean flag to replicate to every agent in a lane of its own, see {@link ReplicationLanes}. Default is
+ * <code>false</code>, meaning every replicator call delivers to all agents one after the other. If set to
+ * <code>true</code> and there are at least two agents, the lanes run in parallel and the step takes about as long as
+ * the slowest agent. A failed or timed out lane fails the step, the retry replicates the paths not replicated by all
+ * lanes to all agents again.
+ * </dd>
+ * <dt>delta</dt>
+ * <dd>Skips the paths which did not change since their last activation, including the payload and the pages of a
+ * workflow package. Default is <code>false</code>. <code>modified</code> compares the last modification with the
+ * last activation. <code>fingerprint</code> additionally compares a fingerprint of the <code>jcr:content</code>
+ * subtree of modified paths with the one stored at their last activation, see {@link DeltaFilter}.
+ * </dd>
+ * <dt>dryRun</dt>
+ * <dd>Boolean flag to only estimate the plan, see {@link ReplicationEstimate}. Default is <code>false</code>. If set
+ * to <code>true</code> the paths are collected and the number of paths, their estimated size and the replication
+ * items per agent are stored in the workflow metadata, nothing is replicated and no denied events are sent.
+ * <code>pipeline</code> is ignored.
+ * </dd>
+ * <dt>budgetPaths</dt>
+ * <dd>Maximum number of paths of a plan. Default is <code>0</code>, meaning unlimited. A budgeted plan is estimated
+ * before it is replicated, <code>pipeline</code> is ignored.
+ * </dd>
+ * <dt>budgetBytes</dt>
+ * <dd>Maximum estimated size in bytes of a plan. Default is <code>0</code>, meaning unlimited.
+ * </dd>
+ * <dt>overBudget</dt>
+ * <dd>What happens to a plan exceeding <code>budgetPaths</code> or <code>budgetBytes</code>. Default is
+ * <code>fail</code>, failing the step before anything is replicated. <code>pause</code> replicates nothing and sets
+ * <code>replicationPlan.&lt;node id&gt;.pending</code>, an OR split of the model routes the workflow to a participant
+ * who approves the plan with <code>replicationPlan.&lt;node id&gt;.approved</code> set to <code>true</code> before the
+ * step runs again. <code>split</code> replicates the plan in batches within the budget, started at least
+ * <code>batchInterval</code> apart, the progress is stored after every batch, so a retry of a failed step resumes
+ * with the batch that failed.
+ * </dd>
+ * <dt>batchInterval</dt>
+ * <dd>Minimum time in milliseconds between the starts of two batches of a plan split by <code>overBudget</code>.
+ * Default is <code>60000</code>. The step waits for the next batch, the blocking step holds its workflow thread
+ * meanwhile, the asynchronous step a thread of its pool.
+ * </dd>
  * </dl>
  *
  */
 @Component(componentAbstract = true)
-public abstract class ReplicatePageProcess implements WorkflowProcess {
+public abstract class ReplicatePageProcess extends AbstractReplicatePageProcess implements WorkflowProcess {
     /**
      * the logger
      */
     private static final Logger log = LoggerFactory.getLogger(ReplicatePageProcess.class);
 
-    public static final String TYPE_JCR_PATH = "JCR_PATH";
-    public static final String TYPE_JCR_UUID = "JCR_UUID";
-
-    private static final String WCM_WORKFLOW_SERVICE = "wcm-workflow-service";
-
-    @Reference
-    protected Replicator replicator;
-
-    @Reference
-    protected EventAdmin eventAdmin;
-
-    @Reference
-    protected ResourceCollectionManager rcManager;
-
-    @Reference
-    protected SlingRepository repository;
-    
-    @Reference
-    private ResourceResolverFactory resolverFactory;
-
-    @Reference
-    ActivationReferenceSearch activationReferenceSearch;
-    
-    private enum Arguments {
-        PROCESS_ARGS("PROCESS_ARGS"), REPLICATE_AS_PARTICIPANT("replicateAsParticipant");
-
-        private String argumentName;
-
-        Arguments(String argumentName) {
-            this.argumentName = argumentName;
-        }
-
-        public String getArgumentName() {
-            return this.argumentName;
-        }
-    }
-
     /**
      * @see com.day.cq.workflow.exec.WorkflowProcess#execute(com.day.cq.workflow.exec.WorkItem,
      *      com.day.cq.workflow.WorkflowSession,
      *      com.day.cq.workflow.metadata.MetaDataMap)
      */
-    public void execute(WorkItem workItem, WorkflowSession workflowSession, MetaDataMap args) throws WorkflowException {
+    public void execute(final WorkItem workItem, final WorkflowSession workflowSession, MetaDataMap args)
+            throws WorkflowException {
 
         Session participantSession = null;
         Session replicationSession = null;
-        Session serviceSession = null;
-        ResourceResolver resolver = null;
+        final long executeStart = metrics.start();
+        boolean failed = true;
         try {
             Session session = workflowSession.getSession();
 
             if (replicateAsParticipant(args)) {
+                long start = metrics.start();
                 String approverId = resolveParticipantId(workItem, workflowSession);
                 if (approverId != null) {
                     participantSession = getParticipantSession(approverId, workflowSession);
                 }
+                metrics.record(Phase.IMPERSONATION, start);
             }
 
             if (participantSession != null) {
@@ -148,225 +171,41 @@ public abstract class ReplicatePageProcess implements WorkflowProcess {
                 replicationSession = session;
             }
 
-            WorkflowData data = workItem.getWorkflowData();
-            String path = null;
-            String type = data.getPayloadType();
-
-            if (type.equals(TYPE_JCR_PATH) && data.getPayload() != null) {
-                String payloadData = (String) data.getPayload();
-                if (session.itemExists(payloadData)) {
-                    path = payloadData;
-                }
-            } else if (data.getPayload() != null && type.equals(TYPE_JCR_UUID)) {
-                Node node = session.getNodeByUUID((String) data.getPayload());
-                path = node.getPath();
-            }
-
-            MetaDataMap metaDataMap = data.getMetaDataMap();
-            Map<String, String> versionMap = new HashMap<String, String>();
-
-            if (metaDataMap.containsKey("versions")) {
-                JSONObject versionJs = new JSONObject(data.getMetaDataMap().get("versions", String.class));
-                Iterator iterator = versionJs.keys();
-
-                while (iterator.hasNext()) {
-                    String key = (String)iterator.next();
-                    versionMap.put(key, (String)versionJs.get(key));
-                }
-            }
+            String path = getPayloadPath(workItem, session);
+            Map<String, String> versionMap = getVersionMap(workItem);
 
             if (path != null) {
-            	final Map<String, Object> authInfo = Collections.singletonMap(
-                        ResourceResolverFactory.SUBSERVICE,
-                        (Object) WCM_WORKFLOW_SERVICE);
-            	resolver = resolverFactory.getServiceResourceResolver(authInfo);
-
-                serviceSession = resolver.adaptTo(Session.class);
-                // check for resource collection
-                log.info(serviceSession.getUserID());
-                List<ResourceCollection> rcCollections = rcManager.getCollectionsForNode((Node) serviceSession.getItem(path));
-
-                List<String> paths = new ArrayList<String>();
-                paths.addAll(activationReferenceSearch.search(new String[] {path}, resolver));
-
-                // get list of paths to replicate (no resource collection: size
-                // == 1
-                // otherwise size >= 1
-                List<String> rcPaths = ResourceCollectionHelper.getPaths(path, rcCollections);
-                if(rcPaths != null && rcPaths.size() > 0) {
-                	paths.addAll(rcPaths);
-                }
-                		                		
-                for (String aPath : paths) {
-                    if (canReplicate(replicationSession, aPath)) {
-                        ReplicationOptions opts = new ReplicationOptions();
-                        String versionLabel = getVersionLabel(aPath, versionMap);
-
-                        // if a version's label exist pass it to the replicator
-                        if (StringUtils.isNotEmpty(versionLabel)) {
-                            // Set the local revision label
-                            opts.setRevision(versionLabel);
+                final WorkflowData data = workItem.getWorkflowData();
+                ReplicationProgress progress = new ReplicationProgress(getStepId(workItem), data.getMetaDataMap()) {
+                    @Override
+                    protected void checkpoint() {
+                        try {
+                            save(data.getMetaDataMap());
+                            workflowSession.updateWorkflowData(workItem.getWorkflow(), data);
+                        } catch (RuntimeException e) {
+                            log.warn("Cannot store the replication progress of " + workItem.getId(), e);
                         }
-                        opts = prepareOptions(opts);
-                        replicator.replicate(replicationSession, getReplicationType(), aPath, opts);
-                    } else {
-                        // request for "replication action"
-                        log.debug(session.getUserID() + " is not allowed to replicate " + "this page/asset " + aPath
-                                + ". Issuing request for 'replication");
-                        final Dictionary<String, Object> properties = new Hashtable<String, Object>();
-                        properties.put("path", aPath);
-                        properties.put("replicationType", getReplicationType());
-                        properties.put("userId", session.getUserID());
-                        Event event = new Event(WcmWorkflowService.EVENT_TOPIC, properties);
-                        eventAdmin.sendEvent(event);
                     }
+                };
+                Map<String, String> fingerprints = replicate(path, versionMap, replicationSession,
+                        session.getUserID(), args, null, progress);
+                storeFingerprints(fingerprints);
+                if (progress.clear(data.getMetaDataMap())) {
+                    workflowSession.updateWorkflowData(workItem.getWorkflow(), data);
                 }
             } else {
                 log.warn("Cannot activate page or asset because path is null for this " + "workitem: "
                         + workItem.toString());
             }
+            failed = false;
         } catch (RepositoryException e) {
             throw new WorkflowException(e);
-        } catch (ReplicationException e) {
-            throw new WorkflowException(e);
         } catch (JSONException e) {
             throw new WorkflowException(e);
-        } catch (LoginException e) {
-			throw new WorkflowException(e);
 		} finally {
-            if (participantSession != null && participantSession.isLive()) {
-                participantSession.logout();
-                participantSession = null;
-            }
-            if(resolver != null && resolver.isLive()) {
-            	resolver.close();
-            }
-            if(serviceSession != null && serviceSession.isLive()){
-                serviceSession.logout();
-                serviceSession = null;
-            }
+            metrics.record(Phase.EXECUTE, executeStart);
+            metrics.executed(failed);
+            releaseParticipantSession(participantSession);
         }
     }
-
-    /**
-     * Returns the latest version for the given resource path
-     *
-     * @param path Path to the resource
-     * @param versionMap Map of available version labels
-     * @return
-     */
-    private String getVersionLabel(String path, Map<String, String> versionMap) {
-        if (StringUtils.isEmpty(path)) {
-            return null;
-        }
-
-        if (versionMap.containsKey(path)) {
-            return versionMap.get(path);
-        }
-
-        if (!path.endsWith("/" + JcrConstants.JCR_CONTENT)) {
-            path += "/" + JcrConstants.JCR_CONTENT;
-        }
-
-        return versionMap.get(path);
-    }
-
-    /**
-     * Determine the replication mode from the arguments map.
-     *
-     * @param args The process arguments
-     * @return Depending on the process arguments <code>true</code> if the replication is supposed to take place under
-     *         the participants context, <code>false</code> otherwise.
-     */
-    private boolean replicateAsParticipant(MetaDataMap args) {
-        String processArgs = args.get(Arguments.PROCESS_ARGS.getArgumentName(), String.class);
-        if (processArgs != null && !processArgs.equals("")) {
-            String[] arguments = processArgs.split(",");
-            for (String argument : arguments) {
-                String[] split = argument.split("=");
-                if (split.length == 2) {
-                    String key = split[0];
-                    String value = split[1];
-                    if (key.equalsIgnoreCase(Arguments.REPLICATE_AS_PARTICIPANT.getArgumentName())) {
-                        return Boolean.parseBoolean(value);
-                    }
-                }
-            }
-            return false;
-        } else {
-            return args.get(Arguments.REPLICATE_AS_PARTICIPANT.getArgumentName(), Boolean.FALSE);
-        }
-    }
-
-    /**
-     * Get a session for the given approver.
-     *
-     * @param participantId
-     * @param workflowSession
-     * @return The approver's session or <code>null</code> in case of repository exceptions.
-     */
-
-    private Session getParticipantSession(String participantId, WorkflowSession workflowSession) {
-        try {
-            return this.repository.impersonateFromService(WCM_WORKFLOW_SERVICE,new SimpleCredentials(participantId,new char[0]),null);
-        } catch (Exception e) {
-            log.warn(e.getMessage());
-            return null;
-        }
-    }
-
-    /**
-     * Travael up the session's history to find the latest participant step or dynamic participant step and use it's
-     * current assignee as approver.
-     *
-     * @param workItem
-     * @param workflowSession
-     * @return The approver's id of the latest participant/dynamic participant step in the history. In case there is no
-     *         participant step, <code>null</code> is returned.
-     */
-    private String resolveParticipantId(WorkItem workItem, WorkflowSession workflowSession) {
-        List<HistoryItem> history = new ArrayList<HistoryItem>();
-        try {
-            history = workflowSession.getHistory(workItem.getWorkflow());
-            for (int index = history.size() - 1; index >= 0; index--) {
-                HistoryItem previous = history.get(index);
-                String type = previous.getWorkItem().getNode().getType();
-                if (type != null && (type.equals(WorkflowNode.TYPE_PARTICIPANT) || type.equals(WorkflowNode.TYPE_DYNAMIC_PARTICIPANT))) {
-                    return previous.getUserId();
-                }
-            }
-            return null;
-        } catch (Exception e) {
-            log.warn(e.getMessage());
-            return null;
-        }
-    }
-
-    /**
-     * Specifies the <code>{@link ReplicationActionType}</code> for which this
-     * class is designed for.
-     *
-     * @return <code>{@link ReplicationActionType}</code>
-     */
-    public abstract ReplicationActionType getReplicationType();
-
-    /**
-     * Allows subclasses to mangle with the replication options.
-     * @param opts Options for replication
-     * @return the options or <code>null</code>
-     */
-    protected ReplicationOptions prepareOptions(ReplicationOptions opts) {
-        return opts;
-    }
-
-    protected boolean canReplicate(Session session, String path) throws AccessDeniedException {
-        try {
-            AccessControlManager acMgr = session.getAccessControlManager();
-            return acMgr.hasPrivileges(path, new Privilege[]{acMgr.privilegeFromName(Replicator.REPLICATE_PRIVILEGE)});
-        } catch (RepositoryException e) {
-            return false;
-        }
-    }
-
-    // ---------- SCR Integration ----------------------------------------------
-}
\ No newline at end of file
+}
@@ -0,0 +1,174 @@
+package com.adobe.support.replication.impl;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.security.AccessControlManager;
+import javax.jcr.security.Privilege;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.day.cq.replication.Replicator;
+
+/**
+ * The <code>ReplicatePrivilegeEvaluator</code> checks whether a session holds
+ * the {@link Replicator#REPLICATE_PRIVILEGE replicate privilege} on a path.
+ * <p>
+ * The privilege is resolved once per session and the results are cached per
+ * user id and path for a short time, so the same path checked by several
+ * workflows or several times within one workflow only hits the access control
+ * manager once. Results are not derived from ancestors, as access control
+ * entries may grant or deny the privilege on any descendant.
+ */
+@Component(metatype = true, label = "Activation Replicate Privilege Evaluator",
+        description = "Evaluates and caches the replicate privilege of workflow sessions.")
+@Service(ReplicatePrivilegeEvaluator.class)
+public class ReplicatePrivilegeEvaluator {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplicatePrivilegeEvaluator.class);
+
+    private static final long DEFAULT_TTL = 5000;
+
+    @Property(longValue = DEFAULT_TTL, label = "Cache time to live",
+            description = "Time in milliseconds an evaluated privilege is cached, 0 disables the cache.")
+    public static final String PROP_TTL = "privilege.cache.ttl";
+
+    private static final int DEFAULT_SIZE = 10000;
+
+    @Property(intValue = DEFAULT_SIZE, label = "Cache size",
+            description = "Maximum number of cached user and path combinations.")
+    public static final String PROP_SIZE = "privilege.cache.size";
+
+    private volatile long ttl = DEFAULT_TTL;
+
+    private volatile int maxSize = DEFAULT_SIZE;
+
+    private final Map<Session, Privilege[]> privileges = new WeakHashMap<Session, Privilege[]>();
+
+    private final Map<String, CachedResult> results = new LinkedHashMap<String, CachedResult>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedResult> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    @Activate
+    @Modified
+    protected void activate(Map<String, Object> properties) {
+        ttl = Math.max(0, PropertiesUtil.toLong(properties.get(PROP_TTL), DEFAULT_TTL));
+        maxSize = Math.max(0, PropertiesUtil.toInteger(properties.get(PROP_SIZE), DEFAULT_SIZE));
+        synchronized (results) {
+            results.clear();
+        }
+    }
+
+    /**
+     * @param session the session to check
+     * @param path the path to check
+     * @return <code>true</code> if the session may replicate the path
+     */
+    public boolean canReplicate(Session session, String path) {
+        try {
+            return canReplicate(session, getPrivileges(session), getKeyPrefix(session), path,
+                    System.currentTimeMillis());
+        } catch (RepositoryException e) {
+            log.debug("Cannot evaluate replicate privilege on {}: {}", path, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Evaluates all given paths at once.
+     *
+     * @param session the session to check
+     * @param paths the paths to check
+     * @return for every path <code>true</code> if the session may replicate it
+     */
+    public boolean[] canReplicate(Session session, List<String> paths) {
+        boolean[] allowed = new boolean[paths.size()];
+        Privilege[] replicate;
+        try {
+            replicate = getPrivileges(session);
+        } catch (RepositoryException e) {
+            log.debug("Cannot resolve replicate privilege: {}", e.getMessage());
+            return allowed;
+        }
+        long now = System.currentTimeMillis();
+        String prefix = getKeyPrefix(session);
+        for (int i = 0; i < allowed.length; i++) {
+            try {
+                allowed[i] = canReplicate(session, replicate, prefix, paths.get(i), now);
+            } catch (RepositoryException e) {
+                log.debug("Cannot evaluate replicate privilege on {}: {}", paths.get(i), e.getMessage());
+            }
+        }
+        return allowed;
+    }
+
+    private boolean canReplicate(Session session, Privilege[] replicate, String prefix, String path, long now)
+            throws RepositoryException {
+        String key = prefix != null ? prefix.concat(path) : null;
+        if (key != null) {
+            CachedResult cached;
+            synchronized (results) {
+                cached = results.get(key);
+            }
+            if (cached != null && cached.expires > now) {
+                return cached.allowed;
+            }
+        }
+
+        boolean allowed = session.getAccessControlManager().hasPrivileges(path, replicate);
+        if (key != null && maxSize > 0) {
+            synchronized (results) {
+                results.put(key, new CachedResult(allowed, now + ttl));
+            }
+        }
+        return allowed;
+    }
+
+    /**
+     * @return the prefix of the cache keys of the session, <code>null</code>
+     *         if the cache is disabled
+     */
+    private String getKeyPrefix(Session session) {
+        return ttl > 0 ? session.getUserID() + '\n' : null;
+    }
+
+    private Privilege[] getPrivileges(Session session) throws RepositoryException {
+        synchronized (privileges) {
+            Privilege[] replicate = privileges.get(session);
+            if (replicate == null) {
+                AccessControlManager acMgr = session.getAccessControlManager();
+                replicate = new Privilege[] { acMgr.privilegeFromName(Replicator.REPLICATE_PRIVILEGE) };
+                privileges.put(session, replicate);
+            }
+            return replicate;
+        }
+    }
+
+    private static final class CachedResult {
+
+        private final boolean allowed;
+
+        private final long expires;
+
+        CachedResult(boolean allowed, long expires) {
+            this.allowed = allowed;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.adobe.support.replication.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A <code>ReplicationChunk</code> is a group of paths which are sent to the
+ * {@link com.day.cq.replication.Replicator Replicator} in a single call and
+ * therefore end up in a single replication package per agent.<br>
+ * All paths of a chunk share the same revision label, as the revision is part
+ * of the {@link com.day.cq.replication.ReplicationOptions ReplicationOptions}
+ * and cannot be set per path.
+ */
+public class ReplicationChunk {
+
+    private final String revision;
+
+    private final List<String> paths = new ArrayList<String>();
+
+    private long estimatedBytes;
+
+    public ReplicationChunk(String revision) {
+        this.revision = revision;
+    }
+
+    /**
+     * @return the revision label shared by all paths of this chunk or
+     *         <code>null</code> if the head revision is replicated.
+     */
+    public String getRevision() {
+        return revision;
+    }
+
+    public List<String> getPaths() {
+        return paths;
+    }
+
+    public String[] getPathArray() {
+        return paths.toArray(new String[paths.size()]);
+    }
+
+    public int size() {
+        return paths.size();
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    void add(String path, long bytes) {
+        paths.add(path);
+        estimatedBytes += bytes;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("ReplicationChunk[paths=").append(paths.size());
+        sb.append(", bytes=").append(estimatedBytes);
+        if (revision != null) {
+            sb.append(", revision=").append(revision);
+        }
+        if (!paths.isEmpty()) {
+            sb.append(", first=").append(paths.get(0));
+        }
+        return sb.append(']').toString();
+    }
+}
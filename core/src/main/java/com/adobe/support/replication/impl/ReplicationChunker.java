@@ -0,0 +1,103 @@
+package com.adobe.support.replication.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The <code>ReplicationChunker</code> groups paths into
+ * {@link ReplicationChunk}s. A chunk is closed as soon as it reached the
+ * configured number of paths or - if a byte limit is configured - as soon as
+ * the next path would exceed the estimated byte limit. Paths with different
+ * revision labels never share a chunk.<br>
+ * If an isolation size is configured, paths estimated at least that large get
+ * a chunk of their own. These chunks are returned after all other chunks, so
+ * huge binaries neither delay nor enlarge the packages of the small paths.
+ */
+public class ReplicationChunker {
+
+    private final int maxPaths;
+
+    private final long maxBytes;
+
+    private final Map<String, ReplicationChunk> open = new LinkedHashMap<String, ReplicationChunk>();
+
+    private final List<ReplicationChunk> chunks = new ArrayList<ReplicationChunk>();
+
+    private final long isolateBytes;
+
+    private final List<ReplicationChunk> isolated = new ArrayList<ReplicationChunk>();
+
+    /**
+     * @param maxPaths maximum number of paths per chunk, at least 1
+     * @param maxBytes maximum estimated bytes per chunk, <code>0</code> or less
+     *            disables the byte limit
+     */
+    public ReplicationChunker(int maxPaths, long maxBytes) {
+        this(maxPaths, maxBytes, 0);
+    }
+
+    /**
+     * @param maxPaths maximum number of paths per chunk, at least 1
+     * @param maxBytes maximum estimated bytes per chunk, <code>0</code> or less
+     *            disables the byte limit
+     * @param isolateBytes estimated size from which a path gets a chunk of its
+     *            own, <code>0</code> or less disables the isolation
+     */
+    public ReplicationChunker(int maxPaths, long maxBytes, long isolateBytes) {
+        this.maxPaths = Math.max(1, maxPaths);
+        this.maxBytes = maxBytes;
+        this.isolateBytes = isolateBytes;
+    }
+
+    /**
+     * Adds a path to the chunk for the given revision.
+     *
+     * @param path the path to replicate
+     * @param revision the revision label or <code>null</code>
+     * @param bytes the estimated size of the path
+     */
+    public void add(String path, String revision, long bytes) {
+        if (isolateBytes > 0 && bytes >= isolateBytes) {
+            ReplicationChunk single = new ReplicationChunk(revision);
+            single.add(path, bytes);
+            isolated.add(single);
+            return;
+        }
+        ReplicationChunk chunk = open.get(revision);
+        if (chunk != null && maxBytes > 0 && chunk.size() > 0 && chunk.getEstimatedBytes() + bytes > maxBytes) {
+            close(revision);
+            chunk = null;
+        }
+        if (chunk == null) {
+            chunk = new ReplicationChunk(revision);
+            open.put(revision, chunk);
+        }
+        chunk.add(path, bytes);
+        if (chunk.size() >= maxPaths) {
+            close(revision);
+        }
+    }
+
+    /**
+     * Closes all open chunks.
+     *
+     * @return all chunks in the order they were closed, followed by the
+     *         isolated chunks in the order they were added
+     */
+    public List<ReplicationChunk> finish() {
+        for (Iterator<ReplicationChunk> it = open.values().iterator(); it.hasNext();) {
+            chunks.add(it.next());
+            it.remove();
+        }
+        chunks.addAll(isolated);
+        isolated.clear();
+        return chunks;
+    }
+
+    private void close(String revision) {
+        chunks.add(open.remove(revision));
+    }
+}
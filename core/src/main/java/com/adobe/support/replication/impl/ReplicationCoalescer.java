@@ -0,0 +1,726 @@
+package com.adobe.support.replication.impl;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.commons.scheduler.Scheduler;
+import org.apache.sling.settings.SlingSettingsService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.day.cq.commons.jcr.JcrConstants;
+import com.day.cq.replication.ReplicationActionType;
+
+/**
+ * The <code>ReplicationCoalescer</code> prevents concurrent workflows from
+ * replicating the same version of a path again, e.g. the brand assets shared
+ * by the pages of many workflows started at once. The replication status of
+ * such a path is only updated once its replication completed, until then
+ * every workflow sees it as outdated.
+ * <p>
+ * Before replicating, a workflow step claims its paths. A path is claimed
+ * together with its version, the last modification date and the revision
+ * label. A path with the same version replicated within the configured time
+ * to live is skipped, a path with the same version replicated by another
+ * workflow right now is awaited and skipped if that replication succeeded.
+ * If it failed, or did not complete within the maximum wait, the path is
+ * replicated by the waiting workflow.
+ * <p>
+ * The claims are held in memory and shared by all workflow threads. In
+ * cluster mode they are also recorded below the configured repository path,
+ * so the instances of a clustered author see the claims of each other. Every
+ * claim writes its records with its own resolver of the
+ * <code>replication-state</code> service user, see
+ * {@link ReplicationSessionPool#openStateResolver()}, which may only write
+ * below {@value ReplicationSessionPool#STATE_ROOT}. A record is only taken
+ * by the commit creating it, or changing the record seen before, so an
+ * instance whose commit conflicts with the one of another instance lost the
+ * path and waits for it. Records of crashed instances expire after the
+ * maximum wait, and records older than the time to live are purged
+ * periodically. A failed write of the records is logged only, the paths are
+ * then replicated without coalescing across the cluster.
+ */
+@Component(metatype = true, immediate = true, label = "Activation Replication Coalescer",
+        description = "Skips paths replicated by concurrent activation workflows.")
+@Service({ ReplicationCoalescer.class, ReplicationCoalescerMBean.class, Runnable.class })
+@Properties({
+        @Property(name = "jmx.objectname", value = "com.adobe.support.replication:type=ReplicationCoalescer", propertyPrivate = true),
+        @Property(name = Scheduler.PROPERTY_SCHEDULER_PERIOD, longValue = 300, label = "Purge period",
+                description = "Time in seconds between two purges of the expired claims recorded in cluster mode."),
+        @Property(name = Scheduler.PROPERTY_SCHEDULER_CONCURRENT, boolValue = false, propertyPrivate = true),
+        @Property(name = Scheduler.PROPERTY_SCHEDULER_RUN_ON, value = Scheduler.VALUE_RUN_ON_SINGLE, propertyPrivate = true)
+})
+public class ReplicationCoalescer implements ReplicationCoalescerMBean, Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplicationCoalescer.class);
+
+    private static final boolean DEFAULT_ENABLED = false;
+
+    @Property(boolValue = DEFAULT_ENABLED, label = "Enabled",
+            description = "Coalesce the replication of the same path by concurrent workflows.")
+    public static final String PROP_ENABLED = "coalescer.enabled";
+
+    private static final long DEFAULT_TTL = 60 * 1000L;
+
+    @Property(longValue = DEFAULT_TTL, label = "Time to live",
+            description = "Time in milliseconds a completed replication is remembered.")
+    public static final String PROP_TTL = "coalescer.ttl";
+
+    private static final long DEFAULT_MAX_WAIT = 30 * 1000L;
+
+    @Property(longValue = DEFAULT_MAX_WAIT, label = "Maximum wait",
+            description = "Maximum time in milliseconds a workflow waits for the replication of another workflow.")
+    public static final String PROP_MAX_WAIT = "coalescer.max.wait";
+
+    private static final boolean DEFAULT_CLUSTER = false;
+
+    @Property(boolValue = DEFAULT_CLUSTER, label = "Cluster",
+            description = "Record the claims in the repository to coalesce across the instances of a cluster.")
+    public static final String PROP_CLUSTER = "coalescer.cluster";
+
+    private static final String DEFAULT_CLUSTER_PATH = ReplicationSessionPool.STATE_ROOT + "/coalescer";
+
+    @Property(value = DEFAULT_CLUSTER_PATH, label = "Cluster path",
+            description = "Repository path of the claims recorded in cluster mode, below /var/replication-workflow-process.")
+    public static final String PROP_CLUSTER_PATH = "coalescer.cluster.path";
+
+    /** Time in milliseconds between two reads of the claims of other instances. */
+    private static final long CLUSTER_POLL_INTERVAL = 250;
+
+    private static final String PN_PATH = "path";
+
+    private static final String PN_VERSION = "version";
+
+    private static final String PN_OWNER = "owner";
+
+    private static final String PN_STARTED = "started";
+
+    private static final String PN_COMPLETED = "completed";
+
+    private static final String PN_REPLICATED = "replicated";
+
+    private static final String NT_FOLDER = "sling:Folder";
+
+    @Reference
+    private SlingSettingsService slingSettings;
+
+    @Reference
+    private ReplicationSessionPool sessionPool;
+
+    private volatile boolean enabled = DEFAULT_ENABLED;
+
+    private volatile long ttl = DEFAULT_TTL;
+
+    private volatile long maxWait = DEFAULT_MAX_WAIT;
+
+    private volatile boolean cluster = DEFAULT_CLUSTER;
+
+    private volatile String clusterPath = DEFAULT_CLUSTER_PATH;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private volatile long purged;
+
+    private final AtomicLong claimed = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final AtomicLong awaited = new AtomicLong();
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    @Activate
+    @Modified
+    protected void activate(Map<String, Object> properties) {
+        enabled = PropertiesUtil.toBoolean(properties.get(PROP_ENABLED), DEFAULT_ENABLED);
+        ttl = Math.max(0, PropertiesUtil.toLong(properties.get(PROP_TTL), DEFAULT_TTL));
+        maxWait = Math.max(0, PropertiesUtil.toLong(properties.get(PROP_MAX_WAIT), DEFAULT_MAX_WAIT));
+        cluster = PropertiesUtil.toBoolean(properties.get(PROP_CLUSTER), DEFAULT_CLUSTER);
+        clusterPath = PropertiesUtil.toString(properties.get(PROP_CLUSTER_PATH), DEFAULT_CLUSTER_PATH);
+        entries.clear();
+    }
+
+    /**
+     * Claims the given paths for replication.
+     *
+     * @param type the replication action
+     * @param paths the paths to replicate
+     * @param revisions the revision labels of the paths replicated in a
+     *            specific version
+     * @param resolver the service resolver, used to read the versions
+     * @return the claim, which must be closed once the paths were replicated
+     */
+    public Claim claim(ReplicationActionType type, List<String> paths, Map<String, String> revisions,
+            ResourceResolver resolver) {
+        Claim claim = new Claim(type);
+        if (!enabled) {
+            claim.claimed.addAll(paths);
+            return claim;
+        }
+        purge();
+        for (String path : paths) {
+            Resource resource = resolver.getResource(path);
+            String revision = revisions.get(path);
+            String version = (resource != null ? ReferenceCache.getLastModified(resource) : 0)
+                    + (revision != null ? "/" + revision : "");
+            claim.claim(path, version, false);
+        }
+        if (cluster) {
+            claim.claimCluster(new ArrayList<String>(claim.claimed), false);
+        }
+        claimed.addAndGet(claim.claimed.size());
+        coalesced.addAndGet(claim.coalesced.size());
+        return claim;
+    }
+
+    private void purge() {
+        long now = System.currentTimeMillis();
+        if (now - purged < ttl) {
+            return;
+        }
+        purged = now;
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+            Entry entry = it.next();
+            if (entry.completed > 0 && now - entry.completed >= ttl) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Purges the records of the cluster mode completed longer than the time
+     * to live ago, or started longer than the maximum wait and the time to
+     * live ago by an instance which did not complete them.
+     */
+    public void run() {
+        if (!enabled || !cluster) {
+            return;
+        }
+        ResourceResolver resolver;
+        try {
+            resolver = sessionPool.openStateResolver();
+        } catch (LoginException e) {
+            log.warn("Cannot purge the replication claims in {}: {}", clusterPath, e.getMessage());
+            return;
+        }
+        int count = 0;
+        try {
+            Resource root = resolver.getResource(clusterPath);
+            if (root == null) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (Resource bucket : root.getChildren()) {
+                List<Resource> expired = new ArrayList<Resource>();
+                for (Resource record : bucket.getChildren()) {
+                    ValueMap props = record.getValueMap();
+                    long completed = props.get(PN_COMPLETED, 0L);
+                    if (completed > 0 ? now - completed >= ttl
+                            : now - props.get(PN_STARTED, 0L) >= maxWait + ttl) {
+                        expired.add(record);
+                    }
+                }
+                if (expired.isEmpty()) {
+                    continue;
+                }
+                // one commit per bucket, a conflict with a claim only keeps that bucket
+                try {
+                    for (Resource record : expired) {
+                        resolver.delete(record);
+                    }
+                    resolver.commit();
+                    count += expired.size();
+                } catch (PersistenceException e) {
+                    log.debug("Cannot purge the replication claims in {}: {}", bucket.getPath(), e.getMessage());
+                    resolver.revert();
+                    resolver.refresh();
+                }
+            }
+        } finally {
+            resolver.close();
+        }
+        log.debug("Purged {} replication claims in {}", count, clusterPath);
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public boolean isCluster() {
+        return cluster;
+    }
+
+    public int getEntryCount() {
+        return entries.size();
+    }
+
+    public long getClaimedCount() {
+        return claimed.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    public long getAwaitedCount() {
+        return awaited.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /**
+     * A replication of a path by a workflow, shared by all threads.
+     */
+    private static final class Entry {
+
+        final String version;
+
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        volatile long completed;
+
+        volatile boolean replicated;
+
+        Entry(String version) {
+            this.version = version;
+        }
+
+        void complete(boolean success) {
+            replicated = success;
+            completed = System.currentTimeMillis();
+            latch.countDown();
+        }
+    }
+
+    /**
+     * The paths of a single replication call claimed by a workflow step. A
+     * claim is used by a single thread.
+     */
+    public final class Claim {
+
+        private final ReplicationActionType type;
+
+        private final List<String> claimed = new ArrayList<String>();
+
+        private final List<String> coalesced = new ArrayList<String>();
+
+        private final Map<String, Entry> owned = new HashMap<String, Entry>();
+
+        private final Map<String, Entry> pending = new LinkedHashMap<String, Entry>();
+
+        private final Map<String, String> clusterPending = new LinkedHashMap<String, String>();
+
+        /** the paths recorded by this claim and the start dates of their records */
+        private final Map<String, Long> recorded = new HashMap<String, Long>();
+
+        /** the resolver of the records, opened by the first claim in cluster mode */
+        private ResourceResolver resolver;
+
+        private boolean unavailable;
+
+        Claim(ReplicationActionType type) {
+            this.type = type;
+        }
+
+        /**
+         * @return the paths the caller replicates
+         */
+        public List<String> getClaimed() {
+            return claimed;
+        }
+
+        /**
+         * @return the paths skipped because another workflow replicated them
+         */
+        public List<String> getCoalesced() {
+            return coalesced;
+        }
+
+        private String key(String path) {
+            return type.getName() + ":" + path;
+        }
+
+        private void claim(String path, String version, boolean force) {
+            String key = key(path);
+            Entry own = new Entry(version);
+            while (true) {
+                Entry entry = entries.get(key);
+                if (entry != null && !force && entry.version.equals(version)) {
+                    if (entry.completed == 0) {
+                        pending.put(path, entry);
+                        return;
+                    }
+                    if (entry.replicated && System.currentTimeMillis() - entry.completed < ttl) {
+                        coalesced.add(path);
+                        return;
+                    }
+                }
+                if (entry == null ? entries.putIfAbsent(key, own) == null : entries.replace(key, entry, own)) {
+                    owned.put(path, own);
+                    claimed.add(path);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Waits for the paths replicated by other workflows.
+         *
+         * @return the paths the caller has to replicate in addition, because
+         *         the replication of the other workflow failed or did not
+         *         complete in time
+         * @throws InterruptedException if interrupted while waiting
+         */
+        public List<String> await() throws InterruptedException {
+            if (pending.isEmpty() && clusterPending.isEmpty()) {
+                return Collections.emptyList();
+            }
+            int before = claimed.size();
+            int coalescedBefore = coalesced.size();
+            long deadline = System.currentTimeMillis() + maxWait;
+            while (!pending.isEmpty()) {
+                Map<String, Entry> waiting = new LinkedHashMap<String, Entry>(pending);
+                pending.clear();
+                for (Map.Entry<String, Entry> wait : waiting.entrySet()) {
+                    Entry entry = wait.getValue();
+                    awaited.incrementAndGet();
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0 || !entry.latch.await(remaining, TimeUnit.MILLISECONDS)) {
+                        timeouts.incrementAndGet();
+                        log.debug("Replication of {} by another workflow did not complete in time", wait.getKey());
+                        claim(wait.getKey(), entry.version, true);
+                    } else if (entry.replicated) {
+                        coalesced.add(wait.getKey());
+                    } else {
+                        claim(wait.getKey(), entry.version, false);
+                    }
+                }
+            }
+            if (cluster) {
+                List<String> taken = new ArrayList<String>(claimed.subList(before, claimed.size()));
+                awaitCluster(deadline, taken);
+                claimCluster(taken, true);
+            }
+            List<String> added = claimed.subList(before, claimed.size());
+            ReplicationCoalescer.this.claimed.addAndGet(added.size());
+            ReplicationCoalescer.this.coalesced.addAndGet(coalesced.size() - coalescedBefore);
+            return new ArrayList<String>(added);
+        }
+
+        /**
+         * Completes the claimed paths, waiting workflows either skip them or
+         * replicate them again. Paths claimed later by {@link #await()} are
+         * completed by the next call.
+         *
+         * @param replicated the claimed paths which were replicated
+         */
+        public void release(Collection<String> replicated) {
+            if (owned.isEmpty()) {
+                return;
+            }
+            Set<String> succeeded = new HashSet<String>(replicated);
+            for (String path : claimed) {
+                Entry own = owned.remove(path);
+                if (own != null) {
+                    complete(path, own, succeeded.contains(path));
+                }
+            }
+            if (!recorded.isEmpty()) {
+                releaseCluster(succeeded);
+            }
+        }
+
+        /**
+         * Completes the claimed paths like {@link #release(Collection)} and
+         * gives up the paths still awaited, e.g. after a failure.
+         *
+         * @param replicated the claimed paths which were replicated
+         */
+        public void close(Collection<String> replicated) {
+            try {
+                release(replicated);
+                for (Map.Entry<String, Entry> own : owned.entrySet()) {
+                    complete(own.getKey(), own.getValue(), false);
+                }
+                owned.clear();
+            } finally {
+                if (resolver != null) {
+                    resolver.close();
+                    resolver = null;
+                }
+            }
+        }
+
+        private void complete(String path, Entry own, boolean success) {
+            own.complete(success);
+            if (!success) {
+                entries.remove(key(path), own);
+            }
+        }
+
+        /**
+         * Reads the claims of the other instances for the given locally
+         * claimed paths and records the claims of the remaining ones. A path
+         * whose record another instance took concurrently is awaited, unless
+         * forced.
+         *
+         * @param force whether the paths are recorded regardless of the
+         *            claims of the other instances
+         */
+        private void claimCluster(List<String> paths, boolean force) {
+            if (paths.isEmpty() || !openResolver()) {
+                return;
+            }
+            String owner = slingSettings.getSlingId();
+            long now = System.currentTimeMillis();
+            resolver.refresh();
+            Map<String, String> record = new LinkedHashMap<String, String>();
+            for (String path : paths) {
+                Resource resource = resolver.getResource(getRecordPath(path));
+                ValueMap props = resource != null ? resource.getValueMap() : ValueMap.EMPTY;
+                String version = owned.get(path).version;
+                if (!force && resource != null && version.equals(props.get(PN_VERSION, String.class))
+                        && !owner.equals(props.get(PN_OWNER, String.class))) {
+                    long completed = props.get(PN_COMPLETED, 0L);
+                    if (completed == 0 && now - props.get(PN_STARTED, 0L) < maxWait) {
+                        unclaim(path);
+                        clusterPending.put(path, version);
+                        continue;
+                    }
+                    if (completed > 0 && props.get(PN_REPLICATED, false) && now - completed < ttl) {
+                        unclaim(path);
+                        owned.remove(path).complete(true);
+                        coalesced.add(path);
+                        continue;
+                    }
+                }
+                record.put(path, resource != null ? getRevision(props) : null);
+            }
+            if (record.isEmpty()) {
+                return;
+            }
+            // all records in one commit, only a conflict takes them one by one
+            try {
+                for (Map.Entry<String, String> path : record.entrySet()) {
+                    if (!write(path.getKey(), path.getValue(), owner, now)) {
+                        throw new PersistenceException("Claim of " + path.getKey() + " changed concurrently");
+                    }
+                }
+                resolver.commit();
+                for (String path : record.keySet()) {
+                    recorded.put(path, now);
+                }
+                return;
+            } catch (PersistenceException e) {
+                log.debug("Recording the replication claims one by one: {}", e.getMessage());
+                resolver.revert();
+                resolver.refresh();
+            }
+            for (Map.Entry<String, String> path : record.entrySet()) {
+                boolean taken;
+                try {
+                    taken = write(path.getKey(), path.getValue(), owner, now);
+                    if (taken) {
+                        resolver.commit();
+                    }
+                } catch (PersistenceException e) {
+                    log.debug("Cannot record the replication claim of {}: {}", path.getKey(), e.getMessage());
+                    resolver.revert();
+                    resolver.refresh();
+                    taken = false;
+                }
+                if (taken) {
+                    recorded.put(path.getKey(), now);
+                } else if (!force) {
+                    // another instance took the record, its replication is awaited
+                    unclaim(path.getKey());
+                    clusterPending.put(path.getKey(), owned.get(path.getKey()).version);
+                }
+            }
+        }
+
+        /**
+         * Opens the resolver of the records, once per claim.
+         *
+         * @return whether the records can be read and written
+         */
+        private boolean openResolver() {
+            if (resolver == null && !unavailable) {
+                try {
+                    resolver = sessionPool.openStateResolver();
+                } catch (LoginException e) {
+                    log.warn("Cannot record the replication claims in {}: {}", clusterPath, e.getMessage());
+                    unavailable = true;
+                }
+            }
+            return resolver != null;
+        }
+
+        private void unclaim(String path) {
+            claimed.remove(path);
+        }
+
+        /**
+         * Polls the claims of the other instances until they completed or the
+         * deadline passed. The paths the caller has to replicate are added to
+         * <code>taken</code>.
+         */
+        private void awaitCluster(long deadline, List<String> taken) throws InterruptedException {
+            while (!clusterPending.isEmpty()) {
+                awaited.addAndGet(clusterPending.size());
+                boolean expired = System.currentTimeMillis() >= deadline;
+                if (!expired) {
+                    Thread.sleep(CLUSTER_POLL_INTERVAL);
+                }
+                resolver.refresh();
+                for (Iterator<Map.Entry<String, String>> it = clusterPending.entrySet().iterator(); it.hasNext();) {
+                    Map.Entry<String, String> wait = it.next();
+                    String path = wait.getKey();
+                    Resource resource = resolver.getResource(getRecordPath(path));
+                    ValueMap props = resource != null ? resource.getValueMap() : ValueMap.EMPTY;
+                    long completed = props.get(PN_COMPLETED, 0L);
+                    boolean same = wait.getValue().equals(props.get(PN_VERSION, String.class));
+                    if (same && completed == 0 && !expired) {
+                        continue;
+                    }
+                    it.remove();
+                    if (same && completed > 0 && props.get(PN_REPLICATED, false)) {
+                        owned.remove(path).complete(true);
+                        coalesced.add(path);
+                    } else {
+                        if (expired) {
+                            timeouts.incrementAndGet();
+                        }
+                        claimed.add(path);
+                        taken.add(path);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Completes the records of this claim, unless another instance took
+         * them over in the meantime.
+         */
+        private void releaseCluster(Set<String> succeeded) {
+            String owner = slingSettings.getSlingId();
+            long now = System.currentTimeMillis();
+            resolver.refresh();
+            try {
+                for (Map.Entry<String, Long> path : recorded.entrySet()) {
+                    Resource resource = resolver.getResource(getRecordPath(path.getKey()));
+                    if (resource == null || !isOwn(resource.getValueMap(), owner, path.getValue())) {
+                        continue;
+                    }
+                    if (succeeded.contains(path.getKey())) {
+                        ModifiableValueMap props = resource.adaptTo(ModifiableValueMap.class);
+                        props.put(PN_COMPLETED, now);
+                        props.put(PN_REPLICATED, true);
+                    } else {
+                        resolver.delete(resource);
+                    }
+                }
+                resolver.commit();
+            } catch (PersistenceException e) {
+                log.warn("Cannot complete the replication claims in {}: {}", clusterPath, e.getMessage());
+                resolver.revert();
+            }
+            recorded.clear();
+        }
+
+        private String getRecordPath(String path) {
+            String hash = hash(key(path));
+            return clusterPath + "/" + hash.substring(0, 2) + "/" + hash;
+        }
+
+        /**
+         * Creates the record of a path, or changes the record read before.
+         * Both conflict with the commit of another instance doing the same.
+         *
+         * @param seen the revision of the record read before, see
+         *            {@link #getRevision(ValueMap)}, or <code>null</code> if
+         *            there was none
+         * @return <code>false</code> if the record changed since it was read
+         */
+        private boolean write(String path, String seen, String owner, long now) throws PersistenceException {
+            String recordPath = getRecordPath(path);
+            Resource resource = resolver.getResource(recordPath);
+            if (resource == null ? seen != null : !getRevision(resource.getValueMap()).equals(seen)) {
+                return false;
+            }
+            Map<String, Object> props = new HashMap<String, Object>();
+            props.put(PN_PATH, path);
+            props.put(PN_VERSION, owned.get(path).version);
+            props.put(PN_OWNER, owner);
+            props.put(PN_STARTED, now);
+            props.put(PN_COMPLETED, 0L);
+            props.put(PN_REPLICATED, false);
+            if (resource == null) {
+                Resource parent = ResourceUtil.getOrCreateResource(resolver, ResourceUtil.getParent(recordPath),
+                        Collections.<String, Object> singletonMap(JcrConstants.JCR_PRIMARYTYPE, NT_FOLDER), null,
+                        false);
+                resolver.create(parent, ResourceUtil.getName(recordPath), props);
+            } else {
+                resource.adaptTo(ModifiableValueMap.class).putAll(props);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return the owner, the start and the completion date identifying a write
+     *         of a record
+     */
+    private static String getRevision(ValueMap props) {
+        return props.get(PN_OWNER, "") + "@" + props.get(PN_STARTED, 0L) + "@" + props.get(PN_COMPLETED, 0L);
+    }
+
+    private static boolean isOwn(ValueMap props, String owner, long started) {
+        return owner.equals(props.get(PN_OWNER, String.class)) && props.get(PN_STARTED, 0L) == started;
+    }
+}
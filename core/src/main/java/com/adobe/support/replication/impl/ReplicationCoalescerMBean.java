@@ -0,0 +1,24 @@
+package com.adobe.support.replication.impl;
+
+/**
+ * JMX view on the {@link ReplicationCoalescer}.
+ */
+public interface ReplicationCoalescerMBean {
+
+    boolean isEnabled();
+
+    boolean isCluster();
+
+    int getEntryCount();
+
+    long getClaimedCount();
+
+    /**
+     * @return the number of paths skipped because another workflow replicated them
+     */
+    long getCoalescedCount();
+
+    long getAwaitedCount();
+
+    long getTimeoutCount();
+}
@@ -0,0 +1,198 @@
+package com.adobe.support.replication.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.day.cq.workflow.metadata.MetaDataMap;
+
+/**
+ * The <code>ReplicationEstimate</code> is the cost of the replication plan of
+ * a step, computed before anything is replicated: the number of paths, their
+ * estimated size and the number of replication items every agent receives,
+ * i.e. one per path or one per chunk if the paths are replicated in chunks.
+ * <p>
+ * The estimate is stored in the metadata of the workflow data, keyed by the id
+ * of the step's workflow node, so a dry run can be inspected in the workflow
+ * instance. A plan exceeding its budget while the step pauses for approval is
+ * flagged with <code>replicationPlan.&lt;node id&gt;.pending</code>, holding
+ * the exceeded limits, see {@link #getPendingKey(String)}. The model routes
+ * such workflows to a participant, who approves the plan by setting
+ * <code>replicationPlan.&lt;node id&gt;.approved</code> to <code>true</code>
+ * before the step runs again, see {@link #getApprovedKey(String)}. Like the
+ * estimate, the flags are kept per step, an approval only applies to the
+ * step it was given for.
+ */
+public class ReplicationEstimate {
+
+    /** Prefix of the metadata properties holding the estimate. */
+    public static final String PREFIX = "replicationPlan.";
+
+    private static final String PENDING = ".pending";
+
+    private static final String APPROVED = ".approved";
+
+    private static final String PATHS = ".paths";
+
+    private static final String BYTES = ".bytes";
+
+    private static final String AGENTS = ".agents";
+
+    private static final String DRY_RUN = ".dryRun";
+
+    private final int paths;
+
+    private final long bytes;
+
+    private final Map<String, Integer> items;
+
+    private String pending;
+
+    private boolean dryRun;
+
+    /**
+     * @param paths the number of planned paths
+     * @param bytes the estimated size of the planned paths
+     * @param items the number of replication items by agent id
+     */
+    public ReplicationEstimate(int paths, long bytes, Map<String, Integer> items) {
+        this.paths = paths;
+        this.bytes = bytes;
+        this.items = Collections.unmodifiableMap(new LinkedHashMap<String, Integer>(items));
+    }
+
+    /**
+     * @param stepId the id of the step's workflow node
+     * @return the metadata property flagging a plan of the step which awaits
+     *         approval
+     */
+    public static String getPendingKey(String stepId) {
+        return PREFIX + stepId + PENDING;
+    }
+
+    /**
+     * @param stepId the id of the step's workflow node
+     * @return the metadata property approving a plan of the step exceeding
+     *         its budget
+     */
+    public static String getApprovedKey(String stepId) {
+        return PREFIX + stepId + APPROVED;
+    }
+
+    /**
+     * @param stepId the id of the step's workflow node
+     * @param metaData the metadata of the workflow data
+     * @return <code>true</code> if a plan of the step exceeding its budget was
+     *         approved
+     */
+    public static boolean isApproved(String stepId, MetaDataMap metaData) {
+        return Boolean.parseBoolean(metaData.get(getApprovedKey(stepId), String.class));
+    }
+
+    /**
+     * Removes the pending flag and the approval of the given step.
+     *
+     * @param stepId the id of the step's workflow node
+     * @param metaData the metadata of the workflow data
+     */
+    static void clearApproval(String stepId, MetaDataMap metaData) {
+        metaData.remove(getPendingKey(stepId));
+        metaData.remove(getApprovedKey(stepId));
+    }
+
+    public int getPaths() {
+        return paths;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the number of replication items by agent id
+     */
+    public Map<String, Integer> getItems() {
+        return items;
+    }
+
+    /**
+     * @param maxPaths the maximum number of paths, <code>0</code> for no limit
+     * @param maxBytes the maximum estimated size, <code>0</code> for no limit
+     * @return the exceeded limits or <code>null</code> if the plan is within
+     *         the budget
+     */
+    public String exceeds(int maxPaths, long maxBytes) {
+        List<String> exceeded = new ArrayList<String>(2);
+        if (maxPaths > 0 && paths > maxPaths) {
+            exceeded.add(paths + " paths exceed the budget of " + maxPaths);
+        }
+        if (maxBytes > 0 && bytes > maxBytes) {
+            exceeded.add(bytes + " bytes exceed the budget of " + maxBytes);
+        }
+        return exceeded.isEmpty() ? null : StringUtils.join(exceeded, ", ");
+    }
+
+    /**
+     * @return the exceeded limits of a plan awaiting approval or
+     *         <code>null</code>
+     */
+    public String getPending() {
+        return pending;
+    }
+
+    /**
+     * @param pending the exceeded limits of a plan awaiting approval
+     */
+    public void setPending(String pending) {
+        this.pending = pending;
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    /**
+     * @param dryRun whether the plan is only estimated and not replicated
+     */
+    public void setDryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    /**
+     * Writes the estimate into the given metadata. Once a plan is replicated
+     * the approval is consumed, the next plan exceeding its budget needs a new
+     * one.
+     *
+     * @param stepId the id of the step's workflow node
+     * @param metaData the metadata of the workflow data
+     */
+    public void save(String stepId, MetaDataMap metaData) {
+        metaData.put(PREFIX + stepId + PATHS, Integer.valueOf(paths));
+        metaData.put(PREFIX + stepId + BYTES, Long.valueOf(bytes));
+        List<String> agents = new ArrayList<String>(items.size());
+        for (Map.Entry<String, Integer> entry : items.entrySet()) {
+            agents.add(entry.getKey() + "=" + entry.getValue());
+        }
+        metaData.put(PREFIX + stepId + AGENTS, agents.toArray(new String[agents.size()]));
+        if (dryRun) {
+            metaData.put(PREFIX + stepId + DRY_RUN, Boolean.TRUE);
+        } else {
+            metaData.remove(PREFIX + stepId + DRY_RUN);
+        }
+        if (pending != null) {
+            metaData.put(getPendingKey(stepId), pending);
+        } else if (!dryRun) {
+            clearApproval(stepId, metaData);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ReplicationEstimate[" + paths + " paths, " + bytes + " bytes, items " + items
+                + (dryRun ? ", dry run" : "") + (pending != null ? ", pending: " + pending : "") + "]";
+    }
+}
@@ -0,0 +1,208 @@
+package com.adobe.support.replication.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.AgentFilter;
+import com.day.cq.replication.AgentManager;
+
+/**
+ * The <code>ReplicationLanes</code> run the replication of the workflow steps
+ * per agent, see the <code>agentLanes</code> argument of the
+ * {@link ReplicatePageProcess}. A single replicator call delivers to all
+ * agents one after the other, so the slowest publish instance or flush agent
+ * delays every path. In a lane the plan is replicated to a single agent, the
+ * lanes of a step run in parallel on a bounded pool of threads shared by all
+ * steps.
+ * <p>
+ * A lane which takes longer than the configured timeout is interrupted. The
+ * calls, failures and timeouts are accounted per agent.
+ */
+@Component(metatype = true, immediate = true, label = "Activation Replication Lanes",
+        description = "Replicates the activation workflow steps per agent in parallel.")
+@Service({ ReplicationLanes.class, ReplicationLanesMBean.class })
+@Property(name = "jmx.objectname", value = "com.adobe.support.replication:type=ReplicationLanes", propertyPrivate = true)
+public class ReplicationLanes implements ReplicationLanesMBean {
+
+    private static final int DEFAULT_THREADS = 8;
+
+    @Property(intValue = DEFAULT_THREADS, label = "Threads",
+            description = "Maximum number of lanes replicating at the same time, shared by all workflow steps.")
+    public static final String PROP_THREADS = "lanes.threads";
+
+    private static final long DEFAULT_TIMEOUT = 10 * 60 * 1000L;
+
+    @Property(longValue = DEFAULT_TIMEOUT, label = "Timeout",
+            description = "Maximum time in milliseconds of a lane, including the time waiting for a thread.")
+    public static final String PROP_TIMEOUT = "lanes.timeout";
+
+    @Reference
+    private AgentManager agentManager;
+
+    private volatile ThreadPoolExecutor executor;
+
+    private volatile long timeout = DEFAULT_TIMEOUT;
+
+    private final ConcurrentHashMap<String, LaneStatistics> statistics =
+            new ConcurrentHashMap<String, LaneStatistics>();
+
+    @Activate
+    @Modified
+    protected void activate(Map<String, Object> properties) {
+        int threads = Math.max(1, PropertiesUtil.toInteger(properties.get(PROP_THREADS), DEFAULT_THREADS));
+        timeout = Math.max(1, PropertiesUtil.toLong(properties.get(PROP_TIMEOUT), DEFAULT_TIMEOUT));
+        ThreadPoolExecutor pool = executor;
+        if (pool != null && pool.getMaximumPoolSize() == threads) {
+            return;
+        }
+        final AtomicInteger counter = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "activation-replication-lane-" + counter.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        ThreadPoolExecutor pool = executor;
+        executor = null;
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * @param filter the agent filter of the replication options or
+     *            <code>null</code>
+     * @return the ids of the valid default agents the filter includes
+     */
+    public List<String> getAgentIds(AgentFilter filter) {
+        List<String> ids = new ArrayList<String>();
+        for (Map.Entry<String, Agent> entry : agentManager.getAgents().entrySet()) {
+            Agent agent = entry.getValue();
+            if (AgentFilter.DEFAULT.isIncluded(agent) && agent.isValid()
+                    && (filter == null || filter.isIncluded(agent))) {
+                ids.add(entry.getKey());
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @param lane the lane to run
+     * @return the future of the lane
+     */
+    public Future<?> submit(Runnable lane) {
+        ThreadPoolExecutor pool = executor;
+        if (pool == null) {
+            throw new IllegalStateException("The replication lanes are stopped");
+        }
+        return pool.submit(lane);
+    }
+
+    /**
+     * @return the maximum time in milliseconds of a lane
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Records a replicator call of a lane.
+     *
+     * @param agentId the agent of the lane
+     * @param nanos the duration of the call
+     * @param failed whether the call failed
+     */
+    public void record(String agentId, long nanos, boolean failed) {
+        LaneStatistics lane = getStatistics(agentId);
+        lane.calls.record(nanos);
+        if (failed) {
+            lane.failures.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param agentId the agent of a lane which did not complete in time
+     */
+    public void timedOut(String agentId) {
+        getStatistics(agentId).timeouts.incrementAndGet();
+    }
+
+    private LaneStatistics getStatistics(String agentId) {
+        LaneStatistics lane = statistics.get(agentId);
+        if (lane == null) {
+            lane = new LaneStatistics();
+            LaneStatistics existing = statistics.putIfAbsent(agentId, lane);
+            if (existing != null) {
+                lane = existing;
+            }
+        }
+        return lane;
+    }
+
+    public int getThreads() {
+        ThreadPoolExecutor pool = executor;
+        return pool != null ? pool.getMaximumPoolSize() : 0;
+    }
+
+    public int getActiveCount() {
+        ThreadPoolExecutor pool = executor;
+        return pool != null ? pool.getActiveCount() : 0;
+    }
+
+    public int getQueuedCount() {
+        ThreadPoolExecutor pool = executor;
+        return pool != null ? pool.getQueue().size() : 0;
+    }
+
+    public String[] getLaneStatistics() {
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<String, LaneStatistics> entry : statistics.entrySet()) {
+            LaneStatistics lane = entry.getValue();
+            lines.add(entry.getKey() + ": failures=" + lane.failures.get() + " timeouts=" + lane.timeouts.get() + " "
+                    + lane.calls);
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    public void reset() {
+        statistics.clear();
+    }
+
+    private static final class LaneStatistics {
+
+        final LatencyHistogram calls = new LatencyHistogram();
+
+        final AtomicLong failures = new AtomicLong();
+
+        final AtomicLong timeouts = new AtomicLong();
+    }
+}
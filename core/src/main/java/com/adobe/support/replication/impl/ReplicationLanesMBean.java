@@ -0,0 +1,20 @@
+package com.adobe.support.replication.impl;
+
+/**
+ * JMX view on the {@link ReplicationLanes}.
+ */
+public interface ReplicationLanesMBean {
+
+    int getThreads();
+
+    int getActiveCount();
+
+    int getQueuedCount();
+
+    /**
+     * @return one line per agent with the failures, timeouts and call timings
+     */
+    String[] getLaneStatistics();
+
+    void reset();
+}
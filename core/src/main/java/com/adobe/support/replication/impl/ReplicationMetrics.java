@@ -0,0 +1,203 @@
+package com.adobe.support.replication.impl;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+
+/**
+ * The <code>ReplicationMetrics</code> collect the timings of the phases of the
+ * replication process step and of the reference providers, as well as the
+ * number of paths handled. They are exposed through JMX as
+ * <code>com.adobe.support.replication:type=ReplicationMetrics</code>.
+ * <p>
+ * Callers take the start time with {@link #start()} and pass it to one of the
+ * record methods when the phase ends.
+ */
+@Component(immediate = true)
+@Service({ ReplicationMetrics.class, ReplicationMetricsMBean.class })
+@Property(name = "jmx.objectname", value = "com.adobe.support.replication:type=ReplicationMetrics", propertyPrivate = true)
+public class ReplicationMetrics implements ReplicationMetricsMBean {
+
+    /**
+     * The timed phases of the replication process step.
+     */
+    public enum Phase {
+        /** the whole execution of the step */
+        EXECUTE,
+        /** resolution and impersonation of the participant */
+        IMPERSONATION,
+        /** login of the service resource resolver */
+        SERVICE_LOGIN,
+        /** lookup of the resource collections of the payload */
+        COLLECTIONS,
+        /** reference search including the replication status check */
+        REFERENCE_SEARCH,
+        /** replicate privilege evaluation */
+        ACL_CHECK,
+        /** replicator calls */
+        REPLICATE,
+        /** events requesting replication of denied paths */
+        EVENTS
+    }
+
+    private final Map<Phase, LatencyHistogram> phases = new EnumMap<Phase, LatencyHistogram>(Phase.class);
+
+    private final ConcurrentMap<String, LatencyHistogram> providers = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    private final AtomicLong executions = new AtomicLong();
+
+    private final AtomicLong failedExecutions = new AtomicLong();
+
+    private final AtomicLong pathsDiscovered = new AtomicLong();
+
+    private final AtomicLong pathsUpToDate = new AtomicLong();
+
+    private final AtomicLong pathsDenied = new AtomicLong();
+
+    private final AtomicLong pathsSkipped = new AtomicLong();
+
+    private final AtomicLong pathsCoalesced = new AtomicLong();
+
+    private final AtomicLong pathsReplicated = new AtomicLong();
+
+    public ReplicationMetrics() {
+        for (Phase phase : Phase.values()) {
+            phases.put(phase, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * @return the start time to pass to the record methods
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    public void record(Phase phase, long start) {
+        recordNanos(phase, System.nanoTime() - start);
+    }
+
+    public void recordNanos(Phase phase, long nanos) {
+        phases.get(phase).record(nanos);
+    }
+
+    public void recordProvider(Object provider, long start) {
+        long nanos = System.nanoTime() - start;
+        String name = provider.getClass().getName();
+        LatencyHistogram histogram = providers.get(name);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = providers.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        histogram.record(nanos);
+    }
+
+    public void executed(boolean failed) {
+        executions.incrementAndGet();
+        if (failed) {
+            failedExecutions.incrementAndGet();
+        }
+    }
+
+    public void pathsDiscovered(int count) {
+        pathsDiscovered.addAndGet(count);
+    }
+
+    public void pathsUpToDate(int count) {
+        pathsUpToDate.addAndGet(count);
+    }
+
+    public void pathsDenied(int count) {
+        pathsDenied.addAndGet(count);
+    }
+
+    public void pathsSkipped(int count) {
+        pathsSkipped.addAndGet(count);
+    }
+
+    public void pathsCoalesced(int count) {
+        pathsCoalesced.addAndGet(count);
+    }
+
+    public void pathsReplicated(int count) {
+        pathsReplicated.addAndGet(count);
+    }
+
+    public LatencyHistogram getPhase(Phase phase) {
+        return phases.get(phase);
+    }
+
+    public long getExecutions() {
+        return executions.get();
+    }
+
+    public long getFailedExecutions() {
+        return failedExecutions.get();
+    }
+
+    public long getPathsDiscovered() {
+        return pathsDiscovered.get();
+    }
+
+    public long getPathsUpToDate() {
+        return pathsUpToDate.get();
+    }
+
+    public long getPathsDenied() {
+        return pathsDenied.get();
+    }
+
+    public long getPathsSkipped() {
+        return pathsSkipped.get();
+    }
+
+    public long getPathsCoalesced() {
+        return pathsCoalesced.get();
+    }
+
+    public long getPathsReplicated() {
+        return pathsReplicated.get();
+    }
+
+    public String[] getPhaseTimings() {
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<Phase, LatencyHistogram> entry : phases.entrySet()) {
+            lines.add(entry.getKey() + ": " + entry.getValue());
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    public String[] getProviderTimings() {
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<String, LatencyHistogram> entry : providers.entrySet()) {
+            lines.add(entry.getKey() + ": " + entry.getValue());
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : phases.values()) {
+            histogram.reset();
+        }
+        providers.clear();
+        executions.set(0);
+        failedExecutions.set(0);
+        pathsDiscovered.set(0);
+        pathsUpToDate.set(0);
+        pathsDenied.set(0);
+        pathsSkipped.set(0);
+        pathsCoalesced.set(0);
+        pathsReplicated.set(0);
+    }
+}
@@ -0,0 +1,42 @@
+package com.adobe.support.replication.impl;
+
+/**
+ * JMX view on the {@link ReplicationMetrics}. Timings are reported as
+ * <code>count, mean, p50, p99, max</code> in milliseconds.
+ */
+public interface ReplicationMetricsMBean {
+
+    long getExecutions();
+
+    long getFailedExecutions();
+
+    long getPathsDiscovered();
+
+    long getPathsUpToDate();
+
+    long getPathsDenied();
+
+    /**
+     * @return the number of unchanged paths skipped in delta mode
+     */
+    long getPathsSkipped();
+
+    /**
+     * @return the number of paths skipped because concurrent workflows replicated them
+     */
+    long getPathsCoalesced();
+
+    long getPathsReplicated();
+
+    /**
+     * @return one line per phase of the replication process step
+     */
+    String[] getPhaseTimings();
+
+    /**
+     * @return one line per reference provider
+     */
+    String[] getProviderTimings();
+
+    void reset();
+}
@@ -0,0 +1,283 @@
+package com.adobe.support.replication.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.day.cq.workflow.metadata.MetaDataMap;
+
+/**
+ * The <code>ReplicationProgress</code> keeps the paths planned by a
+ * replication step and which of them were already replicated, so a retried
+ * step skips the discovery and only replicates the remaining paths.
+ * <p>
+ * The progress is stored in the metadata of the workflow data, keyed by the
+ * id of the step's workflow node: the planned paths as a multi value property
+ * and the replicated paths as a base64 encoded bitmap over the plan.
+ * A plan built while the references are still searched is stored as partial
+ * plan. A retried step searches again and skips the paths already replicated.
+ * <p>
+ * The {@link ReplicationEstimate} of the plan, if any, is stored along with
+ * the progress and kept once the progress is cleared, which consumes the
+ * approval of a plan exceeding its budget.
+ * <p>
+ * {@link #checkpoint()} is called by the replication after every
+ * {@value #CHECKPOINT_INTERVAL} replicated paths and before a failure is
+ * reported. Subclasses override it to persist the progress.
+ */
+public class ReplicationProgress {
+
+    /** Prefix of the metadata properties holding the progress. */
+    public static final String PREFIX = "replicationProgress.";
+
+    /** Number of replicated paths after which a checkpoint is taken. */
+    public static final int CHECKPOINT_INTERVAL = 100;
+
+    private static final String PATHS = ".paths";
+
+    private static final String DONE = ".done";
+
+    private static final String PARTIAL = ".partial";
+
+    private final String stepId;
+
+    private List<String> plan;
+
+    private boolean partial;
+
+    private Map<String, Integer> index;
+
+    private BitSet done = new BitSet();
+
+    private int sinceCheckpoint;
+
+    private final boolean approved;
+
+    private ReplicationEstimate estimate;
+
+    /**
+     * Reads the progress of the given step.
+     *
+     * @param stepId the id of the step's workflow node
+     * @param metaData the metadata of the workflow data
+     */
+    public ReplicationProgress(String stepId, MetaDataMap metaData) {
+        this.stepId = stepId;
+        this.approved = ReplicationEstimate.isApproved(stepId, metaData);
+        String[] paths = metaData.get(PREFIX + stepId + PATHS, String[].class);
+        if (paths != null && paths.length > 0) {
+            setPlan(Arrays.asList(paths));
+            partial = Boolean.TRUE.equals(metaData.get(PREFIX + stepId + PARTIAL, Boolean.class));
+            String bits = metaData.get(PREFIX + stepId + DONE, String.class);
+            if (bits != null && bits.length() > 0) {
+                done = BitSet.valueOf(Base64.getDecoder().decode(bits));
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if all paths were planned by an earlier run
+     */
+    public synchronized boolean hasPlan() {
+        return plan != null && !partial;
+    }
+
+    /**
+     * @param paths the paths to replicate
+     */
+    public synchronized void setPlan(List<String> paths) {
+        plan = new ArrayList<String>(paths);
+        index = new HashMap<String, Integer>(plan.size() * 2);
+        for (int i = 0; i < plan.size(); i++) {
+            index.put(plan.get(i), i);
+        }
+        done = new BitSet(plan.size());
+        partial = false;
+        sinceCheckpoint = 0;
+    }
+
+    /**
+     * Adds paths found while the references are still searched. The plan stays
+     * partial until {@link #completePlan()} is called. Paths of an earlier
+     * partial plan keep their replicated state.
+     *
+     * @param paths the paths to replicate
+     */
+    public synchronized void addToPlan(List<String> paths) {
+        if (plan == null) {
+            setPlan(Collections.<String> emptyList());
+        }
+        partial = true;
+        for (String path : paths) {
+            if (!index.containsKey(path)) {
+                index.put(path, plan.size());
+                plan.add(path);
+            }
+        }
+    }
+
+    /**
+     * Marks the plan built with {@link #addToPlan(List)} as complete.
+     */
+    public synchronized void completePlan() {
+        partial = false;
+    }
+
+    /**
+     * @param path a path
+     * @return <code>true</code> if the path is planned and was replicated
+     */
+    public synchronized boolean isDone(String path) {
+        Integer i = index != null ? index.get(path) : null;
+        return i != null && done.get(i);
+    }
+
+    /**
+     * @return the planned paths not yet replicated, in the planned order
+     */
+    public synchronized List<String> getRemaining() {
+        if (plan == null) {
+            return Collections.emptyList();
+        }
+        List<String> remaining = new ArrayList<String>(plan.size() - done.cardinality());
+        for (int i = done.nextClearBit(0); i < plan.size(); i = done.nextClearBit(i + 1)) {
+            remaining.add(plan.get(i));
+        }
+        return remaining;
+    }
+
+    /**
+     * @return the number of replicated paths
+     */
+    public synchronized int getDoneCount() {
+        return done.cardinality();
+    }
+
+    /**
+     * Marks the given paths as replicated and takes a checkpoint once
+     * {@value #CHECKPOINT_INTERVAL} paths were replicated since the last one.
+     *
+     * @param paths the replicated paths
+     */
+    public void done(String... paths) {
+        boolean checkpoint;
+        synchronized (this) {
+            if (index == null) {
+                return;
+            }
+            for (String path : paths) {
+                Integer i = index.get(path);
+                if (i != null) {
+                    done.set(i);
+                }
+            }
+            sinceCheckpoint += paths.length;
+            checkpoint = sinceCheckpoint >= CHECKPOINT_INTERVAL;
+            if (checkpoint) {
+                sinceCheckpoint = 0;
+            }
+        }
+        if (checkpoint) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Marks the given paths as not replicated, e.g. because an agent reported
+     * a failure after they were handed to the replicator.
+     *
+     * @param paths the paths to replicate again
+     */
+    public synchronized void retry(String... paths) {
+        if (index == null) {
+            return;
+        }
+        for (String path : paths) {
+            Integer i = index.get(path);
+            if (i != null) {
+                done.clear(i);
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if a plan exceeding its budget was approved
+     */
+    public boolean isApproved() {
+        return approved;
+    }
+
+    /**
+     * @return the estimate of the plan or <code>null</code>
+     */
+    public synchronized ReplicationEstimate getEstimate() {
+        return estimate;
+    }
+
+    /**
+     * @param estimate the estimate of the plan
+     */
+    public synchronized void setEstimate(ReplicationEstimate estimate) {
+        this.estimate = estimate;
+    }
+
+    /**
+     * Called to persist the progress. Does nothing by default, must not throw.
+     */
+    protected void checkpoint() {
+    }
+
+    /**
+     * Writes the progress into the given metadata.
+     *
+     * @param metaData the metadata of the workflow data
+     */
+    public synchronized void save(MetaDataMap metaData) {
+        if (estimate != null) {
+            estimate.save(stepId, metaData);
+        }
+        if (plan == null) {
+            return;
+        }
+        metaData.put(PREFIX + stepId + PATHS, plan.toArray(new String[plan.size()]));
+        metaData.put(PREFIX + stepId + DONE, Base64.getEncoder().encodeToString(done.toByteArray()));
+        if (partial) {
+            metaData.put(PREFIX + stepId + PARTIAL, Boolean.TRUE);
+        } else {
+            metaData.remove(PREFIX + stepId + PARTIAL);
+        }
+    }
+
+    /**
+     * Removes the progress from the given metadata and writes the estimate of
+     * the plan, if any.
+     *
+     * @param metaData the metadata of the workflow data
+     * @return <code>true</code> if the metadata changed
+     */
+    public synchronized boolean clear(MetaDataMap metaData) {
+        boolean stored = metaData.remove(PREFIX + stepId + PATHS) != null;
+        metaData.remove(PREFIX + stepId + PARTIAL);
+        stored = metaData.remove(PREFIX + stepId + DONE) != null || stored;
+        if (estimate != null) {
+            estimate.save(stepId, metaData);
+            stored = true;
+        } else if (approved) {
+            // the approval is consumed once the plan is replicated
+            ReplicationEstimate.clearApproval(stepId, metaData);
+            stored = true;
+        }
+        return stored;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ReplicationProgress[" + stepId + ", " + done.cardinality() + "/" + (plan != null ? plan.size() : 0)
+                + (partial ? ", partial" : "") + "]";
+    }
+}
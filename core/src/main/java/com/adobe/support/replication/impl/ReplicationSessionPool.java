@@ -0,0 +1,478 @@
+package com.adobe.support.replication.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Deactivate;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The <code>ReplicationSessionPool</code> reuses the resource resolvers of the
+ * <code>wcm-workflow-service</code> service user and the sessions impersonating
+ * the workflow users and participants, so the workflow steps do not log in for
+ * every execution.
+ * <p>
+ * Idle resolvers and sessions are shared by all worker threads, but are only
+ * handed to one caller at a time. They are refreshed before being handed out,
+ * reverted when given back and closed once older than their time to live, so
+ * a reused session never sees outdated content or permissions for longer than
+ * that. Resolvers and sessions not given back within the leak timeout, or
+ * whose borrowing thread ended, are logged and closed. A maximum of <code>0</code> disables the pooling of
+ * resolvers or sessions.
+ * <p>
+ * The state the steps keep across executions, like the fingerprints of the
+ * {@link DeltaFilter} and the claims of the {@link ReplicationCoalescer}, is
+ * written below {@value #STATE_ROOT} with resolvers of the
+ * <code>replication-state</code> service user, which are never pooled nor
+ * shared, see {@link #openStateResolver()}.
+ */
+@Component(metatype = true, immediate = true, label = "Activation Session Pool",
+        description = "Reuses the service resolvers and impersonated sessions of the activation workflow steps.")
+@Service({ ReplicationSessionPool.class, ReplicationSessionPoolMBean.class })
+@Property(name = "jmx.objectname", value = "com.adobe.support.replication:type=ReplicationSessionPool", propertyPrivate = true)
+public class ReplicationSessionPool implements ReplicationSessionPoolMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplicationSessionPool.class);
+
+    private static final String WCM_WORKFLOW_SERVICE = "wcm-workflow-service";
+
+    private static final String REPLICATION_STATE_SERVICE = "replication-state";
+
+    /**
+     * Root of the state kept by the replication steps, apart from the
+     * <code>/var/replication</code> tree of the replication agents.
+     */
+    public static final String STATE_ROOT = "/var/replication-workflow-process";
+
+    private static final int DEFAULT_MAX_RESOLVERS = 8;
+
+    @Property(intValue = DEFAULT_MAX_RESOLVERS, label = "Idle resolvers",
+            description = "Maximum number of idle service resolvers kept, 0 disables the pooling of resolvers.")
+    public static final String PROP_MAX_RESOLVERS = "pool.resolvers.max";
+
+    private static final int DEFAULT_MAX_SESSIONS = 16;
+
+    @Property(intValue = DEFAULT_MAX_SESSIONS, label = "Idle sessions",
+            description = "Maximum number of idle impersonated sessions kept, 0 disables the pooling of sessions.")
+    public static final String PROP_MAX_SESSIONS = "pool.sessions.max";
+
+    private static final long DEFAULT_TTL = 60 * 1000L;
+
+    @Property(longValue = DEFAULT_TTL, label = "Time to live",
+            description = "Time in milliseconds after which a pooled resolver or session is closed.")
+    public static final String PROP_TTL = "pool.ttl";
+
+    private static final long DEFAULT_LEAK_TIMEOUT = 4 * 60 * 60 * 1000L;
+
+    @Property(longValue = DEFAULT_LEAK_TIMEOUT, label = "Leak timeout",
+            description = "Time in milliseconds after which a resolver or session not given back is closed. "
+                    + "Must be longer than the longest replication.")
+    public static final String PROP_LEAK_TIMEOUT = "pool.leak.timeout";
+
+    @Reference
+    private ResourceResolverFactory resolverFactory;
+
+    @Reference
+    private SlingRepository repository;
+
+    private volatile int maxResolvers = DEFAULT_MAX_RESOLVERS;
+
+    private volatile int maxSessions = DEFAULT_MAX_SESSIONS;
+
+    private volatile long ttl = DEFAULT_TTL;
+
+    private volatile long leakTimeout = DEFAULT_LEAK_TIMEOUT;
+
+    private final Deque<Lease> idleResolvers = new ArrayDeque<Lease>();
+
+    private final Map<String, Deque<Lease>> idleSessions = new HashMap<String, Deque<Lease>>();
+
+    private int idleSessionCount;
+
+    private final Map<Object, Lease> borrowed = new IdentityHashMap<Object, Lease>();
+
+    private final AtomicLong created = new AtomicLong();
+
+    private final AtomicLong reused = new AtomicLong();
+
+    private final AtomicLong expired = new AtomicLong();
+
+    private final AtomicLong leaked = new AtomicLong();
+
+    @Activate
+    @Modified
+    protected void activate(Map<String, Object> properties) {
+        maxResolvers = Math.max(0, PropertiesUtil.toInteger(properties.get(PROP_MAX_RESOLVERS), DEFAULT_MAX_RESOLVERS));
+        maxSessions = Math.max(0, PropertiesUtil.toInteger(properties.get(PROP_MAX_SESSIONS), DEFAULT_MAX_SESSIONS));
+        ttl = Math.max(0, PropertiesUtil.toLong(properties.get(PROP_TTL), DEFAULT_TTL));
+        leakTimeout = Math.max(0, PropertiesUtil.toLong(properties.get(PROP_LEAK_TIMEOUT), DEFAULT_LEAK_TIMEOUT));
+        purge();
+    }
+
+    @Deactivate
+    protected void deactivate() {
+        List<Lease> all = new ArrayList<Lease>();
+        synchronized (this) {
+            all.addAll(idleResolvers);
+            idleResolvers.clear();
+            for (Deque<Lease> sessions : idleSessions.values()) {
+                all.addAll(sessions);
+            }
+            idleSessions.clear();
+            idleSessionCount = 0;
+            all.addAll(borrowed.values());
+            borrowed.clear();
+        }
+        close(all);
+    }
+
+    /**
+     * Returns a refreshed resolver of the <code>wcm-workflow-service</code>
+     * service user, which must be given back with
+     * {@link #release(ResourceResolver)}.
+     *
+     * @return the resolver
+     * @throws LoginException if the service user cannot log in
+     */
+    public ResourceResolver getServiceResolver() throws LoginException {
+        purge();
+        Lease lease;
+        synchronized (this) {
+            lease = idleResolvers.pollFirst();
+        }
+        while (lease != null) {
+            ResourceResolver resolver = (ResourceResolver) lease.target;
+            if (isUsable(lease)) {
+                try {
+                    resolver.refresh();
+                    reused.incrementAndGet();
+                    return borrow(lease);
+                } catch (RuntimeException e) {
+                    log.debug("Cannot refresh a pooled resolver: {}", e.toString());
+                }
+            }
+            close(Collections.singletonList(lease));
+            synchronized (this) {
+                lease = idleResolvers.pollFirst();
+            }
+        }
+        ResourceResolver resolver = resolverFactory.getServiceResourceResolver(
+                Collections.singletonMap(ResourceResolverFactory.SUBSERVICE, (Object) WCM_WORKFLOW_SERVICE));
+        created.incrementAndGet();
+        return borrow(new Lease(resolver, null));
+    }
+
+    /**
+     * Opens a resolver of the <code>replication-state</code> service user,
+     * which may only read and write below {@value #STATE_ROOT}. The resolver
+     * is exclusive to the caller, who commits or reverts its changes and
+     * closes it.
+     *
+     * @return the resolver
+     * @throws LoginException if the service user cannot log in
+     */
+    public ResourceResolver openStateResolver() throws LoginException {
+        return resolverFactory.getServiceResourceResolver(
+                Collections.singletonMap(ResourceResolverFactory.SUBSERVICE, (Object) REPLICATION_STATE_SERVICE));
+    }
+
+    /**
+     * Gives back a resolver returned by {@link #getServiceResolver()}. Pending
+     * changes are reverted.
+     *
+     * @param resolver the resolver, may be <code>null</code>
+     */
+    public void release(ResourceResolver resolver) {
+        if (resolver == null) {
+            return;
+        }
+        Lease lease;
+        synchronized (this) {
+            lease = borrowed.remove(resolver);
+        }
+        if (lease == null) {
+            // closed as leaked or not from this pool
+            if (resolver.isLive()) {
+                resolver.close();
+            }
+            return;
+        }
+        boolean keep = false;
+        try {
+            if (resolver.isLive()) {
+                if (resolver.hasChanges()) {
+                    resolver.revert();
+                }
+                keep = isUsable(lease);
+            }
+        } catch (RuntimeException e) {
+            log.debug("Cannot revert a pooled resolver: {}", e.toString());
+        }
+        if (keep) {
+            synchronized (this) {
+                if (idleResolvers.size() < maxResolvers) {
+                    idleResolvers.addFirst(lease);
+                    return;
+                }
+            }
+        }
+        close(Collections.singletonList(lease));
+    }
+
+    /**
+     * Returns a refreshed session impersonating the given user through the
+     * <code>wcm-workflow-service</code> service user, which must be given back
+     * with {@link #release(Session)}.
+     *
+     * @param userId the id of the user to impersonate
+     * @return the session
+     * @throws RepositoryException if the user cannot be impersonated
+     */
+    public Session getSession(String userId) throws RepositoryException {
+        purge();
+        Lease lease = pollSession(userId);
+        while (lease != null) {
+            Session session = (Session) lease.target;
+            if (isUsable(lease)) {
+                try {
+                    session.refresh(false);
+                    reused.incrementAndGet();
+                    return borrow(lease);
+                } catch (RepositoryException e) {
+                    log.debug("Cannot refresh a pooled session of {}: {}", userId, e.toString());
+                } catch (RuntimeException e) {
+                    log.debug("Cannot refresh a pooled session of {}: {}", userId, e.toString());
+                }
+            }
+            close(Collections.singletonList(lease));
+            lease = pollSession(userId);
+        }
+        Session session = repository.impersonateFromService(WCM_WORKFLOW_SERVICE,
+                new SimpleCredentials(userId, new char[0]), null);
+        created.incrementAndGet();
+        return borrow(new Lease(session, userId));
+    }
+
+    /**
+     * Gives back a session returned by {@link #getSession(String)}. Pending
+     * changes are discarded.
+     *
+     * @param session the session, may be <code>null</code>
+     */
+    public void release(Session session) {
+        if (session == null) {
+            return;
+        }
+        Lease lease;
+        synchronized (this) {
+            lease = borrowed.remove(session);
+        }
+        if (lease == null) {
+            if (session.isLive()) {
+                session.logout();
+            }
+            return;
+        }
+        boolean keep = false;
+        try {
+            if (session.isLive()) {
+                if (session.hasPendingChanges()) {
+                    session.refresh(false);
+                }
+                keep = isUsable(lease);
+            }
+        } catch (RepositoryException e) {
+            log.debug("Cannot revert a pooled session of {}: {}", lease.userId, e.toString());
+        }
+        if (keep) {
+            synchronized (this) {
+                if (idleSessionCount < maxSessions) {
+                    Deque<Lease> sessions = idleSessions.get(lease.userId);
+                    if (sessions == null) {
+                        sessions = new ArrayDeque<Lease>();
+                        idleSessions.put(lease.userId, sessions);
+                    }
+                    sessions.addFirst(lease);
+                    idleSessionCount++;
+                    return;
+                }
+            }
+        }
+        close(Collections.singletonList(lease));
+    }
+
+    private synchronized Lease pollSession(String userId) {
+        Deque<Lease> sessions = idleSessions.get(userId);
+        Lease lease = sessions != null ? sessions.pollFirst() : null;
+        if (lease != null) {
+            idleSessionCount--;
+            if (sessions.isEmpty()) {
+                idleSessions.remove(userId);
+            }
+        }
+        return lease;
+    }
+
+    private <T> T borrow(Lease lease) {
+        lease.borrowed = System.currentTimeMillis();
+        lease.thread = Thread.currentThread();
+        synchronized (this) {
+            borrowed.put(lease.target, lease);
+        }
+        @SuppressWarnings("unchecked")
+        T target = (T) lease.target;
+        return target;
+    }
+
+    private boolean isUsable(Lease lease) {
+        return lease.isLive() && System.currentTimeMillis() - lease.created < ttl;
+    }
+
+    /**
+     * Closes the expired idle resolvers and sessions and the leaked ones.
+     */
+    void purge() {
+        long now = System.currentTimeMillis();
+        List<Lease> closing = new ArrayList<Lease>();
+        int leakedNow = 0;
+        synchronized (this) {
+            for (Iterator<Lease> it = idleResolvers.iterator(); it.hasNext();) {
+                Lease lease = it.next();
+                if (idleResolvers.size() > maxResolvers || !isUsable(lease)) {
+                    it.remove();
+                    closing.add(lease);
+                }
+            }
+            for (Iterator<Deque<Lease>> sessions = idleSessions.values().iterator(); sessions.hasNext();) {
+                Deque<Lease> deque = sessions.next();
+                for (Iterator<Lease> it = deque.iterator(); it.hasNext();) {
+                    Lease lease = it.next();
+                    if (idleSessionCount > maxSessions || !isUsable(lease)) {
+                        it.remove();
+                        idleSessionCount--;
+                        closing.add(lease);
+                    }
+                }
+                if (deque.isEmpty()) {
+                    sessions.remove();
+                }
+            }
+            for (Iterator<Lease> it = borrowed.values().iterator(); it.hasNext();) {
+                Lease lease = it.next();
+                if (now - lease.borrowed > leakTimeout || !lease.thread.isAlive()) {
+                    it.remove();
+                    leakedNow++;
+                    log.warn("Closing the {} taken by thread {} {}ms ago, it was not given back",
+                            new Object[] { lease, lease.thread.getName(), now - lease.borrowed });
+                    closing.add(lease);
+                }
+            }
+        }
+        leaked.addAndGet(leakedNow);
+        expired.addAndGet(closing.size() - leakedNow);
+        close(closing);
+    }
+
+    private static void close(List<Lease> leases) {
+        for (Lease lease : leases) {
+            try {
+                lease.close();
+            } catch (RuntimeException e) {
+                log.debug("Cannot close {}: {}", lease, e.toString());
+            }
+        }
+    }
+
+    public synchronized int getIdleResolverCount() {
+        return idleResolvers.size();
+    }
+
+    public synchronized int getIdleSessionCount() {
+        return idleSessionCount;
+    }
+
+    public synchronized int getBorrowedCount() {
+        return borrowed.size();
+    }
+
+    public long getCreatedCount() {
+        return created.get();
+    }
+
+    public long getReusedCount() {
+        return reused.get();
+    }
+
+    public long getExpiredCount() {
+        return expired.get();
+    }
+
+    public long getLeakedCount() {
+        return leaked.get();
+    }
+
+    /**
+     * A pooled resolver or session.
+     */
+    private static final class Lease {
+
+        private final Object target;
+
+        private final String userId;
+
+        private final long created = System.currentTimeMillis();
+
+        private long borrowed;
+
+        private Thread thread;
+
+        Lease(Object target, String userId) {
+            this.target = target;
+            this.userId = userId;
+        }
+
+        boolean isLive() {
+            return target instanceof Session ? ((Session) target).isLive() : ((ResourceResolver) target).isLive();
+        }
+
+        void close() {
+            if (!isLive()) {
+                return;
+            }
+            if (target instanceof Session) {
+                ((Session) target).logout();
+            } else {
+                ((ResourceResolver) target).close();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return userId != null ? "session of " + userId : "service resolver";
+        }
+    }
+}
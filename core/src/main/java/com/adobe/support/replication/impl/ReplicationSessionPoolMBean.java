@@ -0,0 +1,21 @@
+package com.adobe.support.replication.impl;
+
+/**
+ * JMX view on the {@link ReplicationSessionPool}.
+ */
+public interface ReplicationSessionPoolMBean {
+
+    int getIdleResolverCount();
+
+    int getIdleSessionCount();
+
+    int getBorrowedCount();
+
+    long getCreatedCount();
+
+    long getReusedCount();
+
+    long getExpiredCount();
+
+    long getLeakedCount();
+}
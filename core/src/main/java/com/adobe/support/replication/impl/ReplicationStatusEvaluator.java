@@ -0,0 +1,140 @@
+package com.adobe.support.replication.impl;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ValueMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.day.cq.commons.jcr.JcrConstants;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationStatus;
+import com.day.cq.wcm.api.reference.Reference;
+
+/**
+ * The <code>ReplicationStatusEvaluator</code> decides which references have
+ * to be activated along with a page: those never activated, deactivated or
+ * modified after their last activation.
+ * <p>
+ * Instead of adapting every referenced resource to {@link ReplicationStatus},
+ * which goes through the adapter manager and creates a status object per
+ * resource, the replication properties are read directly from the value map
+ * of the content node, or of the resource itself if it has no content node
+ * with replication properties. The references are evaluated grouped by their
+ * parent, so the siblings of a folder are read one after another in a single
+ * pass over the batch.
+ * <p>
+ * A reference counts as published if its last replication action was an
+ * activation. This is what {@link ReplicationStatus#isActivated()} checks, and
+ * {@link ReplicationStatus#isDelivered()} only holds for activated resources
+ * whose activation left the queues, so reading the queues for the delivered
+ * check would not change the outcome.
+ */
+public final class ReplicationStatusEvaluator {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplicationStatusEvaluator.class);
+
+    private static final String ACTIVATE = ReplicationActionType.ACTIVATE.getName();
+
+    /**
+     * Orders references by the path of their parent, then by their name.
+     * References without resource come last.
+     */
+    private static final Comparator<Reference> BY_PARENT = new Comparator<Reference>() {
+        public int compare(Reference a, Reference b) {
+            Resource ra = a.getResource();
+            Resource rb = b.getResource();
+            if (ra == null || rb == null) {
+                return ra == null ? (rb == null ? 0 : 1) : -1;
+            }
+            String pa = ra.getPath();
+            String pb = rb.getPath();
+            int sa = pa.lastIndexOf('/');
+            int sb = pb.lastIndexOf('/');
+            int c = compareRegions(pa, 0, sa, pb, 0, sb);
+            return c != 0 ? c : compareRegions(pa, sa + 1, pa.length(), pb, sb + 1, pb.length());
+        }
+    };
+
+    private ReplicationStatusEvaluator() {
+    }
+
+    /**
+     * Adds the paths of all references which need to be activated to the given
+     * list. The references are first grouped by their parent, the paths are
+     * added in that order.
+     *
+     * @param references the references to evaluate, sorted in place
+     * @param paths the list receiving the paths to activate
+     * @return the number of references which are activated and up to date
+     */
+    public static int collectOutdated(List<Reference> references, List<String> paths) {
+        Collections.sort(references, BY_PARENT);
+        boolean debug = log.isDebugEnabled();
+        int upToDate = 0;
+        for (Reference reference : references) {
+            Resource resource = reference.getResource();
+            if (resource == null) {
+                continue;
+            }
+            long lastPublished = getLastPublished(resource);
+            boolean published = lastPublished != 0;
+            boolean outdated = published && lastPublished < reference.getLastModified();
+            String path = resource.getPath();
+            if (debug) {
+                log.debug("Considering reference at {} . Published: {}, outdated: {} ( lastPublished: {}, lastModified: {} )",
+                        new Object[] { path, published, outdated, lastPublished, reference.getLastModified() });
+            }
+            if (!published || outdated) {
+                paths.add(path);
+            } else {
+                upToDate++;
+            }
+        }
+        return upToDate;
+    }
+
+    /**
+     * @param resource the resource
+     * @return the date of the last activation in milliseconds, <code>0</code>
+     *         if the resource was never activated or was deactivated since
+     */
+    static long getLastPublished(Resource resource) {
+        Resource content = JcrConstants.JCR_CONTENT.equals(resource.getName()) ? resource
+                : resource.getChild(JcrConstants.JCR_CONTENT);
+        if (content != null) {
+            ValueMap props = content.getValueMap();
+            if (props.containsKey(ReplicationStatus.NODE_PROPERTY_LAST_REPLICATION_ACTION)) {
+                return getLastPublished(props);
+            }
+        }
+        return content != resource ? getLastPublished(resource.getValueMap()) : 0;
+    }
+
+    /**
+     * Compares the given regions of two strings by their characters.
+     */
+    private static int compareRegions(String a, int fromA, int toA, String b, int fromB, int toB) {
+        int length = Math.min(toA - fromA, toB - fromB);
+        for (int i = 0; i < length; i++) {
+            char ca = a.charAt(fromA + i);
+            char cb = b.charAt(fromB + i);
+            if (ca != cb) {
+                return ca - cb;
+            }
+        }
+        return (toA - fromA) - (toB - fromB);
+    }
+
+    private static long getLastPublished(ValueMap props) {
+        if (!ACTIVATE.equals(props.get(ReplicationStatus.NODE_PROPERTY_LAST_REPLICATION_ACTION, String.class))) {
+            return 0;
+        }
+        Calendar date = props.get(ReplicationStatus.NODE_PROPERTY_LAST_REPLICATED, Calendar.class);
+        return date != null ? date.getTimeInMillis() : 0;
+    }
+}
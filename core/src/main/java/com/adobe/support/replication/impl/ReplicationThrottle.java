@@ -0,0 +1,210 @@
+package com.adobe.support.replication.impl;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Reference;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.AgentFilter;
+import com.day.cq.replication.AgentManager;
+import com.day.cq.replication.ReplicationQueue;
+
+/**
+ * The <code>ReplicationThrottle</code> slows down the replication loop of the
+ * workflow steps while the queues of the default replication agents are
+ * full, so a large activation does not bury the queues and keeps room for
+ * the activations of the authors.
+ * <p>
+ * The depth of the longest queue is sampled at most once per poll interval
+ * and shared by all callers. Above the high watermark callers wait until the
+ * depth dropped to the low watermark, between the two watermarks the batch
+ * size is reduced linearly. A caller waits at most the configured time and
+ * then continues with single paths. The throttle is disabled with a high
+ * watermark of <code>0</code>.
+ */
+@Component(metatype = true, immediate = true, label = "Activation Replication Throttle",
+        description = "Throttles the activation workflow steps based on the depth of the replication queues.")
+@Service({ ReplicationThrottle.class, ReplicationThrottleMBean.class })
+@Property(name = "jmx.objectname", value = "com.adobe.support.replication:type=ReplicationThrottle", propertyPrivate = true)
+public class ReplicationThrottle implements ReplicationThrottleMBean {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplicationThrottle.class);
+
+    private static final int DEFAULT_HIGH_WATERMARK = 0;
+
+    @Property(intValue = DEFAULT_HIGH_WATERMARK, label = "High watermark",
+            description = "Queue depth at which the replication pauses, 0 disables the throttle.")
+    public static final String PROP_HIGH_WATERMARK = "throttle.high.watermark";
+
+    private static final int DEFAULT_LOW_WATERMARK = 0;
+
+    @Property(intValue = DEFAULT_LOW_WATERMARK, label = "Low watermark",
+            description = "Queue depth at which a paused replication resumes with the full batch size. "
+                    + "0 uses half of the high watermark.")
+    public static final String PROP_LOW_WATERMARK = "throttle.low.watermark";
+
+    private static final long DEFAULT_POLL_INTERVAL = 5000;
+
+    @Property(longValue = DEFAULT_POLL_INTERVAL, label = "Poll interval",
+            description = "Time in milliseconds between two samples of the queue depth.")
+    public static final String PROP_POLL_INTERVAL = "throttle.poll.interval";
+
+    private static final long DEFAULT_MAX_WAIT = 10 * 60 * 1000L;
+
+    @Property(longValue = DEFAULT_MAX_WAIT, label = "Maximum wait",
+            description = "Maximum time in milliseconds a replication waits for the queues to drain.")
+    public static final String PROP_MAX_WAIT = "throttle.max.wait";
+
+    @Reference
+    private AgentManager agentManager;
+
+    private volatile int highWatermark = DEFAULT_HIGH_WATERMARK;
+
+    private volatile int lowWatermark = DEFAULT_LOW_WATERMARK;
+
+    private volatile long pollInterval = DEFAULT_POLL_INTERVAL;
+
+    private volatile long maxWait = DEFAULT_MAX_WAIT;
+
+    private volatile int depth;
+
+    private volatile long sampled;
+
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private final AtomicLong pauses = new AtomicLong();
+
+    private final AtomicLong pausedMillis = new AtomicLong();
+
+    private final AtomicLong shrinks = new AtomicLong();
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    @Activate
+    @Modified
+    protected void activate(Map<String, Object> properties) {
+        highWatermark = Math.max(0, PropertiesUtil.toInteger(properties.get(PROP_HIGH_WATERMARK), DEFAULT_HIGH_WATERMARK));
+        int low = PropertiesUtil.toInteger(properties.get(PROP_LOW_WATERMARK), DEFAULT_LOW_WATERMARK);
+        lowWatermark = low > 0 && low < highWatermark ? low : highWatermark / 2;
+        pollInterval = Math.max(0, PropertiesUtil.toLong(properties.get(PROP_POLL_INTERVAL), DEFAULT_POLL_INTERVAL));
+        maxWait = Math.max(0, PropertiesUtil.toLong(properties.get(PROP_MAX_WAIT), DEFAULT_MAX_WAIT));
+        sampled = 0;
+    }
+
+    /**
+     * Called before paths are handed to the replicator. Waits while the
+     * queues are above the high watermark.
+     *
+     * @param batchSize the number of paths the caller wants to replicate
+     * @return the number of paths the caller may replicate now, between
+     *         <code>1</code> and <code>batchSize</code>
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int acquire(int batchSize) throws InterruptedException {
+        final int high = highWatermark;
+        if (high <= 0 || batchSize <= 0) {
+            return batchSize;
+        }
+        final int low = lowWatermark;
+        int current = getQueueDepth();
+        if (current >= high) {
+            pauses.incrementAndGet();
+            waiting.incrementAndGet();
+            long start = System.currentTimeMillis();
+            try {
+                log.debug("Replication queue depth {} above {}, pausing", current, high);
+                while (current > low) {
+                    if (System.currentTimeMillis() - start >= maxWait) {
+                        timeouts.incrementAndGet();
+                        log.warn("Replication queues did not drain below {} within {}ms, continuing with single paths",
+                                low, maxWait);
+                        return 1;
+                    }
+                    Thread.sleep(Math.max(100, pollInterval));
+                    current = getQueueDepth();
+                }
+                return batchSize;
+            } finally {
+                waiting.decrementAndGet();
+                pausedMillis.addAndGet(System.currentTimeMillis() - start);
+            }
+        }
+        if (current > low) {
+            shrinks.incrementAndGet();
+            return Math.max(1, (int) ((long) batchSize * (high - current) / (high - low)));
+        }
+        return batchSize;
+    }
+
+    /**
+     * @return the depth of the longest queue of the default agents, sampled at
+     *         most once per poll interval
+     */
+    public int getQueueDepth() {
+        long now = System.currentTimeMillis();
+        if (now - sampled >= pollInterval) {
+            synchronized (this) {
+                if (now - sampled >= pollInterval) {
+                    depth = sample();
+                    sampled = System.currentTimeMillis();
+                }
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * @return the current depth of the longest queue of the default agents
+     */
+    int sample() {
+        int max = 0;
+        for (Agent agent : agentManager.getAgents().values()) {
+            if (!AgentFilter.DEFAULT.isIncluded(agent) || !agent.isValid()) {
+                continue;
+            }
+            ReplicationQueue queue = agent.getQueue();
+            if (queue != null) {
+                max = Math.max(max, queue.entries().size());
+            }
+        }
+        return max;
+    }
+
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    public int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    public int getWaitingCount() {
+        return waiting.get();
+    }
+
+    public long getPauseCount() {
+        return pauses.get();
+    }
+
+    public long getPausedMillis() {
+        return pausedMillis.get();
+    }
+
+    public long getShrinkCount() {
+        return shrinks.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+}
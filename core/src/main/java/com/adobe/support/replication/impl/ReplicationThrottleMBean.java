@@ -0,0 +1,23 @@
+package com.adobe.support.replication.impl;
+
+/**
+ * JMX view on the {@link ReplicationThrottle}.
+ */
+public interface ReplicationThrottleMBean {
+
+    int getHighWatermark();
+
+    int getLowWatermark();
+
+    int getQueueDepth();
+
+    int getWaitingCount();
+
+    long getPauseCount();
+
+    long getPausedMillis();
+
+    long getShrinkCount();
+
+    long getTimeoutCount();
+}
@@ -0,0 +1,213 @@
+package com.adobe.support.replication.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.felix.scr.annotations.Activate;
+import org.apache.felix.scr.annotations.Component;
+import org.apache.felix.scr.annotations.Modified;
+import org.apache.felix.scr.annotations.Properties;
+import org.apache.felix.scr.annotations.Property;
+import org.apache.felix.scr.annotations.Service;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.observation.ExternalResourceChangeListener;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.apache.sling.commons.osgi.PropertiesUtil;
+
+import com.day.cq.wcm.api.Template;
+
+/**
+ * The <code>TemplateCache</code> keeps the paths a page based on an editable
+ * template has to be activated with, the template and its structure node.
+ * Hundreds of pages usually share a handful of templates, so the template is
+ * only loaded and checked for structure support once.
+ * <p>
+ * The entries are keyed by the template path taken from the
+ * <code>cq:template</code> property of the page. An entry is only used if the
+ * last modification date of the template did not change since it was cached,
+ * and it is dropped as soon as the template or one of its descendants
+ * changes. Templates without structure support are cached with no paths. The
+ * references of the template and structure paths are kept by the
+ * {@link ReferenceCache} like those of all other resources. The least
+ * recently used entries are evicted once the configured size is reached.
+ */
+@Component(metatype = true, immediate = true, label = "Activation Template Cache",
+        description = "Caches the template and structure paths activated along with the pages of a template.")
+@Service({ TemplateCache.class, ResourceChangeListener.class, TemplateCacheMBean.class })
+@Properties({
+        @Property(name = ResourceChangeListener.PATHS, value = { "/conf", "/apps" }, propertyPrivate = true),
+        @Property(name = ResourceChangeListener.CHANGES, value = { "ADDED", "CHANGED", "REMOVED" }, propertyPrivate = true),
+        @Property(name = "jmx.objectname", value = "com.adobe.support.replication:type=TemplateCache", propertyPrivate = true)
+})
+public class TemplateCache implements ResourceChangeListener, ExternalResourceChangeListener, TemplateCacheMBean {
+
+    private static final int DEFAULT_SIZE = 100;
+
+    @Property(intValue = DEFAULT_SIZE, label = "Cache size",
+            description = "Maximum number of templates whose paths are cached, 0 disables the cache.")
+    public static final String PROP_SIZE = "template.cache.size";
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private volatile int maxSize = DEFAULT_SIZE;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > maxSize) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    @Activate
+    @Modified
+    protected void activate(Map<String, Object> properties) {
+        maxSize = Math.max(0, PropertiesUtil.toInteger(properties.get(PROP_SIZE), DEFAULT_SIZE));
+        synchronized (entries) {
+            Iterator<String> it = entries.keySet().iterator();
+            while (entries.size() > maxSize && it.hasNext()) {
+                it.next();
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Returns the template and structure paths of the given template.
+     *
+     * @param templatePath the path of the template
+     * @param resolver the resolver used to load the template
+     * @return the template path and the structure path, if the template has
+     *         structure support and a structure node, otherwise an empty list
+     */
+    public List<String> getPaths(String templatePath, ResourceResolver resolver) {
+        Resource resource = resolver.getResource(templatePath);
+        if (resource == null) {
+            return Collections.emptyList();
+        }
+        long lastModified = ReferenceCache.getLastModified(resource);
+        if (maxSize > 0) {
+            Entry entry;
+            synchronized (entries) {
+                entry = entries.get(templatePath);
+            }
+            if (entry != null && entry.lastModified == lastModified) {
+                hits.incrementAndGet();
+                return entry.paths;
+            }
+            misses.incrementAndGet();
+        }
+        List<String> paths = getPaths(resource.adaptTo(Template.class));
+        if (maxSize > 0) {
+            synchronized (entries) {
+                entries.put(templatePath, new Entry(lastModified, paths));
+            }
+        }
+        return paths;
+    }
+
+    /**
+     * @param template the template, may be <code>null</code>
+     * @return the template path and the structure path, if the template has
+     *         structure support and a structure node, otherwise an empty list
+     */
+    static List<String> getPaths(Template template) {
+        if (template == null || !template.hasStructureSupport()) {
+            return Collections.emptyList();
+        }
+        List<String> paths = new ArrayList<String>(2);
+        paths.add(template.getPath());
+        Resource structure = template.adaptTo(Resource.class).getChild(ActivationReferenceSearchImpl.NN_STRUCTURE);
+        if (structure != null) {
+            paths.add(structure.getPath());
+        }
+        return paths;
+    }
+
+    /**
+     * Drops the entries of the changed templates, including changes of their
+     * descendants, e.g. the structure or the policies.
+     */
+    public void onChange(List<ResourceChange> changes) {
+        synchronized (entries) {
+            if (entries.isEmpty()) {
+                return;
+            }
+            for (ResourceChange change : changes) {
+                String path = change.getPath();
+                for (Iterator<String> it = entries.keySet().iterator(); it.hasNext();) {
+                    String templatePath = it.next();
+                    if (path.equals(templatePath) || path.startsWith(templatePath + "/")
+                            || templatePath.startsWith(path + "/")) {
+                        it.remove();
+                        invalidations.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    private static final class Entry {
+
+        private final long lastModified;
+
+        private final List<String> paths;
+
+        Entry(long lastModified, List<String> paths) {
+            this.lastModified = lastModified;
+            this.paths = Collections.unmodifiableList(Arrays.asList(paths.toArray(new String[paths.size()])));
+        }
+    }
+}
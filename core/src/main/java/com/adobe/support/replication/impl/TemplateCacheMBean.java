@@ -0,0 +1,21 @@
+package com.adobe.support.replication.impl;
+
+/**
+ * JMX view on the {@link TemplateCache}.
+ */
+public interface TemplateCacheMBean {
+
+    int getSize();
+
+    int getMaxSize();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    long getEvictionCount();
+
+    long getInvalidationCount();
+
+    void clear();
+}
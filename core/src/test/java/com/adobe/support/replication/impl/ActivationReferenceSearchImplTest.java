@@ -0,0 +1,149 @@
+package com.adobe.support.replication.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.testing.resourceresolver.MockResourceResolverFactory;
+import org.junit.After;
+import org.junit.Test;
+
+import com.adobe.support.replication.ActivationReferenceSearch.ReferenceHandler;
+import com.day.cq.commons.jcr.JcrConstants;
+import com.day.cq.wcm.api.reference.Reference;
+import com.day.cq.wcm.api.reference.ReferenceProvider;
+
+public class ActivationReferenceSearchImplTest {
+
+    private static final String PAGE = "/content/site/page";
+
+    private static final String ASSET_A = "/content/dam/a.png";
+
+    private static final String ASSET_B = "/content/dam/b.png";
+
+    private final ActivationReferenceSearchImpl search = new ActivationReferenceSearchImpl();
+
+    @After
+    public void tearDown() {
+        search.deactivate();
+    }
+
+    @Test
+    public void findsNothingForNoPaths() {
+        ReferenceHandler handler = new ReferenceHandler() {
+            public boolean handle(List<String> paths) {
+                throw new AssertionError("Unexpected references " + paths);
+            }
+        };
+        assertEquals(0, search.search(new String[0], null, 1, Integer.MAX_VALUE, handler));
+        assertEquals(0, search.search(null, null, 1, Integer.MAX_VALUE, handler));
+        assertTrue(search.search(new String[0], null).isEmpty());
+    }
+
+    @Test
+    public void findsTheReferencesOfAllProviders() throws Exception {
+        ResourceResolver resolver = newContent();
+        AtomicInteger calls = new AtomicInteger();
+        activate(false, 1000, newProvider(ASSET_A, 0, calls), newProvider(ASSET_B, 0, calls));
+
+        assertEquals(Arrays.asList(ASSET_A, ASSET_B), search.search(new String[] { PAGE }, resolver));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void findsTheReferencesOfAllProvidersConcurrently() throws Exception {
+        ResourceResolver resolver = newContent();
+        AtomicInteger calls = new AtomicInteger();
+        activate(true, 1000, newProvider(ASSET_A, 0, calls), newProvider(ASSET_B, 50, calls));
+
+        assertEquals(Arrays.asList(ASSET_A, ASSET_B), search.search(new String[] { PAGE }, resolver));
+        assertEquals(2, calls.get());
+        // the complete references are cached
+        assertEquals(Arrays.asList(ASSET_A, ASSET_B), search.search(new String[] { PAGE }, resolver));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void cancelsAProviderExceedingItsBudget() throws Exception {
+        ResourceResolver resolver = newContent();
+        AtomicInteger calls = new AtomicInteger();
+        activate(true, 100, newProvider(ASSET_A, 0, calls), newProvider(ASSET_B, 2000, calls));
+
+        long start = System.currentTimeMillis();
+        assertEquals(Collections.singletonList(ASSET_A), search.search(new String[] { PAGE }, resolver));
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("search took " + elapsed + "ms", elapsed < 1000);
+        // the incomplete references are not cached, the next search calls all providers again
+        search.search(new String[] { PAGE }, resolver);
+        assertEquals(4, calls.get());
+    }
+
+    private void activate(boolean concurrent, long providerTimeout, ReferenceProvider... providers) {
+        ReferenceCache referenceCache = new ReferenceCache();
+        referenceCache.activate(new HashMap<String, Object>());
+        ReferenceGraph referenceGraph = new ReferenceGraph();
+        referenceGraph.activate(null, new HashMap<String, Object>());
+        TemplateCache templateCache = new TemplateCache();
+        templateCache.activate(new HashMap<String, Object>());
+        ProcessFixture.inject(search, "referenceCache", referenceCache);
+        ProcessFixture.inject(search, "referenceGraph", referenceGraph);
+        ProcessFixture.inject(search, "templateCache", templateCache);
+        ProcessFixture.inject(search, "metrics", new ReplicationMetrics());
+        for (ReferenceProvider provider : providers) {
+            search.bindReferenceProviders(provider);
+        }
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(ActivationReferenceSearchImpl.PROP_CONCURRENT, concurrent);
+        properties.put(ActivationReferenceSearchImpl.PROP_PROVIDER_TIMEOUT, providerTimeout);
+        search.activate(properties);
+    }
+
+    /**
+     * @return a provider finding the given target in every resource after the given delay
+     */
+    private static ReferenceProvider newProvider(final String target, final long delay, final AtomicInteger calls) {
+        return Stubs.of(ReferenceProvider.class).on("findReferences", new Stubs.Answer() {
+            public Object answer(Object[] args) throws InterruptedException {
+                calls.incrementAndGet();
+                Thread.sleep(delay);
+                Resource resource = (Resource) args[0];
+                return Collections.singletonList(new Reference("asset", ResourceUtil.getName(target),
+                        resource.getResourceResolver().getResource(target), 0));
+            }
+        }).build();
+    }
+
+    /**
+     * @return a resolver on the content, whose clones see the same content
+     */
+    private static ResourceResolver newContent() throws Exception {
+        final MockResourceResolverFactory repository = new MockResourceResolverFactory();
+        ResourceResolver resolver = repository.getResourceResolver(null);
+        createContent(resolver, PAGE);
+        createContent(resolver, ASSET_A);
+        createContent(resolver, ASSET_B);
+        return Stubs.of(ResourceResolver.class).on("clone", new Stubs.Answer() {
+            public Object answer(Object[] args) throws LoginException {
+                return repository.getResourceResolver(null);
+            }
+        }).delegateTo(resolver).build();
+    }
+
+    private static void createContent(ResourceResolver resolver, String path) throws PersistenceException {
+        Resource resource = ResourceUtil.getOrCreateResource(resolver, path,
+                Collections.<String, Object> emptyMap(), null, false);
+        resolver.create(resource, JcrConstants.JCR_CONTENT, Collections.<String, Object> emptyMap());
+        resolver.commit();
+    }
+}
@@ -0,0 +1,137 @@
+package com.adobe.support.replication.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.ReplicationAction;
+import com.day.cq.replication.ReplicationActionType;
+
+public class AsyncReplicationTrackerTest {
+
+    private static final String PAGE = "/content/site/page";
+
+    private final AsyncReplicationTracker tracker = new AsyncReplicationTracker();
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void setUp() {
+        tracker.activate(new HashMap<String, Object>());
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        tracker.deactivate();
+    }
+
+    @Test
+    public void tracksAReplicationUntilItsResultIsCollected() throws Exception {
+        AsyncReplication replication = tracker.submit(PAGE, new AsyncReplicationTracker.Task() {
+            public void run(AsyncReplication replication) throws InterruptedException {
+                release.await();
+            }
+        });
+        assertFalse(replication.isDone());
+        assertEquals(1, tracker.getPendingCount());
+        assertSame(replication, tracker.get(replication.getId()));
+
+        release.countDown();
+        awaitDone(replication);
+        assertTrue(replication.isSuccessful());
+        assertEquals(0, tracker.getPendingCount());
+        assertSame(replication, tracker.remove(replication.getId()));
+        assertNull(tracker.get(replication.getId()));
+    }
+
+    @Test
+    public void reportsTheErrorOfAFailedTask() throws Exception {
+        AsyncReplication replication = tracker.submit(PAGE, new AsyncReplicationTracker.Task() {
+            public void run(AsyncReplication replication) throws Exception {
+                throw new IllegalStateException("no agent");
+            }
+        });
+        awaitDone(replication);
+        assertFalse(replication.isSuccessful());
+        assertEquals("no agent", replication.getError().getMessage());
+    }
+
+    @Test
+    public void collectsTheFailuresReportedByTheAgents() throws Exception {
+        final Agent agent = Stubs.of(Agent.class).returns("getId", "publish").build();
+        AsyncReplication replication = tracker.submit(PAGE, new AsyncReplicationTracker.Task() {
+            public void run(AsyncReplication replication) {
+                replication.onError(agent, new ReplicationAction(ReplicationActionType.ACTIVATE,
+                        new String[] { PAGE, "/content/dam/a.png" }, 0, "author", null),
+                        new IllegalStateException("publish is not reachable"));
+            }
+        });
+        awaitDone(replication);
+        assertFalse(replication.isSuccessful());
+        assertNull(replication.getError());
+        assertEquals(1, replication.getFailures().size());
+        assertArrayEquals(new String[] { PAGE, "/content/dam/a.png" }, replication.getFailedPaths());
+    }
+
+    @Test
+    public void failsTheRunningReplicationsWhenStopped() {
+        AsyncReplication replication = tracker.submit(PAGE, new AsyncReplicationTracker.Task() {
+            public void run(AsyncReplication replication) throws InterruptedException {
+                release.await();
+            }
+        });
+        tracker.deactivate();
+
+        assertTrue(replication.isDone());
+        assertFalse(replication.isSuccessful());
+        // a stopped tracker fails new replications right away
+        AsyncReplication rejected = tracker.submit(PAGE, new AsyncReplicationTracker.Task() {
+            public void run(AsyncReplication replication) {
+            }
+        });
+        assertTrue(rejected.isDone());
+        assertFalse(rejected.isSuccessful());
+    }
+
+    @Test
+    public void dropsUncollectedReplicationsAfterTheirRetention() throws Exception {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(AsyncReplicationTracker.PROP_RETENTION, 0L);
+        tracker.activate(properties);
+        AsyncReplication uncollected = tracker.submit(PAGE, new AsyncReplicationTracker.Task() {
+            public void run(AsyncReplication replication) {
+            }
+        });
+        awaitDone(uncollected);
+        Thread.sleep(5);
+
+        AsyncReplication next = tracker.submit(PAGE, new AsyncReplicationTracker.Task() {
+            public void run(AsyncReplication replication) {
+            }
+        });
+        assertNull(tracker.get(uncollected.getId()));
+        assertSame(next, tracker.get(next.getId()));
+    }
+
+    private static void awaitDone(AsyncReplication replication) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (!replication.isDone() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(replication + " did not finish", replication.isDone());
+    }
+}
@@ -0,0 +1,107 @@
+package com.adobe.support.replication.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.testing.resourceresolver.MockResourceResolverFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.day.cq.commons.jcr.JcrConstants;
+import com.day.cq.replication.ReplicationStatus;
+import com.day.cq.wcm.api.NameConstants;
+
+public class DeltaFilterTest {
+
+    private static final long ACTIVATED = 2000;
+
+    private ResourceResolver resolver;
+
+    @Before
+    public void setUp() throws Exception {
+        resolver = new MockResourceResolverFactory().getResourceResolver(null);
+    }
+
+    @Test
+    public void dropsThePathsUnchangedSinceTheirActivation() throws Exception {
+        createPage("/content/unchanged", ACTIVATED - 1, true);
+        createPage("/content/modified", ACTIVATED + 1, true);
+        createPage("/content/new", ACTIVATED - 1, false);
+        DeltaFilter filter = new DeltaFilter(resolver, null, DeltaFilter.MODE_MODIFIED);
+        assertEquals(Arrays.asList("/content/modified", "/content/new", "/content/missing"),
+                filter.filter(Arrays.asList("/content/unchanged", "/content/modified", "/content/new",
+                        "/content/missing")));
+        assertEquals(1, filter.getSkipped());
+    }
+
+    @Test
+    public void keepsThePathsWithoutModificationDate() throws Exception {
+        createPage("/content/undated", 0, true);
+        DeltaFilter filter = new DeltaFilter(resolver, null, DeltaFilter.MODE_MODIFIED);
+        assertEquals(Collections.singletonList("/content/undated"),
+                filter.filter(Collections.singletonList("/content/undated")));
+    }
+
+    @Test
+    public void keepsAllPathsIfDisabled() throws Exception {
+        createPage("/content/unchanged", ACTIVATED - 1, true);
+        DeltaFilter filter = new DeltaFilter(resolver, null, "false");
+        List<String> paths = Collections.singletonList("/content/unchanged");
+        assertEquals(paths, filter.filter(paths));
+    }
+
+    @Test
+    public void dropsTheModifiedPathsWithUnchangedFingerprint() throws Exception {
+        createPage("/content/saved", ACTIVATED + 1, true);
+        createPage("/content/edited", ACTIVATED + 1, true);
+        createPage("/content/undated", 0, true);
+        List<String> paths = Arrays.asList("/content/saved", "/content/edited", "/content/undated");
+
+        // the first replication stores the fingerprints of all paths
+        DeltaFilter filter = new DeltaFilter(resolver, resolver, DeltaFilter.MODE_FINGERPRINT);
+        assertEquals(paths, filter.filter(paths));
+        filter.replicated(paths);
+        DeltaFilter.storeFingerprints(resolver, filter.getReplicatedFingerprints());
+
+        resolver.getResource("/content/edited/jcr:content").adaptTo(ModifiableValueMap.class)
+                .put(NameConstants.PN_TITLE, "Edited");
+        filter = new DeltaFilter(resolver, resolver, DeltaFilter.MODE_FINGERPRINT);
+        assertEquals(Collections.singletonList("/content/edited"), filter.filter(paths));
+        assertEquals(2, filter.getSkipped());
+    }
+
+    private void createPage(String path, long lastModified, boolean activated) throws PersistenceException {
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put(JcrConstants.JCR_PRIMARYTYPE, "cq:PageContent");
+        props.put(NameConstants.PN_TITLE, path);
+        if (lastModified > 0) {
+            props.put(NameConstants.PN_PAGE_LAST_MOD, calendar(lastModified));
+        }
+        if (activated) {
+            props.put(ReplicationStatus.NODE_PROPERTY_LAST_REPLICATED, calendar(ACTIVATED));
+            props.put(ReplicationStatus.NODE_PROPERTY_LAST_REPLICATION_ACTION, "Activate");
+        }
+        Resource page = ResourceUtil.getOrCreateResource(resolver, path,
+                Collections.<String, Object> singletonMap(JcrConstants.JCR_PRIMARYTYPE, NameConstants.NT_PAGE), null,
+                false);
+        resolver.create(page, JcrConstants.JCR_CONTENT, props);
+        resolver.commit();
+    }
+
+    private static Calendar calendar(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        return calendar;
+    }
+}
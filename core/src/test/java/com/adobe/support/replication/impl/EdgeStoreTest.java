@@ -0,0 +1,42 @@
+package com.adobe.support.replication.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class EdgeStoreTest {
+
+    @Test
+    public void keepsTheBlocksWhenGrowing() {
+        EdgeStore store = new EdgeStore(16);
+        int first = store.allocate(4);
+        store.putInt(first, 42);
+        store.putLong(first + 2, Long.MAX_VALUE - 1);
+
+        int second = store.allocate(100);
+        assertEquals(4, second);
+        assertTrue(store.getCapacityBytes() >= 104 * 4);
+        assertEquals(42, store.getInt(first));
+        assertEquals(Long.MAX_VALUE - 1, store.getLong(first + 2));
+        assertEquals(104, store.getUsed());
+    }
+
+    @Test
+    public void countsFreedBlocksAsGarbage() {
+        EdgeStore store = new EdgeStore(16);
+        int block = store.allocate(8);
+        for (int i = 0; i < 8; i++) {
+            store.putInt(block + i, i);
+        }
+        store.free(8);
+        assertEquals(8, store.getGarbage());
+        assertEquals(8, store.getUsed());
+
+        EdgeStore compacted = new EdgeStore(16);
+        int copy = compacted.allocate(8);
+        store.copy(block, compacted, copy, 8);
+        assertEquals(7, compacted.getInt(copy + 7));
+        assertEquals(0, compacted.getGarbage());
+    }
+}
@@ -0,0 +1,66 @@
+package com.adobe.support.replication.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void reportsZeroWhenEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(0.99));
+        assertEquals(0, histogram.getMean());
+    }
+
+    @Test
+    public void reportsPercentilesWithinTheBucketAccuracy() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500, histogram.getMean());
+        assertEquals(1000000, histogram.getMax());
+        assertWithin(500000, histogram.getPercentile(0.5));
+        assertWithin(900000, histogram.getPercentile(0.9));
+        assertWithin(990000, histogram.getPercentile(0.99));
+        // the upper bound of a bucket never exceeds the largest value recorded
+        assertEquals(1000000, histogram.getPercentile(1.0));
+    }
+
+    @Test
+    public void recordsSmallAndNegativeValuesExactly() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(3);
+        assertEquals(0, histogram.getPercentile(0.5));
+        assertEquals(3, histogram.getPercentile(1.0));
+    }
+
+    @Test
+    public void bucketsCoverTheirValues() {
+        for (long value = 1; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 1) {
+            int index = LatencyHistogram.index(value);
+            assertTrue(value + " above its bucket", value <= LatencyHistogram.upperBound(index));
+            assertTrue(value + " below its bucket", index == 0 || value > LatencyHistogram.upperBound(index - 1));
+        }
+    }
+
+    @Test
+    public void resetDropsAllValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(0.5));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual,
+                actual >= expected && actual <= expected * 1.125);
+    }
+}
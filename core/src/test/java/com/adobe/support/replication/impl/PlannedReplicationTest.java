@@ -0,0 +1,139 @@
+package com.adobe.support.replication.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.adobe.support.replication.impl.ProcessFixture.Call;
+import com.day.cq.workflow.WorkflowException;
+
+public class PlannedReplicationTest {
+
+    private static final String PAGE = "/content/site/page";
+
+    private static final List<String> PLAN = Arrays.asList("/content/dam/a", "/content/dam/b", "/content/dam/c",
+            "/content/dam/d", PAGE);
+
+    private static final String PATHS = ReplicationEstimate.PREFIX + ProcessFixture.STEP_ID + ".paths";
+
+    private ProcessFixture fixture;
+
+    @Before
+    public void setUp() throws Exception {
+        fixture = new ProcessFixture("publish").references("/content/dam/a", "/content/dam/b", "/content/dam/c",
+                "/content/dam/d");
+    }
+
+    @Test
+    public void replicatesAPlanWithinItsBudget() throws Exception {
+        fixture.execute(PAGE, "batchSize=10,budgetPaths=5");
+
+        assertEquals(PLAN, fixture.replicator.getPaths());
+        assertEquals(Integer.valueOf(5), fixture.metaData.get(PATHS, Integer.class));
+    }
+
+    @Test
+    public void failsAPlanOverBudget() throws Exception {
+        try {
+            fixture.execute(PAGE, "batchSize=10,budgetPaths=4,overBudget=fail");
+            fail("plan exceeds its budget");
+        } catch (WorkflowException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("5 paths exceed the budget of 4"));
+        }
+        assertTrue(fixture.replicator.calls.isEmpty());
+    }
+
+    @Test
+    public void pausesAPlanOverBudgetUntilApproved() throws Exception {
+        fixture.execute(PAGE, "batchSize=10,budgetPaths=4,overBudget=pause");
+
+        assertTrue(fixture.replicator.calls.isEmpty());
+        String pendingKey = ReplicationEstimate.getPendingKey(ProcessFixture.STEP_ID);
+        assertEquals("5 paths exceed the budget of 4", fixture.metaData.get(pendingKey, String.class));
+
+        // an approval of another step does not release the plan
+        fixture.metaData.put(ReplicationEstimate.getApprovedKey("node2"), "true");
+        fixture.execute(PAGE, "batchSize=10,budgetPaths=4,overBudget=pause");
+        assertTrue(fixture.replicator.calls.isEmpty());
+
+        fixture.metaData.put(ReplicationEstimate.getApprovedKey(ProcessFixture.STEP_ID), "true");
+        fixture.execute(PAGE, "batchSize=10,budgetPaths=4,overBudget=pause");
+        assertEquals(1, fixture.replicator.calls.size());
+        assertEquals(PLAN, fixture.replicator.getPaths());
+        assertNull(fixture.metaData.get(pendingKey, String.class));
+        assertFalse(ReplicationEstimate.isApproved(ProcessFixture.STEP_ID, fixture.metaData));
+    }
+
+    @Test
+    public void onlyEstimatesADryRun() throws Exception {
+        fixture.execute(PAGE, "batchSize=10,dryRun=true");
+
+        assertTrue(fixture.replicator.calls.isEmpty());
+        assertEquals(Integer.valueOf(5), fixture.metaData.get(PATHS, Integer.class));
+        assertEquals(Boolean.TRUE, fixture.metaData.get(ReplicationEstimate.PREFIX + ProcessFixture.STEP_ID
+                + ".dryRun", Boolean.class));
+        assertNotNull(fixture.metaData.get(ReplicationEstimate.PREFIX + ProcessFixture.STEP_ID + ".agents",
+                String[].class));
+    }
+
+    @Test
+    public void spacesTheBatchesOfASplitPlan() throws Exception {
+        fixture.execute(PAGE, "batchSize=10,budgetPaths=2,overBudget=split,batchInterval=150");
+
+        List<Call> calls = fixture.replicator.calls;
+        assertEquals(3, calls.size());
+        assertEquals(PLAN.subList(0, 2), calls.get(0).paths);
+        assertEquals(PLAN.subList(2, 4), calls.get(1).paths);
+        assertEquals(PLAN.subList(4, 5), calls.get(2).paths);
+        // the interval separates the starts of the batches, a call may follow its start by a few milliseconds
+        for (int i = 1; i < calls.size(); i++) {
+            long gap = calls.get(i).time - calls.get(i - 1).time;
+            assertTrue("batch " + i + " started after " + gap + "ms", gap >= 140);
+        }
+    }
+
+    @Test
+    public void resumesASplitPlanWithTheFailedBatch() throws Exception {
+        fixture.replicator.failingAfter = 1;
+        try {
+            fixture.execute(PAGE, "batchSize=10,budgetPaths=2,overBudget=split,batchInterval=0");
+            fail("second batch fails");
+        } catch (WorkflowException e) {
+            // expected
+        }
+        assertEquals(PLAN.subList(0, 2), fixture.replicator.getPaths());
+
+        fixture.replicator.failingAfter = -1;
+        fixture.execute(PAGE, "batchSize=10,budgetPaths=2,overBudget=split,batchInterval=0");
+        assertEquals(PLAN, fixture.replicator.getPaths());
+        assertFalse(fixture.getProgress().hasPlan());
+    }
+
+    @Test
+    public void resumesThePayloadFirst() throws Exception {
+        fixture.replicator.failingAfter = 0;
+        try {
+            fixture.execute(PAGE, "batchSize=10,payloadFirst=true");
+            fail("replication queue is blocked");
+        } catch (WorkflowException e) {
+            // expected
+        }
+        assertTrue(fixture.getProgress().hasPlan());
+
+        fixture.replicator.failingAfter = -1;
+        fixture.execute(PAGE, "batchSize=10,payloadFirst=true");
+        List<Call> calls = fixture.replicator.calls;
+        assertEquals(2, calls.size());
+        assertEquals(Arrays.asList(PAGE), calls.get(0).paths);
+        assertEquals(PLAN.subList(0, 4), calls.get(1).paths);
+    }
+}
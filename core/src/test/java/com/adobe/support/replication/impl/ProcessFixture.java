@@ -0,0 +1,381 @@
+package com.adobe.support.replication.impl;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.jcr.Node;
+import javax.jcr.Session;
+import javax.jcr.security.AccessControlManager;
+import javax.jcr.security.Privilege;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.jcr.api.SlingRepository;
+import org.apache.sling.testing.resourceresolver.MockResourceResolverFactory;
+
+import com.adobe.granite.workflow.collection.ResourceCollection;
+import com.adobe.granite.workflow.collection.ResourceCollectionManager;
+import com.adobe.support.replication.ActivationReferenceSearch;
+import com.adobe.support.replication.ActivationReferenceSearch.ReferenceHandler;
+import com.day.cq.replication.Agent;
+import com.day.cq.replication.AgentConfig;
+import com.day.cq.replication.AgentFilter;
+import com.day.cq.replication.AgentManager;
+import com.day.cq.replication.ReplicationAction;
+import com.day.cq.replication.ReplicationActionType;
+import com.day.cq.replication.ReplicationContentFilter;
+import com.day.cq.replication.ReplicationException;
+import com.day.cq.replication.ReplicationOptions;
+import com.day.cq.replication.ReplicationStatus;
+import com.day.cq.replication.Replicator;
+import com.day.cq.workflow.WorkflowSession;
+import com.day.cq.workflow.exec.HistoryItem;
+import com.day.cq.workflow.exec.WorkItem;
+import com.day.cq.workflow.exec.Workflow;
+import com.day.cq.workflow.exec.WorkflowData;
+import com.day.cq.workflow.metadata.MetaDataMap;
+import com.day.cq.workflow.metadata.SimpleMetaDataMap;
+import com.day.cq.workflow.model.WorkflowNode;
+import org.osgi.service.event.EventAdmin;
+
+/**
+ * A {@link ReplicatePageProcess} wired to an in-memory content tree and
+ * stubbed services: the reference search finds the paths set with
+ * {@link #references(String...)} for every payload, the replicator records
+ * its calls and paths ending with {@value #DENIED_SUFFIX} may not be
+ * replicated. The work item keeps its metadata across executions, like a
+ * retried step.
+ */
+final class ProcessFixture {
+
+    static final String USER_ID = "author";
+
+    static final String STEP_ID = "node1";
+
+    static final String DENIED_SUFFIX = "-denied";
+
+    final RecordingReplicator replicator = new RecordingReplicator();
+
+    final ReplicatePageProcess process;
+
+    final ReplicationLanes lanes = new ReplicationLanes();
+
+    final MetaDataMap metaData = new SimpleMetaDataMap();
+
+    final ResourceResolver resolver;
+
+    private final Session session;
+
+    private final Map<String, Agent> agents = new LinkedHashMap<String, Agent>();
+
+    private final List<String> references = new CopyOnWriteArrayList<String>();
+
+    /**
+     * @param agentIds the ids of the valid default agents
+     */
+    ProcessFixture(String... agentIds) throws LoginException {
+        resolver = new MockResourceResolverFactory().getResourceResolver(null);
+        session = newSession();
+        AgentConfig config = Stubs.of(AgentConfig.class).returns("isSpecific", false).build();
+        for (String agentId : agentIds) {
+            agents.put(agentId, Stubs.of(Agent.class).returns("getId", agentId).returns("isValid", true)
+                    .returns("getConfiguration", config).build());
+        }
+        replicator.agents = agents;
+
+        inject(lanes, "agentManager", Stubs.of(AgentManager.class).returns("getAgents", agents).build());
+        lanes.activate(properties(ReplicationLanes.PROP_TIMEOUT, 5000L));
+
+        ReplicationSessionPool sessionPool = new ReplicationSessionPool();
+        Stubs.Answer login = new Stubs.Answer() {
+            public Object answer(Object[] args) {
+                return newResolver();
+            }
+        };
+        inject(sessionPool, "resolverFactory", Stubs.of(ResourceResolverFactory.class)
+                .on("getServiceResourceResolver", login).build());
+        inject(sessionPool, "repository", Stubs.of(SlingRepository.class).returns("impersonateFromService", session)
+                .build());
+        sessionPool.activate(properties());
+
+        ReplicationThrottle throttle = new ReplicationThrottle();
+        throttle.activate(properties(ReplicationThrottle.PROP_HIGH_WATERMARK, 0));
+        ReplicationCoalescer coalescer = new ReplicationCoalescer();
+        coalescer.activate(properties());
+        ReplicatePrivilegeEvaluator privilegeEvaluator = new ReplicatePrivilegeEvaluator();
+        privilegeEvaluator.activate(properties());
+
+        process = new ReplicatePageProcess() {
+            @Override
+            public ReplicationActionType getReplicationType() {
+                return ReplicationActionType.ACTIVATE;
+            }
+        };
+        process.replicator = replicator;
+        process.eventAdmin = Stubs.of(EventAdmin.class).build();
+        process.rcManager = Stubs.of(ResourceCollectionManager.class)
+                .returns("getCollectionsForNode", Collections.<ResourceCollection> emptyList()).build();
+        process.sessionPool = sessionPool;
+        process.activationReferenceSearch = newSearch();
+        process.privilegeEvaluator = privilegeEvaluator;
+        process.metrics = new ReplicationMetrics();
+        process.throttle = throttle;
+        process.coalescer = coalescer;
+        process.lanes = lanes;
+    }
+
+    /**
+     * @param paths the references found for every payload
+     * @return this fixture
+     */
+    ProcessFixture references(String... paths) {
+        references.clear();
+        references.addAll(Arrays.asList(paths));
+        return this;
+    }
+
+    /**
+     * Executes the step for the given payload.
+     *
+     * @param path the payload path
+     * @param processArgs the PROCESS_ARGS of the step, e.g. <code>batchSize=10</code>
+     */
+    void execute(String path, String processArgs) throws Exception {
+        MetaDataMap args = new SimpleMetaDataMap();
+        args.put("PROCESS_ARGS", processArgs);
+        process.execute(newWorkItem(path), Stubs.of(WorkflowSession.class).returns("getSession", session)
+                .returns("getHistory", Collections.<HistoryItem> emptyList()).build(), args);
+    }
+
+    /**
+     * @return the progress of the step stored in the metadata
+     */
+    ReplicationProgress getProgress() {
+        return new ReplicationProgress(STEP_ID, metaData);
+    }
+
+    private WorkItem newWorkItem(String path) {
+        WorkflowData data = Stubs.of(WorkflowData.class).returns("getPayload", path)
+                .returns("getPayloadType", AbstractReplicatePageProcess.TYPE_JCR_PATH)
+                .returns("getMetaDataMap", metaData).build();
+        Workflow workflow = Stubs.of(Workflow.class).returns("getId", "/var/workflow/instances/test")
+                .returns("getWorkflowData", data).returns("isActive", Boolean.TRUE).build();
+        WorkflowNode node = Stubs.of(WorkflowNode.class).returns("getId", STEP_ID)
+                .returns("getType", WorkflowNode.TYPE_PROCESS).build();
+        return Stubs.of(WorkItem.class).returns("getId", workflow.getId() + "/workItems/" + STEP_ID)
+                .returns("getWorkflow", workflow).returns("getWorkflowData", data).returns("getNode", node)
+                .returns("getMetaDataMap", new SimpleMetaDataMap()).build();
+    }
+
+    private ActivationReferenceSearch newSearch() {
+        return Stubs.of(ActivationReferenceSearch.class).on("search", new Stubs.Answer() {
+            public Object answer(Object[] args) {
+                List<String> found = new ArrayList<String>(references);
+                if (args.length == 5) {
+                    if (!found.isEmpty()) {
+                        ((ReferenceHandler) args[4]).handle(found);
+                    }
+                    return found.size();
+                }
+                return found;
+            }
+        }).build();
+    }
+
+    /**
+     * @return a resolver on the content tree which adapts to the session and
+     *         ignores {@link ResourceResolver#close()}
+     */
+    private ResourceResolver newResolver() {
+        return Stubs.of(ResourceResolver.class).on("adaptTo", new Stubs.Answer() {
+            public Object answer(Object[] args) {
+                return args[0] == Session.class ? session : resolver.adaptTo((Class<?>) args[0]);
+            }
+        }).returns("close", null).returns("isLive", Boolean.TRUE).delegateTo(resolver).build();
+    }
+
+    private static Session newSession() {
+        Privilege replicate = Stubs.of(Privilege.class).returns("getName", Replicator.REPLICATE_PRIVILEGE).build();
+        AccessControlManager acMgr = Stubs.of(AccessControlManager.class).returns("privilegeFromName", replicate)
+                .on("hasPrivileges", new Stubs.Answer() {
+                    public Object answer(Object[] args) {
+                        return !((String) args[0]).endsWith(DENIED_SUFFIX);
+                    }
+                }).build();
+        Stubs.Answer node = new Stubs.Answer() {
+            public Object answer(Object[] args) {
+                return Stubs.of(Node.class).returns("getPath", args[0]).build();
+            }
+        };
+        return Stubs.of(Session.class).returns("getUserID", USER_ID).returns("getAccessControlManager", acMgr)
+                .returns("itemExists", Boolean.TRUE).returns("isLive", Boolean.TRUE).on("getItem", node).build();
+    }
+
+    static Map<String, Object> properties(Object... keysAndValues) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        for (int i = 0; i + 1 < keysAndValues.length; i += 2) {
+            properties.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return properties;
+    }
+
+    /**
+     * Sets a reference of a component like the SCR runtime does.
+     */
+    static void inject(Object component, String field, Object value) {
+        for (Class<?> c = component.getClass(); c != null; c = c.getSuperclass()) {
+            try {
+                Field f = c.getDeclaredField(field);
+                f.setAccessible(true);
+                f.set(component, value);
+                return;
+            } catch (NoSuchFieldException e) {
+                // try the super class
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Cannot set " + field, e);
+            }
+        }
+        throw new IllegalArgumentException("No field " + field + " on " + component.getClass());
+    }
+
+    /**
+     * A single call of the {@link RecordingReplicator}.
+     */
+    static final class Call {
+
+        /** the agent of a replication lane, <code>null</code> for all agents */
+        final String agentId;
+
+        final List<String> paths;
+
+        final long time = System.currentTimeMillis();
+
+        Call(String agentId, String[] paths) {
+            this.agentId = agentId;
+            this.paths = Arrays.asList(paths);
+        }
+
+        @Override
+        public String toString() {
+            return (agentId != null ? agentId + ":" : "") + paths;
+        }
+    }
+
+    /**
+     * A {@link Replicator} recording its calls. Calls to the agents of
+     * {@link #failingAgents} fail, calls to the agents of {@link #delays}
+     * take that many milliseconds. Once {@link #failingAfter} calls were
+     * recorded, all further calls fail.
+     */
+    static final class RecordingReplicator implements Replicator {
+
+        final List<Call> calls = new CopyOnWriteArrayList<Call>();
+
+        final Set<String> failingAgents = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        final Map<String, Long> delays = new ConcurrentHashMap<String, Long>();
+
+        volatile int failingAfter = -1;
+
+        private volatile Map<String, Agent> agents = Collections.emptyMap();
+
+        /**
+         * @return the replicated paths in the order of the calls
+         */
+        List<String> getPaths() {
+            List<String> paths = new ArrayList<String>();
+            for (Call call : calls) {
+                paths.addAll(call.paths);
+            }
+            return paths;
+        }
+
+        /**
+         * @return the paths replicated to the given agent by its lane
+         */
+        List<String> getPaths(String agentId) {
+            List<String> paths = new ArrayList<String>();
+            for (Call call : calls) {
+                if (agentId.equals(call.agentId)) {
+                    paths.addAll(call.paths);
+                }
+            }
+            return paths;
+        }
+
+        public void replicate(Session session, ReplicationActionType type, String path) throws ReplicationException {
+            record(new String[] { path }, null);
+        }
+
+        public void replicate(Session session, ReplicationActionType type, String path, ReplicationOptions options)
+                throws ReplicationException {
+            record(new String[] { path }, options);
+        }
+
+        public void replicate(Session session, ReplicationActionType type, String[] paths,
+                ReplicationOptions options) throws ReplicationException {
+            record(paths, options);
+        }
+
+        public void checkPermission(Session session, ReplicationActionType type, String path) {
+        }
+
+        public ReplicationStatus getReplicationStatus(Session session, String path) {
+            return null;
+        }
+
+        public Iterator<String> getActivatedPaths(Session session, String path) {
+            return Collections.<String> emptyList().iterator();
+        }
+
+        @Deprecated
+        public List<ReplicationContentFilter> createContentFilterChain(ReplicationAction action) {
+            return Collections.emptyList();
+        }
+
+        private void record(String[] paths, ReplicationOptions options) throws ReplicationException {
+            String agentId = getAgentId(options != null ? options.getFilter() : null);
+            if (agentId != null) {
+                Long delay = delays.get(agentId);
+                if (delay != null) {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new ReplicationException("Interrupted");
+                    }
+                }
+                if (failingAgents.contains(agentId)) {
+                    throw new ReplicationException(agentId + " is not reachable");
+                }
+            }
+            if (failingAfter >= 0 && calls.size() >= failingAfter) {
+                throw new ReplicationException("Replication queue is blocked");
+            }
+            calls.add(new Call(agentId, paths));
+        }
+
+        private String getAgentId(AgentFilter filter) {
+            if (filter == null) {
+                return null;
+            }
+            for (Map.Entry<String, Agent> agent : agents.entrySet()) {
+                if (filter.isIncluded(agent.getValue())) {
+                    return agent.getKey();
+                }
+            }
+            return null;
+        }
+    }
+}
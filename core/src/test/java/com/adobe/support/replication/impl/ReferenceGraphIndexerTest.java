@@ -0,0 +1,137 @@
+package com.adobe.support.replication.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.apache.sling.testing.resourceresolver.MockResourceResolverFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.adobe.support.replication.ActivationReferenceSearch;
+import com.day.cq.commons.jcr.JcrConstants;
+
+public class ReferenceGraphIndexerTest {
+
+    private static final String PAGE = "/content/site/page";
+
+    private static final String CHILD = "/content/site/page/child";
+
+    private static final String ASSET = "/content/dam/a.png";
+
+    private final MockResourceResolverFactory repository = new MockResourceResolverFactory();
+
+    private final List<String> searched = new CopyOnWriteArrayList<String>();
+
+    private final ReferenceGraph graph = new ReferenceGraph();
+
+    private final ReferenceGraphIndexer indexer = new ReferenceGraphIndexer();
+
+    private File snapshot;
+
+    @Before
+    public void setUp() throws Exception {
+        ResourceResolver resolver = repository.getResourceResolver(null);
+        createContent(resolver, PAGE);
+        createContent(resolver, CHILD);
+        createContent(resolver, ASSET);
+        ResourceUtil.getOrCreateResource(resolver, "/content/site/folder", Collections.<String, Object> emptyMap(),
+                null, true);
+
+        snapshot = File.createTempFile("reference-graph", ".bin");
+        Map<String, Object> graphProperties = new HashMap<String, Object>();
+        graphProperties.put(ReferenceGraph.PROP_ENABLED, true);
+        graphProperties.put(ReferenceGraph.PROP_SNAPSHOT, snapshot.getPath());
+        snapshot.delete();
+        graph.activate(null, graphProperties);
+
+        ProcessFixture.inject(indexer, "graph", graph);
+        ProcessFixture.inject(indexer, "activationReferenceSearch", Stubs.of(ActivationReferenceSearch.class)
+                .on("search", new Stubs.Answer() {
+                    public Object answer(Object[] args) {
+                        searched.addAll(Arrays.asList((String[]) args[0]));
+                        return Collections.emptyList();
+                    }
+                }).build());
+        ProcessFixture.inject(indexer, "resolverFactory", Stubs.of(ResourceResolverFactory.class)
+                .on("getServiceResourceResolver", new Stubs.Answer() {
+                    public Object answer(Object[] args) throws LoginException {
+                        return repository.getResourceResolver(null);
+                    }
+                }).build());
+        indexer.activate(ProcessFixture.properties(ReferenceGraphIndexer.PROP_INTERVAL, 60000L));
+    }
+
+    @After
+    public void tearDown() {
+        indexer.deactivate();
+        snapshot.delete();
+    }
+
+    @Test
+    public void searchesTheChangedResourcesAgain() {
+        graph.onChange(Arrays.asList(new ResourceChange(ChangeType.CHANGED, PAGE + "/jcr:content/par", false),
+                new ResourceChange(ChangeType.ADDED, "/content/site/removed/jcr:content", false)));
+
+        indexer.update();
+        assertEquals(Collections.singletonList(PAGE), searched);
+        assertEquals(0, graph.getDirtyCount());
+        assertEquals(1, indexer.getIndexedCount());
+
+        // nothing changed since
+        indexer.update();
+        assertEquals(1, searched.size());
+    }
+
+    @Test
+    public void rebuildsTheGraphFromAllResourcesBelowTheRoots() throws Exception {
+        assertTrue(indexer.rebuild().startsWith("Rebuild of [/content] started"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (indexer.isRebuilding() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        assertFalse(indexer.isRebuilding());
+        Set<String> paths = new TreeSet<String>(searched);
+        assertEquals(new TreeSet<String>(Arrays.asList(PAGE, CHILD, ASSET)), paths);
+        assertEquals(3, indexer.getIndexedCount());
+        assertTrue(indexer.getLastRebuild() > 0);
+        assertTrue(snapshot.isFile());
+    }
+
+    @Test
+    public void doesNothingWhileTheGraphIsDisabled() {
+        graph.modified(Collections.<String, Object> singletonMap(ReferenceGraph.PROP_ENABLED, false));
+
+        assertEquals("The reference graph is disabled", indexer.rebuild());
+        graph.onChange(Collections.singletonList(new ResourceChange(ChangeType.CHANGED, PAGE, false)));
+        indexer.update();
+        assertTrue(searched.isEmpty());
+    }
+
+    private static void createContent(ResourceResolver resolver, String path) throws PersistenceException {
+        Resource resource = ResourceUtil.getOrCreateResource(resolver, path,
+                Collections.<String, Object> emptyMap(), null, false);
+        resolver.create(resource, JcrConstants.JCR_CONTENT, Collections.<String, Object> emptyMap());
+        resolver.commit();
+    }
+}
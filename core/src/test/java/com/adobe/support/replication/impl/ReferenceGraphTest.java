@@ -0,0 +1,193 @@
+package com.adobe.support.replication.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceUtil;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChange.ChangeType;
+import org.apache.sling.testing.resourceresolver.MockResourceResolverFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.day.cq.commons.jcr.JcrConstants;
+import com.day.cq.wcm.api.NameConstants;
+import com.day.cq.wcm.api.reference.Reference;
+
+public class ReferenceGraphTest {
+
+    private static final String PAGE = "/content/site/page";
+
+    private static final String CHILD = "/content/site/page/child";
+
+    private static final String ASSET_A = "/content/dam/a.png";
+
+    private static final String ASSET_B = "/content/dam/b.png";
+
+    private ResourceResolver resolver;
+
+    private File snapshot;
+
+    private ReferenceGraph graph;
+
+    @Before
+    public void setUp() throws Exception {
+        resolver = new MockResourceResolverFactory().getResourceResolver(null);
+        createContent(PAGE, 1000);
+        createContent(CHILD, 1000);
+        createContent(ASSET_A, 500);
+        createContent(ASSET_B, 500);
+        snapshot = File.createTempFile("reference-graph", ".bin");
+        snapshot.delete();
+        graph = newGraph();
+    }
+
+    @After
+    public void tearDown() {
+        snapshot.delete();
+    }
+
+    @Test
+    public void answersTheReferencesAndReferrersOfIndexedResources() {
+        index(PAGE, ASSET_A, ASSET_B);
+        index(CHILD, ASSET_A);
+
+        List<Reference> references = graph.get(getContent(PAGE));
+        assertNotNull(references);
+        assertEquals(2, references.size());
+        assertEquals(ASSET_A, references.get(0).getResource().getPath());
+        assertEquals("asset", references.get(0).getType());
+        assertArrayEquals(new String[] { ASSET_A, ASSET_B }, graph.getReferences(PAGE));
+        assertArrayEquals(new String[] { PAGE, CHILD }, graph.getReferrers(ASSET_A));
+        assertArrayEquals(new String[] { PAGE }, graph.getReferrers(ASSET_B));
+        assertEquals(2, graph.getSourceCount());
+        assertEquals(3, graph.getEdgeCount());
+        assertEquals(1, graph.getHitCount());
+    }
+
+    @Test
+    public void missesModifiedResourcesAndTargets() throws Exception {
+        index(PAGE, ASSET_A);
+        index(CHILD, ASSET_B);
+
+        setLastModified(PAGE, 2000);
+        assertNull(graph.get(getContent(PAGE)));
+        setLastModified(ASSET_B, 2000);
+        assertNull(graph.get(getContent(CHILD)));
+        assertEquals(2, graph.getMissCount());
+    }
+
+    @Test
+    public void reindexesResourcesWithOtherReferences() {
+        index(PAGE, ASSET_A, ASSET_B);
+        index(PAGE, ASSET_B);
+
+        assertArrayEquals(new String[] { ASSET_B }, graph.getReferences(PAGE));
+        assertArrayEquals(new String[0], graph.getReferrers(ASSET_A));
+        assertEquals(1, graph.getEdgeCount());
+    }
+
+    @Test
+    public void dropsChangedResourcesAndQueuesThemForIndexing() {
+        index(PAGE, ASSET_A);
+        index(CHILD, ASSET_A);
+
+        graph.onChange(Collections.singletonList(new ResourceChange(ChangeType.CHANGED,
+                CHILD + "/jcr:content/par/image", false)));
+        assertArrayEquals(new String[0], graph.getReferences(CHILD));
+        assertArrayEquals(new String[] { PAGE }, graph.getReferrers(ASSET_A));
+        assertEquals(Collections.singletonList(CHILD), graph.takeDirty());
+        assertEquals(0, graph.getDirtyCount());
+    }
+
+    @Test
+    public void dropsTheDescendantsOfRemovedResources() throws Exception {
+        createContent("/content/site/page-2", 1000);
+        index(PAGE, ASSET_A);
+        index(CHILD, ASSET_B);
+        index("/content/site/page-2", ASSET_B);
+
+        graph.onChange(Collections.singletonList(new ResourceChange(ChangeType.REMOVED, PAGE, false)));
+        assertArrayEquals(new String[0], graph.getReferences(PAGE));
+        assertArrayEquals(new String[0], graph.getReferences(CHILD));
+        assertArrayEquals(new String[] { "/content/site/page-2" }, graph.getReferrers(ASSET_B));
+        assertEquals(1, graph.getSourceCount());
+        assertEquals(2, graph.getInvalidationCount());
+    }
+
+    @Test
+    public void restoresTheGraphFromItsSnapshot() {
+        index(PAGE, ASSET_A, ASSET_B);
+        index(CHILD, ASSET_A);
+        graph.deactivate();
+
+        ReferenceGraph restored = newGraph();
+        assertArrayEquals(new String[] { ASSET_A, ASSET_B }, restored.getReferences(PAGE));
+        assertArrayEquals(new String[] { PAGE, CHILD }, restored.getReferrers(ASSET_A));
+        assertNotNull(restored.get(getContent(CHILD)));
+    }
+
+    @Test
+    public void indexesNothingIfDisabled() {
+        graph.modified(Collections.<String, Object> singletonMap(ReferenceGraph.PROP_ENABLED, false));
+        index(PAGE, ASSET_A);
+
+        assertNull(graph.get(getContent(PAGE)));
+        assertEquals(0, graph.getSourceCount());
+    }
+
+    private ReferenceGraph newGraph() {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(ReferenceGraph.PROP_ENABLED, true);
+        properties.put(ReferenceGraph.PROP_SNAPSHOT, snapshot.getPath());
+        ReferenceGraph referenceGraph = new ReferenceGraph();
+        referenceGraph.activate(null, properties);
+        return referenceGraph;
+    }
+
+    private void index(String path, String... targets) {
+        List<Reference> references = new ArrayList<Reference>();
+        for (String target : targets) {
+            Resource resource = resolver.getResource(target);
+            references.add(new Reference("asset", ResourceUtil.getName(target), resource,
+                    ReferenceCache.getLastModified(resource)));
+        }
+        graph.put(getContent(path), references);
+    }
+
+    private Resource getContent(String path) {
+        return resolver.getResource(path + "/" + JcrConstants.JCR_CONTENT);
+    }
+
+    private void setLastModified(String path, long lastModified) throws PersistenceException {
+        Calendar date = Calendar.getInstance();
+        date.setTimeInMillis(lastModified);
+        getContent(path).adaptTo(ModifiableValueMap.class).put(NameConstants.PN_PAGE_LAST_MOD, date);
+        resolver.commit();
+    }
+
+    private void createContent(String path, long lastModified) throws PersistenceException {
+        Resource resource = ResourceUtil.getOrCreateResource(resolver, path,
+                Collections.<String, Object> emptyMap(), null, false);
+        Calendar date = Calendar.getInstance();
+        date.setTimeInMillis(lastModified);
+        resolver.create(resource, JcrConstants.JCR_CONTENT,
+                Collections.<String, Object> singletonMap(NameConstants.PN_PAGE_LAST_MOD, date));
+        resolver.commit();
+    }
+}
@@ -0,0 +1,78 @@
+package com.adobe.support.replication.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ReplicationChunkerTest {
+
+    @Test
+    public void closesChunksAtMaxPaths() {
+        ReplicationChunker chunker = new ReplicationChunker(2, 0);
+        for (int i = 0; i < 5; i++) {
+            chunker.add("/content/p" + i, null, 10);
+        }
+        List<ReplicationChunk> chunks = chunker.finish();
+        assertEquals(3, chunks.size());
+        assertEquals(Arrays.asList("/content/p0", "/content/p1"), chunks.get(0).getPaths());
+        assertEquals(Arrays.asList("/content/p2", "/content/p3"), chunks.get(1).getPaths());
+        assertEquals(Arrays.asList("/content/p4"), chunks.get(2).getPaths());
+        assertNull(chunks.get(0).getRevision());
+    }
+
+    @Test
+    public void closesChunksBeforeExceedingMaxBytes() {
+        ReplicationChunker chunker = new ReplicationChunker(10, 100);
+        chunker.add("/content/a", null, 60);
+        chunker.add("/content/b", null, 30);
+        chunker.add("/content/c", null, 20);
+        // a single path larger than the limit still gets a chunk
+        chunker.add("/content/d", null, 500);
+        List<ReplicationChunk> chunks = chunker.finish();
+        assertEquals(3, chunks.size());
+        assertEquals(Arrays.asList("/content/a", "/content/b"), chunks.get(0).getPaths());
+        assertEquals(90, chunks.get(0).getEstimatedBytes());
+        assertEquals(Arrays.asList("/content/c"), chunks.get(1).getPaths());
+        assertEquals(Arrays.asList("/content/d"), chunks.get(2).getPaths());
+    }
+
+    @Test
+    public void separatesRevisions() {
+        ReplicationChunker chunker = new ReplicationChunker(10, 0);
+        chunker.add("/content/a", "1.0", 1);
+        chunker.add("/content/b", null, 1);
+        chunker.add("/content/c", "1.0", 1);
+        List<ReplicationChunk> chunks = chunker.finish();
+        assertEquals(2, chunks.size());
+        assertEquals("1.0", chunks.get(0).getRevision());
+        assertEquals(Arrays.asList("/content/a", "/content/c"), chunks.get(0).getPaths());
+        assertNull(chunks.get(1).getRevision());
+        assertEquals(Arrays.asList("/content/b"), chunks.get(1).getPaths());
+    }
+
+    @Test
+    public void isolatesLargePathsAfterTheOthers() {
+        ReplicationChunker chunker = new ReplicationChunker(10, 0, 1000);
+        chunker.add("/content/dam/video.mp4", null, 5000);
+        chunker.add("/content/a", null, 10);
+        chunker.add("/content/dam/image.tif", null, 1000);
+        chunker.add("/content/b", null, 10);
+        List<ReplicationChunk> chunks = chunker.finish();
+        assertEquals(3, chunks.size());
+        assertEquals(Arrays.asList("/content/a", "/content/b"), chunks.get(0).getPaths());
+        assertEquals(Arrays.asList("/content/dam/video.mp4"), chunks.get(1).getPaths());
+        assertEquals(Arrays.asList("/content/dam/image.tif"), chunks.get(2).getPaths());
+    }
+
+    @Test
+    public void usesAtLeastOnePathPerChunk() {
+        ReplicationChunker chunker = new ReplicationChunker(0, 0);
+        chunker.add("/content/a", null, 1);
+        chunker.add("/content/b", null, 1);
+        assertEquals(2, chunker.finish().size());
+    }
+}
@@ -0,0 +1,229 @@
+package com.adobe.support.replication.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.settings.SlingSettingsService;
+import org.apache.sling.testing.resourceresolver.MockResourceResolverFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.adobe.support.replication.impl.ReplicationCoalescer.Claim;
+import com.day.cq.replication.ReplicationActionType;
+
+public class ReplicationCoalescerTest {
+
+    private static final String PATH = "/content/dam/logo.png";
+
+    private static final List<String> PATHS = Collections.singletonList(PATH);
+
+    private static final Map<String, String> NO_REVISIONS = Collections.emptyMap();
+
+    private final MockResourceResolverFactory repository = new MockResourceResolverFactory();
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private ResourceResolver resolver;
+
+    @Before
+    public void setUp() throws LoginException {
+        resolver = repository.getResourceResolver(null);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void skipsAPathReplicatedWithinTheTtl() {
+        ReplicationCoalescer coalescer = newCoalescer("instance1", 60000, 1000, false);
+        replicate(coalescer.claim(ReplicationActionType.ACTIVATE, PATHS, NO_REVISIONS, resolver), true);
+
+        Claim claim = coalescer.claim(ReplicationActionType.ACTIVATE, PATHS, NO_REVISIONS, resolver);
+        assertTrue(claim.getClaimed().isEmpty());
+        assertEquals(PATHS, claim.getCoalesced());
+        // another action is claimed of its own
+        claim = coalescer.claim(ReplicationActionType.DEACTIVATE, PATHS, NO_REVISIONS, resolver);
+        assertEquals(PATHS, claim.getClaimed());
+    }
+
+    @Test
+    public void replicatesANewVersionAgain() {
+        ReplicationCoalescer coalescer = newCoalescer("instance1", 60000, 1000, false);
+        replicate(coalescer.claim(ReplicationActionType.ACTIVATE, PATHS, Collections.singletonMap(PATH, "1.0"),
+                resolver), true);
+
+        Claim claim = coalescer.claim(ReplicationActionType.ACTIVATE, PATHS, Collections.singletonMap(PATH, "1.1"),
+                resolver);
+        assertEquals(PATHS, claim.getClaimed());
+    }
+
+    @Test
+    public void replicatesAgainOnceTheTtlPassed() throws Exception {
+        ReplicationCoalescer coalescer = newCoalescer("instance1", 50, 1000, false);
+        replicate(coalescer.claim(ReplicationActionType.ACTIVATE, PATHS, NO_REVISIONS, resolver), true);
+        Thread.sleep(80);
+
+        assertEquals(PATHS, coalescer.claim(ReplicationActionType.ACTIVATE, PATHS, NO_REVISIONS, resolver)
+                .getClaimed());
+    }
+
+    @Test
+    public void waitsForAConcurrentReplicationAndSkipsItOnSuccess() throws Exception {
+        ReplicationCoalescer coalescer = newCoalescer("instance1", 60000, 5000, false);
+        Claim first = coalescer.claim(ReplicationActionType.ACTIVATE, PATHS, NO_REVISIONS, resolver);
+        Claim second = coalescer.claim(ReplicationActionType.ACTIVATE, PATHS, NO_REVISIONS, resolver);
+        assertEquals(PATHS, first.getClaimed());
+        assertTrue(second.getClaimed().isEmpty());
+
+        Future<List<String>> taken = await(second);
+        Thread.sleep(50);
+        assertFalse(taken.isDone());
+        replicate(first, true);
+
+        assertTrue(taken.get(1, TimeUnit.SECONDS).isEmpty());
+        assertEquals(PATHS, second.getCoalesced());
+        assertEquals(1, coalescer.getCoalescedCount());
+    }
+
+    @Test
+    public void replicatesAPathWhoseConcurrentReplicationFailed() throws Exception {
+        ReplicationCoalescer coalescer = newCoalescer("instance1", 60000, 5000, false);
+        Claim first = coalescer.claim(ReplicationActionType.ACTIVATE, PATHS, NO_REVISIONS, resolver);
+        Claim second = coalescer.claim(ReplicationActionType.ACTIVATE, PATHS, NO_REVISIONS, resolver);
+
+        Future<List<String>> taken = await(second);
+        replicate(first, false);
+
+        assertEquals(PATHS, taken.get(1, TimeUnit.SECONDS));
+        assertEquals(PATHS, second.getClaimed());
+        assertTrue(second.getCoalesced().isEmpty());
+    }
+
+    @Test
+    public void replicatesAPathWhoseConcurrentReplicationTimedOut() throws Exception {
+        ReplicationCoalescer coalescer = newCoalescer("instance1", 60000, 100, false);
+        coalescer.claim(ReplicationActionType.ACTIVATE, PATHS, NO_REVISIONS, resolver);
+        Claim second = coalescer.claim(ReplicationActionType.ACTIVATE, PATHS, NO_REVISIONS, resolver);
+
+        long start = System.currentTimeMillis();
+        assertEquals(PATHS, second.await());
+        assertTrue(System.currentTimeMillis() - start >= 90);
+        assertEquals(1, coalescer.getTimeoutCount());
+    }
+
+    @Test
+    public void skipsAPathReplicatedByAnotherInstance() throws Exception {
+        ReplicationCoalescer instance1 = newCoalescer("instance1", 60000, 5000, true);
+        ReplicationCoalescer instance2 = newCoalescer("instance2", 60000, 5000, true);
+        Claim first = instance1.claim(ReplicationActionType.ACTIVATE, PATHS, NO_REVISIONS, resolver);
+        Claim second = instance2.claim(ReplicationActionType.ACTIVATE, PATHS, NO_REVISIONS, resolver);
+        assertEquals(PATHS, first.getClaimed());
+        assertTrue(second.getClaimed().isEmpty());
+
+        Future<List<String>> taken = await(second);
+        replicate(first, true);
+
+        assertTrue(taken.get(2, TimeUnit.SECONDS).isEmpty());
+        assertEquals(PATHS, second.getCoalesced());
+        second.close(Collections.<String> emptyList());
+        assertTrue(instance2.claim(ReplicationActionType.ACTIVATE, PATHS, NO_REVISIONS, resolver).getCoalesced()
+                .contains(PATH));
+    }
+
+    @Test
+    public void replicatesAPathWhoseReplicationFailedOnAnotherInstance() throws Exception {
+        ReplicationCoalescer instance1 = newCoalescer("instance1", 60000, 5000, true);
+        ReplicationCoalescer instance2 = newCoalescer("instance2", 60000, 5000, true);
+        Claim first = instance1.claim(ReplicationActionType.ACTIVATE, PATHS, NO_REVISIONS, resolver);
+        Claim second = instance2.claim(ReplicationActionType.ACTIVATE, PATHS, NO_REVISIONS, resolver);
+
+        Future<List<String>> taken = await(second);
+        replicate(first, false);
+
+        assertEquals(PATHS, taken.get(2, TimeUnit.SECONDS));
+        assertEquals(PATHS, second.getClaimed());
+        second.close(second.getClaimed());
+    }
+
+    @Test
+    public void purgesTheExpiredRecords() throws Exception {
+        ReplicationCoalescer coalescer = newCoalescer("instance1", 50, 1000, true);
+        replicate(coalescer.claim(ReplicationActionType.ACTIVATE, PATHS, NO_REVISIONS, resolver), true);
+        String bucket = ReplicationSessionPool.STATE_ROOT + "/coalescer";
+        assertNotNull(getRecords(bucket));
+
+        Thread.sleep(80);
+        coalescer.run();
+        assertNull(getRecords(bucket));
+    }
+
+    /**
+     * @return the first record below the given path or <code>null</code>
+     */
+    private String getRecords(String path) throws LoginException {
+        ResourceResolver reader = repository.getResourceResolver(null);
+        try {
+            for (Resource bucket : reader.getResource(path).getChildren()) {
+                for (Resource record : bucket.getChildren()) {
+                    return record.getPath();
+                }
+            }
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private Future<List<String>> await(final Claim claim) {
+        return executor.submit(new Callable<List<String>>() {
+            public List<String> call() throws InterruptedException {
+                return claim.await();
+            }
+        });
+    }
+
+    private static void replicate(Claim claim, boolean success) {
+        List<String> none = Collections.emptyList();
+        claim.close(success ? claim.getClaimed() : none);
+    }
+
+    private ReplicationCoalescer newCoalescer(String slingId, long ttl, long maxWait, boolean cluster) {
+        ReplicationSessionPool sessionPool = new ReplicationSessionPool();
+        ProcessFixture.inject(sessionPool, "resolverFactory", Stubs.of(ResourceResolverFactory.class)
+                .on("getServiceResourceResolver", new Stubs.Answer() {
+                    public Object answer(Object[] args) throws LoginException {
+                        return repository.getResourceResolver(null);
+                    }
+                }).build());
+        sessionPool.activate(ProcessFixture.properties());
+
+        ReplicationCoalescer coalescer = new ReplicationCoalescer();
+        ProcessFixture.inject(coalescer, "slingSettings", Stubs.of(SlingSettingsService.class)
+                .returns("getSlingId", slingId).build());
+        ProcessFixture.inject(coalescer, "sessionPool", sessionPool);
+        coalescer.activate(ProcessFixture.properties(ReplicationCoalescer.PROP_ENABLED, true,
+                ReplicationCoalescer.PROP_TTL, ttl, ReplicationCoalescer.PROP_MAX_WAIT, maxWait,
+                ReplicationCoalescer.PROP_CLUSTER, cluster));
+        return coalescer;
+    }
+}
@@ -0,0 +1,109 @@
+package com.adobe.support.replication.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.adobe.support.replication.impl.ProcessFixture.Call;
+import com.day.cq.workflow.WorkflowException;
+
+public class ReplicationLanesTest {
+
+    private static final String PAGE = "/content/site/page";
+
+    private static final List<String> PLAN = Arrays.asList("/content/dam/a", "/content/dam/b", PAGE);
+
+    private ProcessFixture fixture;
+
+    @Before
+    public void setUp() throws Exception {
+        fixture = new ProcessFixture("publish1", "publish2").references("/content/dam/a", "/content/dam/b");
+    }
+
+    @After
+    public void tearDown() {
+        fixture.lanes.deactivate();
+    }
+
+    @Test
+    public void replicatesToEveryAgentInALaneOfItsOwn() throws Exception {
+        fixture.execute(PAGE, "agentLanes=true");
+
+        assertEquals(PLAN, fixture.replicator.getPaths("publish1"));
+        assertEquals(PLAN, fixture.replicator.getPaths("publish2"));
+        for (Call call : fixture.replicator.calls) {
+            assertTrue(call.toString(), call.agentId != null);
+        }
+        assertFalse(fixture.getProgress().hasPlan());
+        assertEquals(2, fixture.lanes.getLaneStatistics().length);
+    }
+
+    @Test
+    public void replicatesToAllAgentsAtOnceWithoutLanes() throws Exception {
+        fixture.execute(PAGE, "agentLanes=false");
+
+        assertEquals(PLAN.size(), fixture.replicator.calls.size());
+        for (Call call : fixture.replicator.calls) {
+            assertNull(call.toString(), call.agentId);
+        }
+    }
+
+    @Test
+    public void failsTheStepIfALaneFails() throws Exception {
+        fixture.replicator.failingAgents.add("publish2");
+        try {
+            fixture.execute(PAGE, "agentLanes=true");
+            fail("the lane of publish2 fails");
+        } catch (WorkflowException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("1 of 2 replication lanes failed"));
+            assertTrue(e.getMessage(), e.getMessage().contains("publish2 (publish2 is not reachable)"));
+        }
+        assertEquals(PLAN, fixture.replicator.getPaths("publish1"));
+        // a path is only done once all lanes replicated it
+        ReplicationProgress progress = fixture.getProgress();
+        assertTrue(progress.hasPlan());
+        assertEquals(0, progress.getDoneCount());
+        assertEquals(PLAN, progress.getRemaining());
+
+        fixture.replicator.failingAgents.clear();
+        fixture.replicator.calls.clear();
+        fixture.execute(PAGE, "agentLanes=true");
+        assertEquals(PLAN, fixture.replicator.getPaths("publish1"));
+        assertEquals(PLAN, fixture.replicator.getPaths("publish2"));
+        assertFalse(fixture.getProgress().hasPlan());
+    }
+
+    @Test
+    public void timesOutASlowLane() throws Exception {
+        fixture.lanes.activate(ProcessFixture.properties(ReplicationLanes.PROP_TIMEOUT, 200L));
+        fixture.replicator.delays.put("publish2", 1000L);
+        long start = System.currentTimeMillis();
+        try {
+            fixture.execute(PAGE, "agentLanes=true");
+            fail("the lane of publish2 times out");
+        } catch (WorkflowException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("publish2 (timed out)"));
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("step took " + elapsed + "ms", elapsed < 1000);
+        assertEquals(PLAN, fixture.replicator.getPaths("publish1"));
+        assertTrue(fixture.replicator.getPaths("publish2").isEmpty());
+        assertTrue(fixture.getProgress().hasPlan());
+        for (String lane : fixture.lanes.getLaneStatistics()) {
+            if (lane.startsWith("publish2:")) {
+                assertTrue(lane, lane.contains("timeouts=1"));
+            } else {
+                assertTrue(lane, lane.contains("failures=0 timeouts=0"));
+            }
+        }
+    }
+}
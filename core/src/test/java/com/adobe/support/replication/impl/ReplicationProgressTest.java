@@ -0,0 +1,123 @@
+package com.adobe.support.replication.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.day.cq.workflow.metadata.MetaDataMap;
+import com.day.cq.workflow.metadata.SimpleMetaDataMap;
+
+public class ReplicationProgressTest {
+
+    private static final String STEP = "node1";
+
+    @Test
+    public void restoresTheReplicatedPaths() {
+        List<String> plan = new ArrayList<String>();
+        for (int i = 0; i < 300; i++) {
+            plan.add("/content/page-" + i);
+        }
+        MetaDataMap metaData = new SimpleMetaDataMap();
+        ReplicationProgress progress = new ReplicationProgress(STEP, metaData);
+        progress.setPlan(plan);
+        progress.done("/content/page-0", "/content/page-7", "/content/page-299", "/content/unplanned");
+        progress.save(metaData);
+
+        ReplicationProgress restored = new ReplicationProgress(STEP, metaData);
+        assertTrue(restored.hasPlan());
+        assertEquals(3, restored.getDoneCount());
+        assertTrue(restored.isDone("/content/page-7"));
+        assertTrue(restored.isDone("/content/page-299"));
+        assertFalse(restored.isDone("/content/page-8"));
+        List<String> remaining = restored.getRemaining();
+        assertEquals(297, remaining.size());
+        assertEquals("/content/page-1", remaining.get(0));
+        assertEquals("/content/page-298", remaining.get(remaining.size() - 1));
+    }
+
+    @Test
+    public void keepsAPartialPlanForTheNextSearch() {
+        MetaDataMap metaData = new SimpleMetaDataMap();
+        ReplicationProgress progress = new ReplicationProgress(STEP, metaData);
+        progress.addToPlan(Arrays.asList("/content/a", "/content/b"));
+        progress.done("/content/a");
+        progress.save(metaData);
+
+        ReplicationProgress restored = new ReplicationProgress(STEP, metaData);
+        assertFalse(restored.hasPlan());
+        restored.addToPlan(Arrays.asList("/content/b", "/content/c"));
+        restored.completePlan();
+        assertTrue(restored.hasPlan());
+        assertTrue(restored.isDone("/content/a"));
+        assertEquals(Arrays.asList("/content/b", "/content/c"), restored.getRemaining());
+    }
+
+    @Test
+    public void retriesPathsReportedAsFailed() {
+        ReplicationProgress progress = new ReplicationProgress(STEP, new SimpleMetaDataMap());
+        progress.setPlan(Arrays.asList("/content/a", "/content/b"));
+        progress.done("/content/a", "/content/b");
+        progress.retry("/content/b");
+        assertEquals(Collections.singletonList("/content/b"), progress.getRemaining());
+    }
+
+    @Test
+    public void takesACheckpointEveryInterval() {
+        final int[] checkpoints = new int[1];
+        ReplicationProgress progress = new ReplicationProgress(STEP, new SimpleMetaDataMap()) {
+            @Override
+            protected void checkpoint() {
+                checkpoints[0]++;
+            }
+        };
+        List<String> plan = new ArrayList<String>();
+        for (int i = 0; i < ReplicationProgress.CHECKPOINT_INTERVAL * 2 + 1; i++) {
+            plan.add("/content/page-" + i);
+        }
+        progress.setPlan(plan);
+        for (String path : plan) {
+            progress.done(path);
+        }
+        assertEquals(2, checkpoints[0]);
+    }
+
+    @Test
+    public void clearRemovesTheProgress() {
+        MetaDataMap metaData = new SimpleMetaDataMap();
+        ReplicationProgress progress = new ReplicationProgress(STEP, metaData);
+        progress.setPlan(Arrays.asList("/content/a"));
+        progress.save(metaData);
+        assertTrue(progress.clear(metaData));
+        assertFalse(new ReplicationProgress(STEP, metaData).hasPlan());
+        assertFalse(progress.clear(metaData));
+    }
+
+    @Test
+    public void keepsTheApprovalPerStep() {
+        MetaDataMap metaData = new SimpleMetaDataMap();
+        metaData.put(ReplicationEstimate.getPendingKey(STEP), "3 paths exceed the budget of 2");
+        metaData.put(ReplicationEstimate.getApprovedKey(STEP), "true");
+        assertTrue(new ReplicationProgress(STEP, metaData).isApproved());
+
+        // another budgeted step of the same workflow needs an approval of its own
+        ReplicationProgress other = new ReplicationProgress("node2", metaData);
+        assertFalse(other.isApproved());
+        other.setEstimate(new ReplicationEstimate(1, 0, Collections.<String, Integer> emptyMap()));
+        other.clear(metaData);
+        assertTrue(new ReplicationProgress(STEP, metaData).isApproved());
+
+        // the replicated plan consumes the approval of its step
+        ReplicationProgress approved = new ReplicationProgress(STEP, metaData);
+        approved.setEstimate(new ReplicationEstimate(3, 0, Collections.<String, Integer> emptyMap()));
+        approved.clear(metaData);
+        assertFalse(new ReplicationProgress(STEP, metaData).isApproved());
+        assertFalse(metaData.containsKey(ReplicationEstimate.getPendingKey(STEP)));
+    }
+}
@@ -0,0 +1,92 @@
+package com.adobe.support.replication.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+
+import org.junit.Test;
+
+public class ReplicationThrottleTest {
+
+    @Test
+    public void passesTheBatchWhenDisabled() throws InterruptedException {
+        QueueThrottle throttle = new QueueThrottle(0, 0, 0, 1000);
+        assertEquals(50, throttle.acquire(50));
+        assertEquals(0, throttle.getPauseCount());
+    }
+
+    @Test
+    public void passesTheBatchBelowTheLowWatermark() throws InterruptedException {
+        QueueThrottle throttle = new QueueThrottle(100, 50, 60000, 5);
+        assertEquals(50, throttle.acquire(50));
+        assertEquals(0, throttle.getShrinkCount());
+    }
+
+    @Test
+    public void shrinksTheBatchBetweenTheWatermarks() throws InterruptedException {
+        QueueThrottle throttle = new QueueThrottle(100, 50, 60000, 75);
+        assertEquals(25, throttle.acquire(50));
+        assertEquals(1, throttle.getShrinkCount());
+        // never below a single path
+        throttle = new QueueThrottle(100, 50, 60000, 99);
+        assertEquals(1, throttle.acquire(10));
+    }
+
+    @Test
+    public void defaultsTheLowWatermarkToHalfTheHighWatermark() {
+        QueueThrottle throttle = new QueueThrottle(100, 0, 60000, 0);
+        assertEquals(50, throttle.getLowWatermark());
+        throttle = new QueueThrottle(100, 200, 60000, 0);
+        assertEquals(50, throttle.getLowWatermark());
+    }
+
+    @Test
+    public void pausesAboveTheHighWatermarkUntilTheLowWatermark() throws InterruptedException {
+        QueueThrottle throttle = new QueueThrottle(100, 50, 60000, 120, 80, 40);
+        assertEquals(50, throttle.acquire(50));
+        assertEquals(1, throttle.getPauseCount());
+        assertEquals(0, throttle.getTimeoutCount());
+        assertEquals(0, throttle.getWaitingCount());
+    }
+
+    @Test
+    public void continuesWithSinglePathsAfterTheMaximumWait() throws InterruptedException {
+        QueueThrottle throttle = new QueueThrottle(100, 50, 0, 120);
+        assertEquals(1, throttle.acquire(50));
+        assertEquals(1, throttle.getTimeoutCount());
+    }
+
+    /**
+     * A throttle sampling the given queue depths one after the other, the
+     * last one is kept.
+     */
+    private static final class QueueThrottle extends ReplicationThrottle {
+
+        private final Queue<Integer> depths = new LinkedList<Integer>();
+
+        private int depth;
+
+        QueueThrottle(int high, int low, long maxWait, Integer... depths) {
+            for (Integer d : depths) {
+                this.depths.add(d);
+            }
+            Map<String, Object> properties = new HashMap<String, Object>();
+            properties.put(PROP_HIGH_WATERMARK, high);
+            properties.put(PROP_LOW_WATERMARK, low);
+            properties.put(PROP_POLL_INTERVAL, 0L);
+            properties.put(PROP_MAX_WAIT, maxWait);
+            activate(properties);
+        }
+
+        @Override
+        int sample() {
+            if (!depths.isEmpty()) {
+                depth = depths.poll();
+            }
+            return depth;
+        }
+    }
+}
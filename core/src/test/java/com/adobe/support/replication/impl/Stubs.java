@@ -0,0 +1,130 @@
+package com.adobe.support.replication.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Dynamic stubs for the large repository and workflow interfaces of which the
+ * process only uses a handful of methods. Methods without an answer are
+ * delegated to the target, if any, or return the default value of their return
+ * type.
+ */
+final class Stubs {
+
+    /**
+     * Computes the result of a stubbed method call.
+     */
+    interface Answer {
+        Object answer(Object[] args) throws Throwable;
+    }
+
+    private Stubs() {
+    }
+
+    static <T> Builder<T> of(Class<T> type) {
+        return new Builder<T>(type);
+    }
+
+    static Answer value(final Object value) {
+        return new Answer() {
+            public Object answer(Object[] args) {
+                return value;
+            }
+        };
+    }
+
+    static final class Builder<T> {
+
+        private final Class<T> type;
+
+        private final Map<String, Answer> answers = new HashMap<String, Answer>();
+
+        private Object target;
+
+        private Builder(Class<T> type) {
+            this.type = type;
+        }
+
+        public Builder<T> on(String method, Answer answer) {
+            answers.put(method, answer);
+            return this;
+        }
+
+        public Builder<T> returns(String method, Object value) {
+            return on(method, value(value));
+        }
+
+        public Builder<T> delegateTo(Object target) {
+            this.target = target;
+            return this;
+        }
+
+        public T build() {
+            return type.cast(Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[] { type },
+                    new Handler(type, answers, target)));
+        }
+    }
+
+    private static final class Handler implements InvocationHandler {
+
+        private final Class<?> type;
+
+        private final Map<String, Answer> answers;
+
+        private final Object target;
+
+        Handler(Class<?> type, Map<String, Answer> answers, Object target) {
+            this.type = type;
+            this.answers = answers;
+            this.target = target;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Answer answer = answers.get(method.getName());
+            if (answer != null) {
+                return answer.answer(args);
+            }
+            if (method.getDeclaringClass() == Object.class) {
+                if ("equals".equals(method.getName())) {
+                    return proxy == args[0];
+                } else if ("hashCode".equals(method.getName())) {
+                    return System.identityHashCode(proxy);
+                }
+                return type.getSimpleName() + "Stub";
+            }
+            if (target != null) {
+                try {
+                    return method.invoke(target, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+            return defaultValue(method.getReturnType());
+        }
+
+        private static Object defaultValue(Class<?> type) {
+            if (!type.isPrimitive() || type == void.class) {
+                return null;
+            } else if (type == boolean.class) {
+                return Boolean.FALSE;
+            } else if (type == char.class) {
+                return Character.valueOf((char) 0);
+            } else if (type == long.class) {
+                return Long.valueOf(0);
+            } else if (type == float.class) {
+                return Float.valueOf(0);
+            } else if (type == double.class) {
+                return Double.valueOf(0);
+            } else if (type == byte.class) {
+                return Byte.valueOf((byte) 0);
+            } else if (type == short.class) {
+                return Short.valueOf((short) 0);
+            }
+            return Integer.valueOf(0);
+        }
+    }
+}